@@ -49,12 +49,16 @@ dependencies {
     implementation("io.prometheus:simpleclient:0.12.0")
     implementation("io.prometheus:simpleclient_httpserver:0.12.0")
     implementation("io.prometheus:simpleclient_hotspot:0.12.0")
+    implementation("org.hdrhistogram:HdrHistogram:2.1.12")
 
     implementation(files("libs/lucene-core-10.0.0-SNAPSHOT.jar"))
     implementation(files("libs/jvector-1.0.3-SNAPSHOT.jar"))
 
     testImplementation(platform("org.junit:junit-bom:5.9.1"))
     testImplementation("org.junit.jupiter:junit-jupiter")
+    // Writes the Arrow IPC files ArrowIpc is tested against.
+    testImplementation("org.apache.arrow:arrow-vector:15.0.2")
+    testRuntimeOnly("org.apache.arrow:arrow-memory-unsafe:15.0.2")
 }
 
 java {
@@ -66,16 +70,18 @@ java {
 }
 
 tasks.withType<JavaCompile> {
-    options.compilerArgs.add("--enable-preview")
+    options.compilerArgs.addAll(listOf("--enable-preview", "--add-modules", "jdk.incubator.vector"))
 }
 
 tasks.named<JavaExec>("run") {
     val minHeap = project.findProperty("minHeapSize") as String?
     val maxHeap = project.findProperty("maxHeapSize") as String?
+    val nativeMemoryTracking = project.findProperty("nativeMemoryTracking") as String?
 
     val dynamicJvmArgs = mutableListOf<String>().apply {
         if (minHeap != null) add(minHeap)
         if (maxHeap != null) add(maxHeap)
+        if (nativeMemoryTracking != null) add("-XX:NativeMemoryTracking=$nativeMemoryTracking")
     }
 
     jvmArgs = defaultJvmArgs + dynamicJvmArgs
@@ -92,5 +98,7 @@ tasks.register<JavaExec>("runIoUring") {
 
 tasks.test {
     useJUnitPlatform()
+    // Arrow's allocator reflects into java.nio.
+    jvmArgs = defaultJvmArgs + listOf("--add-opens=java.base/java.nio=ALL-UNNAMED")
 }
 
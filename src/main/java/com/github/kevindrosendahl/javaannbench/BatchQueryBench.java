@@ -0,0 +1,182 @@
+package com.github.kevindrosendahl.javaannbench;
+
+import com.github.kevindrosendahl.javaannbench.dataset.Neighbors;
+import com.github.kevindrosendahl.javaannbench.display.ProgressBar;
+import com.github.kevindrosendahl.javaannbench.index.Index;
+import com.google.common.base.Preconditions;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * BatchQueryBench measures {@link Index.Querier#queryBatch} throughput for each of the batch sizes
+ * listed in the {@code batchSizes} runtime parameter.
+ *
+ * <p>The queries are split into consecutive batches of each size, and batches are run across the
+ * query threads the same way {@link QueryBench} runs single queries. Latencies are recorded per
+ * batch.
+ */
+public class BatchQueryBench {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(BatchQueryBench.class);
+
+  static void test(
+      QuerySpec spec,
+      Index.Querier index,
+      List<float[]> queries,
+      Neighbors groundTruths,
+      List<Integer> batchSizes,
+      ForkJoinPool pool,
+      Path reportsPath)
+      throws Exception {
+    var runtime = spec.runtime();
+    var executor = QueryBench.executor(runtime);
+    var maxInFlight = QueryBench.maxInFlight(runtime);
+    var warmup = QueryBench.warmup(runtime);
+    var test = QueryBench.test(runtime);
+    var k = spec.k();
+    var recall = groundTruths != null;
+
+    var results = new ArrayList<Result>(batchSizes.size());
+    for (var batchSize : batchSizes) {
+      Preconditions.checkArgument(batchSize > 0, "batch sizes must be positive");
+      var batches = batches(queries, batchSize);
+
+      var warmedUp = new LongAdder();
+      try (var progress = ProgressBar.create("warmup batch:" + batchSize, warmup * batches.length);
+          var sampler = MetricsSampler.start(() -> progress.incTo((int) warmedUp.sum()))) {
+        QueryBench.runQueries(
+            executor,
+            pool,
+            maxInFlight,
+            warmup,
+            batches.length,
+            (i, b) -> {
+              index.queryBatch(batches[b], k, recall);
+              warmedUp.increment();
+            });
+      }
+
+      var metrics = new QueryMetrics(test, batches.length);
+      var start = System.nanoTime();
+      try (var progress = ProgressBar.create("testing batch:" + batchSize, test * batches.length);
+          var sampler = MetricsSampler.start(() -> progress.incTo((int) metrics.completed()))) {
+        QueryBench.runQueries(
+            executor,
+            pool,
+            maxInFlight,
+            test,
+            batches.length,
+            (i, b) -> {
+              var batchStart = System.nanoTime();
+              var batchResults = index.queryBatch(batches[b], k, recall);
+              var latency = System.nanoTime() - batchStart;
+
+              var batchRecall = Double.NaN;
+              if (recall) {
+                Preconditions.checkArgument(
+                    batchResults.size() == batches[b].length,
+                    "batch %s returned %s results, expected %s",
+                    b,
+                    batchResults.size(),
+                    batches[b].length);
+
+                double sum = 0;
+                for (int q = 0; q < batchResults.size(); q++) {
+                  sum += groundTruths.recall(b * batchSize + q, batchResults.get(q), k);
+                }
+                batchRecall = sum / batchResults.size();
+              }
+
+              metrics.record(i, b, batchStart, latency, -1, -1, batchRecall);
+            });
+      }
+      var duration = Duration.ofNanos(System.nanoTime() - start);
+      metrics.finish();
+
+      var result = new Result(batchSize, metrics, (long) test * queries.size(), duration);
+      LOGGER.info(
+          "batch size {}: throughput {} queries/s, p50 batch {}, p99 batch {}, recall {}",
+          batchSize,
+          result.throughput(),
+          Duration.ofNanos(metrics.latencies().getValueAtPercentile(50)),
+          Duration.ofNanos(metrics.latencies().getValueAtPercentile(99)),
+          metrics.meanRecall());
+      results.add(result);
+    }
+
+    write(spec, index.description(), results, reportsPath);
+  }
+
+  static List<Integer> batchSizes(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("batchSizes"))
+        .map(
+            sizes ->
+                Arrays.stream(sizes.split(",")).map(String::trim).map(Integer::parseInt).toList())
+        .orElse(List.of());
+  }
+
+  private static float[][][] batches(List<float[]> queries, int batchSize) {
+    var numBatches = (queries.size() + batchSize - 1) / batchSize;
+    var batches = new float[numBatches][][];
+    for (int b = 0; b < numBatches; b++) {
+      var start = b * batchSize;
+      var end = Math.min(start + batchSize, queries.size());
+      batches[b] = queries.subList(start, end).toArray(float[][]::new);
+    }
+    return batches;
+  }
+
+  private record Result(int batchSize, QueryMetrics metrics, long queries, Duration duration) {
+
+    double throughput() {
+      return queries / (duration.toNanos() / 1e9);
+    }
+  }
+
+  private static void write(
+      QuerySpec spec, String indexDescription, List<Result> results, Path reportsPath)
+      throws Exception {
+    var now = Instant.now().getEpochSecond();
+    var path =
+        reportsPath.resolve(String.format("%s-batch-%s-%s", now, spec.dataset(), indexDescription));
+
+    try (var writer = Files.newBufferedWriter(path);
+        var printer = new CSVPrinter(writer, CSVFormat.DEFAULT)) {
+      for (var result : results) {
+        var latencies = result.metrics.latencies();
+        printer.printRecord(
+            "v1",
+            indexDescription,
+            spec.dataset(),
+            spec.provider(),
+            spec.type(),
+            spec.buildString(),
+            spec.queryString(),
+            spec.runtimeString(),
+            result.batchSize,
+            result.throughput(),
+            result.metrics.meanRecall(),
+            (long) latencies.getMean(),
+            latencies.getValueAtPercentile(50),
+            latencies.getValueAtPercentile(99),
+            latencies.getMaxValue());
+      }
+      printer.flush();
+    }
+
+    LOGGER.info("wrote batch report to {}", path);
+  }
+}
@@ -20,6 +20,9 @@ public class BenchRunner implements Runnable {
   @Option(names = {"-q", "--query"})
   private boolean query;
 
+  @Option(names = {"-g", "--ground-truth"})
+  private boolean groundTruth;
+
   @Option(names = {"-c", "--config"})
   private String config;
 
@@ -46,8 +49,9 @@ public class BenchRunner implements Runnable {
   }
 
   private void throwableRun() throws Exception {
-    Preconditions.checkArgument(!(this.build && this.query), "cannot build and query");
-    Preconditions.checkArgument(this.build || this.query, "must build or query");
+    Preconditions.checkArgument(
+        (this.build ? 1 : 0) + (this.query ? 1 : 0) + (this.groundTruth ? 1 : 0) == 1,
+        "must specify exactly one of build, query, or ground-truth");
 
     var workingDirectory = Path.of(System.getProperty("user.dir"));
     var datasetPath = workingDirectory.resolve("datasets");
@@ -61,5 +65,9 @@ public class BenchRunner implements Runnable {
     if (this.query) {
       QueryBench.test(QuerySpec.load(Path.of(this.config)), datasetPath, indexesPath, reportsPath);
     }
+
+    if (this.groundTruth) {
+      GroundTruthGenerator.generate(QuerySpec.load(Path.of(this.config)), datasetPath);
+    }
   }
 }
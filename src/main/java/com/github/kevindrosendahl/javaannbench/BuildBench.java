@@ -3,15 +3,25 @@ package com.github.kevindrosendahl.javaannbench;
 import com.github.kevindrosendahl.javaannbench.dataset.Datasets;
 import com.github.kevindrosendahl.javaannbench.index.Index;
 import com.github.kevindrosendahl.javaannbench.index.Index.Builder.BuildPhase;
+import com.github.kevindrosendahl.javaannbench.index.Index.Builder.MergePhase;
 import com.github.kevindrosendahl.javaannbench.util.Bytes;
+import com.github.kevindrosendahl.javaannbench.util.Mincore;
+import io.prometheus.client.exporter.HTTPServer;
+import io.prometheus.client.hotspot.DefaultExports;
+import java.io.Closeable;
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.UUID;
 import java.util.stream.Collectors;
 import jdk.jfr.Configuration;
 import jdk.jfr.Recording;
@@ -27,6 +37,12 @@ public class BuildBench {
   public static void build(BuildSpec spec, Path datasetPath, Path indexesPath, Path reportsPath)
       throws Exception {
     var dataset = Datasets.load(datasetPath, spec.dataset());
+    var train = dataset.train();
+    LOGGER.info(
+        "building from {} {} train vectors, {} mapped",
+        train.size(),
+        train.encoding(),
+        Bytes.ofBytes(train.segment().byteSize()));
     var jfr =
         Optional.ofNullable(spec.runtime().get("jfr")).map(Boolean::parseBoolean).orElse(false);
 
@@ -47,20 +63,62 @@ public class BuildBench {
     }
 
     try (var index =
-        Index.Builder.fromParameters(
-            dataset, indexesPath, spec.provider(), spec.type(), spec.build())) {
+            Index.Builder.fromParameters(
+                dataset, indexesPath, spec.provider(), spec.type(), spec.build());
+        var prom = startPromServer(spec);
+        var memory =
+            MemorySampler.start(
+                index,
+                MemorySampler.interval(spec.runtime()),
+                MemorySampler.residencyInterval(spec.runtime()),
+                prom.labelNames(),
+                prom.labels())) {
       var summary = index.build();
+      // Stop sampling, so that the report includes a sample taken after the build.
+      memory.stop();
       var totalTime =
           summary.phases().stream().map(BuildPhase::duration).reduce(Duration.ZERO, Duration::plus);
 
       LOGGER.info("completed building index for {}", index.description());
       summary
           .phases()
-          .forEach(phase -> LOGGER.info("\t{} phase: {}", phase.description(), phase.duration()));
+          .forEach(
+              phase -> {
+                if (phase.docs() > 0) {
+                  LOGGER.info(
+                      "\t{} phase: {} ({} docs/s)",
+                      phase.description(),
+                      phase.duration(),
+                      phase.docsPerSecond());
+                } else {
+                  LOGGER.info("\t{} phase: {}", phase.description(), phase.duration());
+                }
+              });
       LOGGER.info("\ttotal time: {}", totalTime);
+      if (!summary.merges().isEmpty()) {
+        LOGGER.info(
+            "\tmerges: {}, total merge time: {}, total merge cpu: {}, total vector merge time: {}",
+            summary.merges().size(),
+            summary.merges().stream()
+                .map(MergePhase::duration)
+                .reduce(Duration.ZERO, Duration::plus),
+            summary.merges().stream().map(MergePhase::cpu).reduce(Duration.ZERO, Duration::plus),
+            summary.merges().stream()
+                .map(MergePhase::vectors)
+                .reduce(Duration.ZERO, Duration::plus));
+      }
       LOGGER.info("\tsize: {}", index.size());
+      LOGGER.info("\ttrain vectors resident in page cache: {}", Mincore.resident(train.segment()));
+      memory.logPeaks(LOGGER);
 
-      new Report(index.description(), spec, totalTime, summary.phases(), index.size())
+      new Report(
+              index.description(),
+              spec,
+              totalTime,
+              summary.phases(),
+              summary.merges(),
+              index.size(),
+              memory)
           .write(reportsPath);
     } finally {
       if (jfr) {
@@ -71,12 +129,44 @@ public class BuildBench {
     }
   }
 
+  private static Prom startPromServer(BuildSpec spec) throws IOException {
+    DefaultExports.initialize();
+
+    Map<String, String> labels = new HashMap<>();
+    labels.put("run_id", UUID.randomUUID().toString());
+    labels.put("provider", spec.provider());
+    labels.put("type", spec.type());
+    labels.put("dataset", spec.dataset());
+    spec.build().forEach((key, value) -> labels.put("build_" + key, value));
+    spec.runtime().forEach((key, value) -> labels.put("runtime_" + key, value));
+    String[] labelNames = labels.keySet().stream().sorted().toArray(String[]::new);
+    String[] labelValues =
+        labels.entrySet().stream()
+            .sorted(Map.Entry.comparingByKey())
+            .map(Map.Entry::getValue)
+            .toArray(String[]::new);
+
+    HTTPServer server = new HTTPServer(20000);
+    return new Prom(server, labelNames, labelValues);
+  }
+
+  private record Prom(HTTPServer server, String[] labelNames, String[] labels)
+      implements Closeable {
+
+    @Override
+    public void close() throws IOException {
+      server.close();
+    }
+  }
+
   private record Report(
       String indexDescription,
       BuildSpec spec,
       Duration total,
       List<BuildPhase> phases,
-      Bytes size) {
+      List<MergePhase> merges,
+      Bytes size,
+      MemorySampler memory) {
 
     void write(Path reportsPath) throws Exception {
       var now = Instant.now().getEpochSecond();
@@ -84,23 +174,53 @@ public class BuildBench {
           reportsPath.resolve(
               String.format("%s-build-%s-%s", now, spec.dataset(), indexDescription));
       var data =
-          new String[] {
-            "v1",
-            indexDescription,
-            spec.dataset(),
-            spec.provider(),
-            spec.type(),
-            spec.buildString(),
-            Long.toString(total.toNanos()),
-            phases.stream()
-                .map(phase -> phase.description() + ":" + phase.duration().toNanos())
-                .collect(Collectors.joining("-")),
-            Long.toString(size.toBytes()),
-          };
+          new ArrayList<>(
+              List.of(
+                  "v2",
+                  indexDescription,
+                  spec.dataset(),
+                  spec.provider(),
+                  spec.type(),
+                  spec.buildString(),
+                  Long.toString(total.toNanos()),
+                  phases.stream()
+                      .map(phase -> phase.description() + ":" + phase.duration().toNanos())
+                      .collect(Collectors.joining("-")),
+                  Long.toString(size.toBytes()),
+                  phases.stream()
+                      .map(phase -> phase.description() + ":" + phase.docsPerSecond())
+                      .collect(Collectors.joining("-"))));
+      for (var peak : memory.peaks()) {
+        data.add(Long.toString(peak));
+      }
 
       try (var writer = Files.newBufferedWriter(path);
           var printer = new CSVPrinter(writer, CSVFormat.DEFAULT)) {
-        printer.printRecord((Object[]) data);
+        printer.printRecord(data);
+        printer.flush();
+      }
+
+      memory.writeTimeSeries(reportsPath.resolve(path.getFileName() + ".memory.csv"));
+      memory.writeResidency(reportsPath.resolve(path.getFileName() + ".residency.csv"));
+
+      if (merges.isEmpty()) {
+        return;
+      }
+
+      // One row per merge: start, duration, cpu and vector merge nanos, then the docs and bytes of
+      // each input segment.
+      var mergesPath = reportsPath.resolve(path.getFileName() + ".merges.csv");
+      try (var writer = Files.newBufferedWriter(mergesPath);
+          var printer = new CSVPrinter(writer, CSVFormat.DEFAULT)) {
+        for (var merge : merges) {
+          printer.printRecord(
+              merge.start().toNanos(),
+              merge.duration().toNanos(),
+              merge.cpu().toNanos(),
+              merge.vectors().toNanos(),
+              merge.inputDocs().stream().map(Object::toString).collect(Collectors.joining(":")),
+              merge.inputBytes().stream().map(Object::toString).collect(Collectors.joining(":")));
+        }
         printer.flush();
       }
     }
@@ -0,0 +1,424 @@
+package com.github.kevindrosendahl.javaannbench;
+
+import com.github.kevindrosendahl.javaannbench.dataset.Dataset;
+import com.github.kevindrosendahl.javaannbench.dataset.Datasets;
+import com.github.kevindrosendahl.javaannbench.dataset.Neighbors;
+import com.github.kevindrosendahl.javaannbench.dataset.SimilarityFunction;
+import com.github.kevindrosendahl.javaannbench.display.ProgressBar;
+import com.github.kevindrosendahl.javaannbench.index.Index;
+import com.github.kevindrosendahl.javaannbench.index.Index.Builder.MergePhase;
+import com.github.kevindrosendahl.javaannbench.index.LuceneIndex;
+import com.github.kevindrosendahl.javaannbench.util.Exceptions;
+import com.github.kevindrosendahl.javaannbench.util.TopK;
+import com.github.kevindrosendahl.javaannbench.util.VectorMath;
+import com.google.common.base.Preconditions;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ChurnBench deletes or updates a fraction of an existing Lucene index's documents and measures
+ * how query latency and recall degrade, and how much it costs to reclaim them.
+ *
+ * <p>Queries are run three times: against the index as built, once the churn is searchable, and
+ * once {@code forceMergeDeletes} has merged the deleted documents away. The last two are scored
+ * against ground truth recomputed for the documents that survive the churn. Updates replace a
+ * document's vector with the midpoint of it and another random train vector.
+ *
+ * <p>Nothing is committed, so the index on disk is unchanged once the run completes. Deleting and
+ * updating by id requires an index built with idPoints:true.
+ */
+public class ChurnBench {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ChurnBench.class);
+
+  enum Mode {
+    DELETE,
+    UPDATE;
+
+    static Mode parse(String mode) {
+      return switch (mode) {
+        case "delete" -> DELETE;
+        case "update" -> UPDATE;
+        default -> throw new RuntimeException("unexpected churn mode " + mode);
+      };
+    }
+  }
+
+  private record Churn(Mode mode, double fraction, int[] ids, float[][] replacements) {}
+
+  private record Phase(
+      String name,
+      QueryMetrics metrics,
+      Duration duration,
+      int deletedDocs,
+      Duration cost,
+      List<MergePhase> merges) {
+
+    double throughput() {
+      return metrics.count() / (duration.toNanos() / 1e9);
+    }
+  }
+
+  static void test(QuerySpec spec, Path datasetsPath, Path indexesPath, Path reportsPath)
+      throws Exception {
+    Preconditions.checkArgument(
+        spec.provider().equals("lucene"), "churn workloads require a lucene index");
+
+    var dataset = Datasets.load(datasetsPath, spec.dataset());
+    Preconditions.checkArgument(
+        dataset.groundTruth() != null,
+        "no ground truth for %s, run with --ground-truth to generate",
+        spec.dataset());
+
+    var runtime = spec.runtime();
+    var fraction = churnFraction(runtime).orElseThrow();
+    Preconditions.checkArgument(
+        fraction > 0 && fraction < 1, "churnFraction must be in (0, 1), got %s", fraction);
+    var queryThreads = QueryBench.queryThreads(runtime);
+    var k = spec.k();
+
+    var queries = new ArrayList<float[]>(dataset.test().size());
+    for (int i = 0; i < dataset.test().size(); i++) {
+      queries.add(dataset.test().vectorValue(i));
+    }
+
+    var churn = churn(dataset, churnMode(runtime), fraction, new Random(QueryBench.seed(runtime)));
+    var parameters =
+        new Index.Querier.Parameters(spec.provider(), spec.type(), spec.build(), spec.query());
+
+    try (var pool = new ForkJoinPool(queryThreads);
+        var writer =
+            LuceneIndex.Writer.create(
+                indexesPath.resolve(dataset.name()),
+                dataset.similarityFunction(),
+                dataset.dimensions(),
+                parameters,
+                null)) {
+      var churnedGroundTruth = groundTruth(dataset, queries, churn, k, pool);
+      var docs = writer.docs();
+      var phases = new ArrayList<Phase>(3);
+
+      phases.add(
+          measure(
+              "baseline",
+              spec,
+              writer,
+              queries,
+              dataset.groundTruth(),
+              pool,
+              writer.deletedDocs(),
+              Duration.ZERO,
+              List.of()));
+
+      LOGGER.info(
+          "{} {} documents", churn.mode == Mode.DELETE ? "deleting" : "updating", churn.ids.length);
+      var churnStart = System.nanoTime();
+      switch (churn.mode) {
+        case DELETE -> writer.delete(churn.ids);
+        case UPDATE -> pool.submit(
+                () ->
+                    IntStream.range(0, churn.ids.length)
+                        .parallel()
+                        .forEach(
+                            i ->
+                                Exceptions.wrap(
+                                    () -> writer.update(churn.ids[i], churn.replacements[i]))))
+            .join();
+      }
+      writer.refresh();
+      var churnCost = Duration.ofNanos(System.nanoTime() - churnStart);
+
+      var expectedDocs = docs - (churn.mode == Mode.DELETE ? churn.ids.length : 0);
+      Preconditions.checkState(
+          writer.docs() == expectedDocs,
+          "expected %s live documents after churn but found %s",
+          expectedDocs,
+          writer.docs());
+      var deletedDocs = writer.deletedDocs();
+      phases.add(
+          measure(
+              "churned",
+              spec,
+              writer,
+              queries,
+              churnedGroundTruth,
+              pool,
+              deletedDocs,
+              churnCost,
+              List.of()));
+
+      LOGGER.info("merging away {} deleted documents", deletedDocs);
+      var mergeStart = System.nanoTime();
+      var merges = writer.forceMergeDeletes();
+      writer.refresh();
+      var mergeCost = Duration.ofNanos(System.nanoTime() - mergeStart);
+      phases.add(
+          measure(
+              "merged",
+              spec,
+              writer,
+              queries,
+              churnedGroundTruth,
+              pool,
+              writer.deletedDocs(),
+              mergeCost,
+              merges));
+
+      for (var phase : phases) {
+        var latencies = phase.metrics.latencies();
+        LOGGER.info(
+            "{}: deleted docs {}, recall {}, p50 {}, p99 {}, throughput {} queries/s, cost {}",
+            phase.name,
+            phase.deletedDocs,
+            phase.metrics.meanRecall(),
+            Duration.ofNanos(latencies.getValueAtPercentile(50)),
+            Duration.ofNanos(latencies.getValueAtPercentile(99)),
+            phase.throughput(),
+            phase.cost);
+      }
+      LOGGER.info(
+          "reclaiming deletes ran {} merges using {} of cpu",
+          merges.size(),
+          merges.stream().map(MergePhase::cpu).reduce(Duration.ZERO, Duration::plus));
+
+      write(spec, writer.description(), churn, phases, reportsPath);
+    }
+  }
+
+  /** Picks the ids to churn, and the vectors to replace them with if updating. */
+  private static Churn churn(Dataset dataset, Mode mode, double fraction, Random random) {
+    var train = dataset.train();
+    var size = train.size();
+    var count = (int) Math.round(fraction * size);
+    Preconditions.checkArgument(count > 0, "churnFraction %s churns no documents", fraction);
+
+    var ordinals = new int[size];
+    for (int i = 0; i < size; i++) {
+      ordinals[i] = i;
+    }
+    for (int i = 0; i < count; i++) {
+      var j = i + random.nextInt(size - i);
+      var swap = ordinals[i];
+      ordinals[i] = ordinals[j];
+      ordinals[j] = swap;
+    }
+    var ids = Arrays.copyOf(ordinals, count);
+    Arrays.sort(ids);
+
+    if (mode == Mode.DELETE) {
+      return new Churn(mode, fraction, ids, null);
+    }
+
+    var replacements = new float[count][];
+    var other = new float[train.dimension()];
+    for (int i = 0; i < count; i++) {
+      var vector = train.vectorValue(ids[i]);
+      train.vectorValue(random.nextInt(size), other);
+      for (int d = 0; d < vector.length; d++) {
+        vector[d] = (vector[d] + other[d]) / 2;
+      }
+      if (dataset.similarityFunction() == SimilarityFunction.DOT_PRODUCT) {
+        var norm = (float) Math.sqrt(VectorMath.dotProduct(vector, vector));
+        for (int d = 0; d < vector.length; d++) {
+          vector[d] /= norm;
+        }
+      }
+      replacements[i] = vector;
+    }
+    return new Churn(mode, fraction, ids, replacements);
+  }
+
+  /**
+   * Returns the exact top k of the churned index for each query.
+   *
+   * <p>The original ground truth's unchurned ids are still the best unchurned documents, so when at
+   * least k of them remain only the replacement vectors need to be scored. Otherwise every
+   * surviving train vector is scanned.
+   */
+  private static Neighbors groundTruth(
+      Dataset dataset, List<float[]> queries, Churn churn, int k, ForkJoinPool pool) {
+    var train = dataset.train();
+    var similarity = dataset.similarityFunction();
+    var churned = new boolean[train.size()];
+    for (var id : churn.ids) {
+      churned[id] = true;
+    }
+
+    var results = new int[queries.size()][];
+    var scans = new LongAdder();
+    try (var progress = ProgressBar.create("churned ground truth", queries.size())) {
+      pool.submit(
+              () ->
+                  IntStream.range(0, queries.size())
+                      .parallel()
+                      .forEach(
+                          q -> {
+                            var query = queries.get(q);
+                            var original = dataset.groundTruth();
+                            var heap = new TopK(k);
+
+                            int unchurned = 0;
+                            for (int i = 0; i < original.count(q); i++) {
+                              var id = original.id(q, i);
+                              if (!churned[id] && unchurned++ < k) {
+                                heap.insert(id, train.score(similarity, query, id));
+                              }
+                            }
+
+                            if (unchurned < k && original.count(q) < train.size()) {
+                              scans.increment();
+                              heap.clear();
+                              for (int ord = 0; ord < train.size(); ord++) {
+                                if (!churned[ord]) {
+                                  heap.insert(ord, train.score(similarity, query, ord));
+                                }
+                              }
+                            }
+
+                            if (churn.replacements != null) {
+                              for (int i = 0; i < churn.ids.length; i++) {
+                                heap.insert(
+                                    churn.ids[i],
+                                    VectorMath.score(similarity, query, churn.replacements[i]));
+                              }
+                            }
+
+                            results[q] = new int[heap.size()];
+                            heap.drain(results[q], null);
+                            progress.inc();
+                          }))
+          .join();
+    }
+
+    if (scans.sum() > 0) {
+      LOGGER.info("scanned the train set for {} queries with too few surviving neighbors", scans);
+    }
+    return Neighbors.of(results);
+  }
+
+  private static Phase measure(
+      String name,
+      QuerySpec spec,
+      Index.Querier index,
+      List<float[]> queries,
+      Neighbors groundTruths,
+      ForkJoinPool pool,
+      int deletedDocs,
+      Duration cost,
+      List<MergePhase> merges)
+      throws Exception {
+    var runtime = spec.runtime();
+    var executor = QueryBench.executor(runtime);
+    var maxInFlight = QueryBench.maxInFlight(runtime);
+    var warmup = QueryBench.warmup(runtime);
+    var test = QueryBench.test(runtime);
+    var numQueries = queries.size();
+    var k = spec.k();
+
+    var warmedUp = new LongAdder();
+    try (var progress = ProgressBar.create("warmup " + name, warmup * numQueries);
+        var sampler = MetricsSampler.start(() -> progress.incTo((int) warmedUp.sum()))) {
+      QueryBench.runQueries(
+          executor,
+          pool,
+          maxInFlight,
+          warmup,
+          numQueries,
+          (i, j) -> {
+            index.query(queries.get(j), k, true);
+            warmedUp.increment();
+          });
+    }
+
+    var metrics = new QueryMetrics(test, numQueries);
+    var start = System.nanoTime();
+    try (var progress = ProgressBar.create("testing " + name, test * numQueries);
+        var sampler = MetricsSampler.start(() -> progress.incTo((int) metrics.completed()))) {
+      QueryBench.runQueries(
+          executor,
+          pool,
+          maxInFlight,
+          test,
+          numQueries,
+          (i, j) -> {
+            var queryStart = System.nanoTime();
+            var ids = index.query(queries.get(j), k, true);
+            var latency = System.nanoTime() - queryStart;
+            metrics.record(
+                i, j, queryStart, latency, -1, -1, groundTruths.recall(j, ids, k));
+          });
+    }
+    var duration = Duration.ofNanos(System.nanoTime() - start);
+    metrics.finish();
+
+    return new Phase(name, metrics, duration, deletedDocs, cost, merges);
+  }
+
+  private static void write(
+      QuerySpec spec, String indexDescription, Churn churn, List<Phase> phases, Path reportsPath)
+      throws Exception {
+    var now = Instant.now().getEpochSecond();
+    var path =
+        reportsPath.resolve(String.format("%s-churn-%s-%s", now, spec.dataset(), indexDescription));
+
+    try (var writer = Files.newBufferedWriter(path);
+        var printer = new CSVPrinter(writer, CSVFormat.DEFAULT)) {
+      for (var phase : phases) {
+        var latencies = phase.metrics.latencies();
+        printer.printRecord(
+            "v1",
+            indexDescription,
+            spec.dataset(),
+            spec.provider(),
+            spec.type(),
+            spec.buildString(),
+            spec.queryString(),
+            spec.runtimeString(),
+            churn.mode.name().toLowerCase(),
+            churn.fraction,
+            churn.ids.length,
+            phase.name,
+            phase.deletedDocs,
+            phase.metrics.meanRecall(),
+            phase.throughput(),
+            (long) latencies.getMean(),
+            latencies.getValueAtPercentile(50),
+            latencies.getValueAtPercentile(99),
+            latencies.getMaxValue(),
+            phase.cost.toNanos(),
+            phase.merges.size(),
+            phase.merges.stream().map(MergePhase::cpu).mapToLong(Duration::toNanos).sum(),
+            phase.merges.stream()
+                .flatMap(merge -> merge.inputBytes().stream())
+                .mapToLong(Long::longValue)
+                .sum());
+      }
+      printer.flush();
+    }
+
+    LOGGER.info("wrote churn report to {}", path);
+  }
+
+  static Optional<Double> churnFraction(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("churnFraction")).map(Double::parseDouble);
+  }
+
+  private static Mode churnMode(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("churnMode")).map(Mode::parse).orElse(Mode.DELETE);
+  }
+}
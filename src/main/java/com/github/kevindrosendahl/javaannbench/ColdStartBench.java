@@ -0,0 +1,304 @@
+package com.github.kevindrosendahl.javaannbench;
+
+import com.github.kevindrosendahl.javaannbench.dataset.Datasets;
+import com.github.kevindrosendahl.javaannbench.index.Index;
+import com.github.kevindrosendahl.javaannbench.util.Bytes;
+import com.github.kevindrosendahl.javaannbench.util.Fadvise;
+import com.github.kevindrosendahl.javaannbench.util.Mincore;
+import com.google.common.base.Preconditions;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ColdStartBench measures how long an index takes to become usable after a restart with an empty
+ * page cache: how long it takes to open, and how query latency falls as the queries fault the
+ * index back in.
+ *
+ * <p>The index's and the dataset's files are evicted from the page cache in process with
+ * posix_fadvise, which needs no root, unlike dropping every cache on the host. Queries are then
+ * run one at a time, in windows, until the median latency of {@value #STABLE_WINDOWS} consecutive
+ * windows has each stayed within a tolerance of the window before it. The index is considered warm
+ * from the first of those windows.
+ *
+ * <p>How much of the index is resident is measured after the first window, every
+ * coldStartResidencyInterval windows after it and the last, rather than after every window, since
+ * mincore walks every page of every file in the index.
+ */
+public class ColdStartBench {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ColdStartBench.class);
+
+  private static final int STABLE_WINDOWS = 3;
+  private static final int DEFAULT_WINDOW = 50;
+  private static final double DEFAULT_TOLERANCE = 0.1;
+  private static final int DEFAULT_MAX_QUERIES = 100_000;
+  private static final int DEFAULT_RESIDENCY_INTERVAL = 20;
+
+  /**
+   * @param medianNanos the median latency of the window's queries
+   * @param resident the bytes of the index in the page cache once the window completed, or null
+   *     if it was not measured after this window
+   */
+  record Window(int start, long medianNanos, Bytes resident) {}
+
+  /**
+   * @param latencies the latency of every query run, in order
+   * @param warmQueries how many queries ran before the index was warm, or -1 if latency did not
+   *     stabilize within coldStartMaxQueries
+   * @param warmNanos the total latency of the queries before the index was warm
+   */
+  record Curve(long[] latencies, List<Window> windows, int warmQueries, long warmNanos) {}
+
+  static void test(QuerySpec spec, Path datasetsPath, Path indexesPath, Path reportsPath)
+      throws Exception {
+    var runtime = spec.runtime();
+    var window = window(runtime);
+    var tolerance = tolerance(runtime);
+    var maxQueries = maxQueries(runtime);
+    var residencyInterval = residencyInterval(runtime);
+    Preconditions.checkArgument(window > 0, "coldStartWindow must be positive");
+    Preconditions.checkArgument(
+        residencyInterval > 0, "coldStartResidencyInterval must be positive");
+    Preconditions.checkArgument(
+        maxQueries >= window * (STABLE_WINDOWS + 1),
+        "coldStartMaxQueries must allow at least %s windows",
+        STABLE_WINDOWS + 1);
+
+    var dataset = Datasets.load(datasetsPath, spec.dataset());
+    var queries = new ArrayList<float[]>(dataset.test().size());
+    for (int i = 0; i < dataset.test().size(); i++) {
+      queries.add(dataset.test().vectorValue(i));
+    }
+
+    var indexPath = indexesPath.resolve(dataset.name());
+    evict(datasetsPath.resolve(spec.dataset()));
+    evict(indexPath);
+
+    var openStart = System.nanoTime();
+    try (var index =
+        Index.Querier.fromParameters(
+            dataset, indexesPath, spec.provider(), spec.type(), spec.build(), spec.query())) {
+      var open = Duration.ofNanos(System.nanoTime() - openStart);
+      var footprint = index.footprint();
+      LOGGER.info(
+          "opened {} in {}, {} of it resident",
+          index.description(),
+          open,
+          footprint == null ? "none" : footprint.resident());
+
+      var curve = run(index, queries, spec.k(), window, tolerance, maxQueries, residencyInterval);
+
+      LOGGER.info("completed cold start test for {}:", index.description());
+      LOGGER.info("\topen duration {}", open);
+      for (var phase : index.openPhases()) {
+        LOGGER.info("\t\t{} duration {}", phase.description(), phase.duration());
+      }
+      LOGGER.info("\tfirst query duration {}", Duration.ofNanos(curve.latencies[0]));
+      if (curve.warmQueries < 0) {
+        LOGGER.info(
+            "\tlatency did not stabilize within {} queries, last window median {}",
+            curve.latencies.length,
+            Duration.ofNanos(curve.windows.getLast().medianNanos()));
+      } else {
+        LOGGER.info(
+            "\twarm after {} queries taking {}, warm median {}",
+            curve.warmQueries,
+            Duration.ofNanos(curve.warmNanos),
+            Duration.ofNanos(curve.windows.getLast().medianNanos()));
+      }
+      if (footprint != null) {
+        LOGGER.info(
+            "\tindex size {}, {} resident in page cache once warm",
+            footprint.size(),
+            curve.windows.getLast().resident());
+      }
+
+      new Report(index.description(), spec, open, index.openPhases(), curve).write(reportsPath);
+    }
+  }
+
+  /** Evicts the directory's files from the page cache, and logs how much of them remains. */
+  private static void evict(Path directory) throws IOException {
+    if (!Files.exists(directory)) {
+      return;
+    }
+
+    Fadvise.adviseUnder(directory, Fadvise.Advice.DONTNEED);
+    var resident = Mincore.residentUnder(directory);
+    if (resident.toBytes() > 0) {
+      // Dirty pages and pages another process has mapped are not evicted.
+      LOGGER.warn("{} of {} is still resident after evicting it", resident, directory);
+    } else {
+      LOGGER.info("evicted {} from the page cache", directory);
+    }
+  }
+
+  private static Curve run(
+      Index.Querier index,
+      List<float[]> queries,
+      int k,
+      int window,
+      double tolerance,
+      int maxQueries,
+      int residencyInterval)
+      throws IOException {
+    var latencies = new long[maxQueries];
+    var windowLatencies = new long[window];
+    var windows = new ArrayList<Window>();
+    int stable = 0;
+    int count = 0;
+
+    while (count + window <= maxQueries) {
+      var start = count;
+      for (int i = 0; i < window; i++, count++) {
+        var query = queries.get(count % queries.size());
+        var queryStart = System.nanoTime();
+        index.query(query, k, true);
+        latencies[count] = System.nanoTime() - queryStart;
+      }
+
+      System.arraycopy(latencies, start, windowLatencies, 0, window);
+      Arrays.sort(windowLatencies);
+      var median = windowLatencies[window / 2];
+      var measure = windows.size() % residencyInterval == 0;
+      windows.add(new Window(start, median, measure ? resident(index) : null));
+
+      if (windows.size() > 1) {
+        var previous = windows.get(windows.size() - 2).medianNanos();
+        stable = Math.abs(median - previous) <= tolerance * previous ? stable + 1 : 0;
+      }
+      if (stable == STABLE_WINDOWS) {
+        var warmQueries = windows.get(windows.size() - 1 - STABLE_WINDOWS).start();
+        var warmNanos = Arrays.stream(latencies, 0, warmQueries).sum();
+        measureLast(index, windows);
+        return new Curve(Arrays.copyOf(latencies, count), windows, warmQueries, warmNanos);
+      }
+    }
+
+    measureLast(index, windows);
+    return new Curve(Arrays.copyOf(latencies, count), windows, -1, -1);
+  }
+
+  /** Returns how much of the index is in the page cache, or null if it has no files. */
+  private static Bytes resident(Index.Querier index) throws IOException {
+    var footprint = index.footprint();
+    return footprint == null ? null : footprint.resident();
+  }
+
+  /** Measures the residency after the last window, if the interval skipped it. */
+  private static void measureLast(Index.Querier index, List<Window> windows) throws IOException {
+    var last = windows.getLast();
+    if (last.resident() == null) {
+      var measured = new Window(last.start(), last.medianNanos(), resident(index));
+      windows.set(windows.size() - 1, measured);
+    }
+  }
+
+  private record Report(
+      String indexDescription,
+      QuerySpec spec,
+      Duration open,
+      List<Index.Querier.OpenPhase> openPhases,
+      Curve curve) {
+
+    void write(Path reportsPath) throws Exception {
+      var now = Instant.now().getEpochSecond();
+      var name = String.format("%s-cold-start-%s-%s", now, spec.dataset(), indexDescription);
+      var path = reportsPath.resolve(name);
+      var last = curve.windows.getLast();
+
+      try (var writer = Files.newBufferedWriter(path);
+          var printer = new CSVPrinter(writer, CSVFormat.DEFAULT)) {
+        printer.printRecord(
+            "v1",
+            indexDescription,
+            spec.dataset(),
+            spec.provider(),
+            spec.type(),
+            spec.buildString(),
+            spec.queryString(),
+            spec.runtimeString(),
+            Long.toString(open.toNanos()),
+            Long.toString(curve.latencies[0]),
+            Integer.toString(curve.warmQueries),
+            Long.toString(curve.warmNanos),
+            Long.toString(last.medianNanos()),
+            Integer.toString(curve.latencies.length));
+        printer.flush();
+      }
+
+      // One row per step of opening the index: its description and duration nanos.
+      try (var writer = Files.newBufferedWriter(reportsPath.resolve(name + ".open.csv"));
+          var printer = new CSVPrinter(writer, CSVFormat.DEFAULT)) {
+        for (var phase : openPhases) {
+          printer.printRecord(phase.description(), phase.duration().toNanos());
+        }
+        printer.flush();
+      }
+
+      // One row per window: its first query, median latency nanos and the resident index bytes,
+      // or -1 where residency was not measured.
+      try (var writer = Files.newBufferedWriter(reportsPath.resolve(name + ".windows.csv"));
+          var printer = new CSVPrinter(writer, CSVFormat.DEFAULT)) {
+        for (var window : curve.windows) {
+          printer.printRecord(
+              window.start(),
+              window.medianNanos(),
+              window.resident() == null ? -1 : window.resident().toBytes());
+        }
+        printer.flush();
+      }
+
+      // One row per query, in the order they ran: the query's latency nanos.
+      try (var writer = Files.newBufferedWriter(reportsPath.resolve(name + ".latencies.csv"));
+          var printer = new CSVPrinter(writer, CSVFormat.DEFAULT)) {
+        for (var latency : curve.latencies) {
+          printer.printRecord(latency);
+        }
+        printer.flush();
+      }
+
+      LOGGER.info("wrote cold start report to {}", path);
+    }
+  }
+
+  static boolean coldStart(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("coldStart")).map(Boolean::parseBoolean).orElse(false);
+  }
+
+  private static int window(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("coldStartWindow"))
+        .map(Integer::parseInt)
+        .orElse(DEFAULT_WINDOW);
+  }
+
+  private static double tolerance(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("coldStartTolerance"))
+        .map(Double::parseDouble)
+        .orElse(DEFAULT_TOLERANCE);
+  }
+
+  private static int residencyInterval(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("coldStartResidencyInterval"))
+        .map(Integer::parseInt)
+        .orElse(DEFAULT_RESIDENCY_INTERVAL);
+  }
+
+  private static int maxQueries(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("coldStartMaxQueries"))
+        .map(Integer::parseInt)
+        .orElse(DEFAULT_MAX_QUERIES);
+  }
+}
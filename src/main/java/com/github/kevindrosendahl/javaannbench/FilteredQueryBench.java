@@ -0,0 +1,265 @@
+package com.github.kevindrosendahl.javaannbench;
+
+import com.github.kevindrosendahl.javaannbench.dataset.Dataset;
+import com.github.kevindrosendahl.javaannbench.dataset.GroundTruth;
+import com.github.kevindrosendahl.javaannbench.dataset.Neighbors;
+import com.github.kevindrosendahl.javaannbench.display.ProgressBar;
+import com.github.kevindrosendahl.javaannbench.index.Attributes;
+import com.github.kevindrosendahl.javaannbench.index.Index;
+import com.google.common.base.Preconditions;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * FilteredQueryBench measures filtered query latency and recall for each of the selectivities
+ * listed in the {@code filterSelectivities} runtime parameter.
+ *
+ * <p>Queries are filtered on the {@link Attributes} field named by {@code filterField}, which the
+ * index must have been built with. For each selectivity, each query is given a filter of
+ * consecutive values starting from a random one, adding values until the filter matches at least
+ * that fraction of the train set. Recall is computed against the exact top k of the matching train
+ * vectors. Where the querier tracks it, the report also counts how often the index fell back to
+ * scoring every matching document instead of searching its graph.
+ */
+public class FilteredQueryBench {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(FilteredQueryBench.class);
+
+  /**
+   * Query q's filter accepts the {@code lengths[q]} values from {@code starts[q]} on, wrapping
+   * around at {@code cardinality}.
+   */
+  private record Filters(
+      Index.Querier.Filter[] filters,
+      int[] starts,
+      int[] lengths,
+      int cardinality,
+      double selectivity) {
+
+    boolean accepts(int q, int value) {
+      return Math.floorMod(value - starts[q], cardinality) < lengths[q];
+    }
+  }
+
+  private record Result(
+      double targetSelectivity,
+      double selectivity,
+      QueryMetrics metrics,
+      Duration duration,
+      long exactSearches) {
+
+    double throughput() {
+      return metrics.count() / (duration.toNanos() / 1e9);
+    }
+  }
+
+  static void test(
+      QuerySpec spec,
+      Dataset dataset,
+      Index.Querier index,
+      List<float[]> queries,
+      List<Double> selectivities,
+      ForkJoinPool pool,
+      Path reportsPath)
+      throws Exception {
+    var runtime = spec.runtime();
+    var executor = QueryBench.executor(runtime);
+    var maxInFlight = QueryBench.maxInFlight(runtime);
+    var warmup = QueryBench.warmup(runtime);
+    var test = QueryBench.test(runtime);
+    var numQueries = queries.size();
+    var k = spec.k();
+
+    var field = filterField(runtime);
+    var attributes = Attributes.parse(spec.build());
+    var cardinality = attributes.cardinality(field);
+    Preconditions.checkArgument(
+        cardinality > 0, "index was not built with %s attributes, set %ss", field, field);
+
+    var train = dataset.train();
+    var values = new int[train.size()];
+    var counts = new long[cardinality];
+    for (int ord = 0; ord < train.size(); ord++) {
+      values[ord] = attributes.value(field, ord);
+      counts[values[ord]]++;
+    }
+
+    var queryArray = queries.toArray(float[][]::new);
+    var random = new Random(QueryBench.seed(runtime));
+    var results = new ArrayList<Result>(selectivities.size());
+    for (var target : selectivities) {
+      Preconditions.checkArgument(
+          target > 0 && target <= 1, "filter selectivities must be in (0, 1], got %s", target);
+      var filters = filters(field, counts, train.size(), numQueries, target, random);
+
+      Neighbors groundTruths;
+      try (var progress = ProgressBar.create("ground truth " + target, train.size())) {
+        groundTruths =
+            Neighbors.of(
+                GroundTruth.compute(
+                    train,
+                    queryArray,
+                    dataset.similarityFunction(),
+                    k,
+                    Runtime.getRuntime().availableProcessors(),
+                    progress,
+                    (q, ord) -> filters.accepts(q, values[ord])));
+      }
+
+      var warmedUp = new LongAdder();
+      try (var progress = ProgressBar.create("warmup " + target, warmup * numQueries);
+          var sampler = MetricsSampler.start(() -> progress.incTo((int) warmedUp.sum()))) {
+        QueryBench.runQueries(
+            executor,
+            pool,
+            maxInFlight,
+            warmup,
+            numQueries,
+            (i, j) -> {
+              index.query(queries.get(j), k, true, filters.filters[j]);
+              warmedUp.increment();
+            });
+      }
+
+      var metrics = new QueryMetrics(test, numQueries);
+      var exactSearchesStart = index.exactSearches();
+      var start = System.nanoTime();
+      try (var progress = ProgressBar.create("testing " + target, test * numQueries);
+          var sampler = MetricsSampler.start(() -> progress.incTo((int) metrics.completed()))) {
+        QueryBench.runQueries(
+            executor,
+            pool,
+            maxInFlight,
+            test,
+            numQueries,
+            (i, j) -> {
+              var queryStart = System.nanoTime();
+              var ids = index.query(queries.get(j), k, true, filters.filters[j]);
+              var latency = System.nanoTime() - queryStart;
+              metrics.record(
+                  i, j, queryStart, latency, -1, -1, groundTruths.recall(j, ids, k));
+            });
+      }
+      var duration = Duration.ofNanos(System.nanoTime() - start);
+      var exactSearches =
+          exactSearchesStart < 0 ? -1 : index.exactSearches() - exactSearchesStart;
+      metrics.finish();
+
+      var result = new Result(target, filters.selectivity, metrics, duration, exactSearches);
+      LOGGER.info(
+          "selectivity {} ({} actual): recall {}, p50 {}, p99 {}, throughput {} queries/s, {} exact"
+              + " searches",
+          target,
+          filters.selectivity,
+          metrics.meanRecall(),
+          Duration.ofNanos(metrics.latencies().getValueAtPercentile(50)),
+          Duration.ofNanos(metrics.latencies().getValueAtPercentile(99)),
+          result.throughput(),
+          exactSearches);
+      results.add(result);
+    }
+
+    write(spec, index.description(), field, results, reportsPath);
+  }
+
+  /**
+   * Builds a filter per query of consecutive values, starting from a random one, that together
+   * match at least {@code target} of the train set.
+   */
+  private static Filters filters(
+      String field, long[] counts, int trainSize, int numQueries, double target, Random random) {
+    var filters = new Index.Querier.Filter[numQueries];
+    var starts = new int[numQueries];
+    var lengths = new int[numQueries];
+    var needed = (long) Math.ceil(target * trainSize);
+    double selectivity = 0;
+
+    for (int q = 0; q < numQueries; q++) {
+      var start = random.nextInt(counts.length);
+      var filterValues = new ArrayList<Integer>();
+      long matched = 0;
+      for (int i = 0; i < counts.length && matched < needed; i++) {
+        var value = (start + i) % counts.length;
+        filterValues.add(value);
+        matched += counts[value];
+      }
+      starts[q] = start;
+      lengths[q] = filterValues.size();
+      filters[q] =
+          new Index.Querier.Filter(
+              field, filterValues.stream().mapToInt(Integer::intValue).toArray());
+      selectivity += (double) matched / trainSize;
+    }
+
+    return new Filters(filters, starts, lengths, counts.length, selectivity / numQueries);
+  }
+
+  private static void write(
+      QuerySpec spec, String indexDescription, String field, List<Result> results, Path reportsPath)
+      throws Exception {
+    var now = Instant.now().getEpochSecond();
+    var path =
+        reportsPath.resolve(
+            String.format("%s-filtered-%s-%s", now, spec.dataset(), indexDescription));
+
+    try (var writer = Files.newBufferedWriter(path);
+        var printer = new CSVPrinter(writer, CSVFormat.DEFAULT)) {
+      for (var result : results) {
+        var latencies = result.metrics.latencies();
+        printer.printRecord(
+            "v1",
+            indexDescription,
+            spec.dataset(),
+            spec.provider(),
+            spec.type(),
+            spec.buildString(),
+            spec.queryString(),
+            spec.runtimeString(),
+            field,
+            result.targetSelectivity,
+            result.selectivity,
+            result.metrics.meanRecall(),
+            result.throughput(),
+            (long) latencies.getMean(),
+            latencies.getValueAtPercentile(50),
+            latencies.getValueAtPercentile(90),
+            latencies.getValueAtPercentile(99),
+            latencies.getMaxValue(),
+            result.exactSearches,
+            result.exactSearches < 0 ? -1 : (double) result.exactSearches / result.metrics.count());
+      }
+      printer.flush();
+    }
+
+    LOGGER.info("wrote filtered report to {}", path);
+  }
+
+  static List<Double> selectivities(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("filterSelectivities"))
+        .map(
+            selectivities ->
+                Arrays.stream(selectivities.split(","))
+                    .map(String::trim)
+                    .map(Double::parseDouble)
+                    .toList())
+        .orElse(List.of());
+  }
+
+  private static String filterField(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("filterField")).orElse(Attributes.CATEGORY_FIELD);
+  }
+}
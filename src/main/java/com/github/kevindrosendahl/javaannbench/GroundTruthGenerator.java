@@ -0,0 +1,89 @@
+package com.github.kevindrosendahl.javaannbench;
+
+import com.github.kevindrosendahl.javaannbench.dataset.Datasets;
+import com.github.kevindrosendahl.javaannbench.dataset.GroundTruth;
+import com.github.kevindrosendahl.javaannbench.dataset.IVecs;
+import com.github.kevindrosendahl.javaannbench.display.ProgressBar;
+import com.google.common.base.Preconditions;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * GroundTruthGenerator computes the exact top {@link GroundTruth#DEFAULT_K} neighbors for the
+ * queries a {@link QuerySpec} would run, and writes them next to the dataset.
+ *
+ * <p>With {@code testOnTrain}, the same train vectors {@link QueryBench} samples are used as
+ * queries, which allows recall to be collected for those runs.
+ */
+public class GroundTruthGenerator {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(GroundTruthGenerator.class);
+
+  public static void generate(QuerySpec spec, Path datasetsPath) throws Exception {
+    var dataset = Datasets.load(datasetsPath, spec.dataset());
+    var testOnTrain = QueryBench.testOnTrain(spec.runtime());
+    var numThreads = groundTruthThreads(spec.runtime());
+
+    Path path;
+    float[][] queries;
+    if (testOnTrain) {
+      var seed = QueryBench.seed(spec.runtime());
+      var numQueries = QueryBench.trainTestQueries(spec.runtime());
+      path = Datasets.trainNeighborsPath(datasetsPath, spec.dataset(), seed, numQueries);
+
+      var ordinals =
+          GroundTruth.sampleTrainOrdinals(dataset.train().size(), numQueries, new Random(seed));
+      queries = new float[numQueries][];
+      for (int i = 0; i < numQueries; i++) {
+        queries[i] = dataset.train().vectorValue(ordinals[i]);
+      }
+    } else {
+      path = datasetsPath.resolve(spec.dataset()).resolve(Datasets.NEIGHBORS_FILE);
+      queries = new float[dataset.test().size()][];
+      for (int i = 0; i < queries.length; i++) {
+        queries[i] = dataset.test().vectorValue(i);
+      }
+    }
+
+    Preconditions.checkArgument(
+        !path.toFile().exists(),
+        "ground truth already exists at %s, delete it to regenerate",
+        path);
+
+    LOGGER.info(
+        "computing ground truth for {} queries against {} vectors using {} threads",
+        queries.length,
+        dataset.train().size(),
+        numThreads);
+
+    var start = Instant.now();
+    int[][] neighbors;
+    try (var progress = ProgressBar.create("ground truth", dataset.train().size())) {
+      neighbors =
+          GroundTruth.compute(
+              dataset.train(),
+              queries,
+              dataset.similarityFunction(),
+              GroundTruth.DEFAULT_K,
+              numThreads,
+              progress);
+    }
+    var end = Instant.now();
+
+    IVecs.write(path, neighbors);
+
+    LOGGER.info("wrote ground truth to {} in {}", path, Duration.between(start, end));
+  }
+
+  private static int groundTruthThreads(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("groundTruthThreads"))
+        .map(Integer::parseInt)
+        .orElse(Runtime.getRuntime().availableProcessors());
+  }
+}
@@ -0,0 +1,259 @@
+package com.github.kevindrosendahl.javaannbench;
+
+import com.github.kevindrosendahl.javaannbench.index.Index;
+import com.github.kevindrosendahl.javaannbench.util.Bytes;
+import com.github.kevindrosendahl.javaannbench.util.ProcessMemory;
+import io.prometheus.client.Gauge;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.slf4j.Logger;
+
+/**
+ * MemorySampler samples the process's memory and the index's page cache residency on a background
+ * thread while a benchmark runs, so that the memory a run needed can be read off its report rather
+ * than found by rerunning it under smaller memory limits.
+ *
+ * <p>Each sample is published to Prometheus, and kept so that the peaks and a time series can be
+ * written to the report once the run is done.
+ *
+ * <p>Residency is sampled before the run, on a much longer interval than the process's memory and
+ * once more when sampling stops, since measuring it maps and walks every page of every index file.
+ * Each memory sample records the most recent residency.
+ */
+final class MemorySampler implements Closeable {
+
+  private static final int DEFAULT_INTERVAL_MS = 1000;
+  private static final int DEFAULT_RESIDENCY_INTERVAL_MS = 30_000;
+
+  private final Index index;
+  private final long start = System.nanoTime();
+  private final List<long[]> samples = new ArrayList<>();
+  private final long[] peaks = new long[ProcessMemory.names().size() + 2];
+  private final Gauge processMemory;
+  private final Gauge indexSize;
+  private final Gauge indexResident;
+  private final String[] labelValues;
+  private MetricsSampler sampler;
+  private MetricsSampler residencySampler;
+  private Index.Footprint footprint;
+  private boolean stopped;
+
+  private MemorySampler(Index index, String[] labelNames, String[] labelValues) {
+    this.index = index;
+    this.labelValues = labelValues;
+    Arrays.fill(this.peaks, -1);
+
+    this.processMemory =
+        Gauge.build()
+            .labelNames(withLabel(labelNames, "kind"))
+            .name("process_memory_bytes")
+            .help("process memory by kind, -1 where it cannot be measured")
+            .register();
+    this.indexSize =
+        Gauge.build()
+            .labelNames(withLabel(labelNames, "extension"))
+            .name("index_size_bytes")
+            .help("size of the index's files by extension")
+            .register();
+    this.indexResident =
+        Gauge.build()
+            .labelNames(withLabel(labelNames, "extension"))
+            .name("index_resident_bytes")
+            .help("page cache residency of the index's files by extension")
+            .register();
+  }
+
+  /**
+   * Starts sampling the process's memory every {@code interval} and the index's residency every
+   * {@code residencyInterval}. The Prometheus gauges are labelled with {@code labelNames} and
+   * {@code labelValues} in addition to their own labels.
+   */
+  static MemorySampler start(
+      Index index,
+      Duration interval,
+      Duration residencyInterval,
+      String[] labelNames,
+      String[] labelValues) {
+    var memory = new MemorySampler(index, labelNames, labelValues);
+    memory.sampleResidency();
+    memory.residencySampler = MetricsSampler.start(residencyInterval, memory::sampleResidency);
+    memory.sampler = MetricsSampler.start(interval, memory::sample);
+    return memory;
+  }
+
+  private void sample() {
+    ProcessMemory memory;
+    try {
+      memory = ProcessMemory.sample();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+
+    var values = memory.values();
+    var names = ProcessMemory.names();
+    for (int i = 0; i < values.length; i++) {
+      processMemory.labels(withLabel(labelValues, names.get(i))).set(values[i]);
+    }
+
+    var elapsed = System.nanoTime() - start;
+    synchronized (this) {
+      var sample = Arrays.copyOf(values, values.length + 2);
+      sample[values.length] = footprint == null ? -1 : footprint.size().toBytes();
+      sample[values.length + 1] = footprint == null ? -1 : footprint.resident().toBytes();
+      for (int i = 0; i < sample.length; i++) {
+        peaks[i] = Math.max(peaks[i], sample[i]);
+      }
+      var row = new long[sample.length + 1];
+      row[0] = elapsed;
+      System.arraycopy(sample, 0, row, 1, sample.length);
+      samples.add(row);
+    }
+  }
+
+  private void sampleResidency() {
+    Index.Footprint footprint;
+    try {
+      footprint = index.footprint();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+
+    var sizes = new HashMap<String, Long>();
+    var resident = new HashMap<String, Long>();
+    if (footprint != null) {
+      for (var file : footprint.files()) {
+        sizes.merge(extension(file.name()), file.size().toBytes(), Long::sum);
+        resident.merge(extension(file.name()), file.resident().toBytes(), Long::sum);
+      }
+    }
+    sizes.forEach(
+        (extension, bytes) -> indexSize.labels(withLabel(labelValues, extension)).set(bytes));
+    resident.forEach(
+        (extension, bytes) -> indexResident.labels(withLabel(labelValues, extension)).set(bytes));
+
+    if (footprint != null) {
+      synchronized (this) {
+        this.footprint = footprint;
+      }
+    }
+  }
+
+  /** Returns the highest value each of {@link #columns()} reached, or -1 if it was not measured. */
+  synchronized long[] peaks() {
+    return peaks.clone();
+  }
+
+  /** Logs the peaks that matter most for sizing a machine to the run. */
+  void logPeaks(Logger logger) {
+    var peaks = peaks();
+    var columns = columns();
+    logger.info(
+        "\tpeak rss {}, pss {} ({} file backed), heap used {}, nmt off heap committed {}",
+        format(peaks[columns.indexOf("rss")]),
+        format(peaks[columns.indexOf("pss")]),
+        format(peaks[columns.indexOf("pss_file")]),
+        format(peaks[columns.indexOf("heap_used")]),
+        format(peaks[columns.indexOf("nmt_off_heap_committed")]));
+  }
+
+  /** The names of what is sampled, in the order of {@link #peaks()}. */
+  static List<String> columns() {
+    var columns = new ArrayList<>(ProcessMemory.names());
+    columns.add("index_size");
+    columns.add("index_resident");
+    return columns;
+  }
+
+  /** Writes every sample, with the nanos since sampling started, in bytes. */
+  synchronized void writeTimeSeries(Path path) throws IOException {
+    try (var writer = Files.newBufferedWriter(path);
+        var printer = new CSVPrinter(writer, CSVFormat.DEFAULT)) {
+      var header = new ArrayList<String>();
+      header.add("nanos");
+      header.addAll(columns());
+      printer.printRecord(header);
+      for (var row : samples) {
+        printer.printRecord(Arrays.stream(row).boxed().toList());
+      }
+      printer.flush();
+    }
+  }
+
+  /** Writes the size and page cache residency of each of the index's files in the last sample. */
+  synchronized void writeResidency(Path path) throws IOException {
+    if (footprint == null) {
+      return;
+    }
+
+    try (var writer = Files.newBufferedWriter(path);
+        var printer = new CSVPrinter(writer, CSVFormat.DEFAULT)) {
+      printer.printRecord("file", "size", "resident");
+      for (var file : footprint.files()) {
+        printer.printRecord(file.name(), file.size().toBytes(), file.resident().toBytes());
+      }
+      printer.flush();
+    }
+  }
+
+  /**
+   * Stops sampling, taking a last sample of residency and then of memory so that the report
+   * includes both as of the end of the run. Later calls do nothing.
+   */
+  void stop() {
+    synchronized (this) {
+      if (stopped) {
+        return;
+      }
+      stopped = true;
+    }
+    residencySampler.close();
+    sampler.close();
+  }
+
+  @Override
+  public void close() {
+    stop();
+  }
+
+  private static String format(long bytes) {
+    return bytes < 0 ? "unmeasured" : Bytes.ofBytes(bytes).toString();
+  }
+
+  // Lucene names files <segment>.<extension>, apart from segments_<generation> and write.lock.
+  private static String extension(String name) {
+    var dot = name.lastIndexOf('.');
+    return dot >= 0 ? name.substring(dot + 1) : name.split("_")[0];
+  }
+
+  static String[] withLabel(String[] labels, String label) {
+    var with = Arrays.copyOf(labels, labels.length + 1);
+    with[labels.length] = label;
+    return with;
+  }
+
+  static Duration interval(Map<String, String> runtime) {
+    return Duration.ofMillis(
+        Optional.ofNullable(runtime.get("memoryStatsIntervalMs"))
+            .map(Integer::parseInt)
+            .orElse(DEFAULT_INTERVAL_MS));
+  }
+
+  static Duration residencyInterval(Map<String, String> runtime) {
+    return Duration.ofMillis(
+        Optional.ofNullable(runtime.get("residencyStatsIntervalMs"))
+            .map(Integer::parseInt)
+            .orElse(DEFAULT_RESIDENCY_INTERVAL_MS));
+  }
+}
@@ -0,0 +1,65 @@
+package com.github.kevindrosendahl.javaannbench;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * MetricsSampler periodically runs a sample on a background thread, so that progress bars and
+ * Prometheus gauges can be updated from counters instead of by every query thread on every query.
+ *
+ * <p>The sample is run once more on close, so the final values are always published.
+ */
+final class MetricsSampler implements Closeable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(MetricsSampler.class);
+
+  static final Duration DEFAULT_INTERVAL = Duration.ofMillis(250);
+
+  private final ScheduledExecutorService executor;
+  private final Runnable sample;
+
+  private MetricsSampler(ScheduledExecutorService executor, Runnable sample) {
+    this.executor = executor;
+    this.sample = sample;
+  }
+
+  static MetricsSampler start(Runnable sample) {
+    return start(DEFAULT_INTERVAL, sample);
+  }
+
+  static MetricsSampler start(Duration interval, Runnable sample) {
+    var executor =
+        Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("metrics-sampler").daemon().factory());
+    var sampler = new MetricsSampler(executor, sample);
+    executor.scheduleAtFixedRate(
+        sampler::sample, interval.toNanos(), interval.toNanos(), TimeUnit.NANOSECONDS);
+    return sampler;
+  }
+
+  private void sample() {
+    try {
+      sample.run();
+    } catch (Exception e) {
+      LOGGER.error("caught exception sampling metrics", e);
+    }
+  }
+
+  @Override
+  public void close() {
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+        LOGGER.warn("timed out waiting for metrics sampler to stop");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    sample();
+  }
+}
@@ -0,0 +1,337 @@
+package com.github.kevindrosendahl.javaannbench;
+
+import com.github.kevindrosendahl.javaannbench.dataset.Datasets;
+import com.github.kevindrosendahl.javaannbench.display.ProgressBar;
+import com.github.kevindrosendahl.javaannbench.index.Index;
+import com.github.kevindrosendahl.javaannbench.index.LuceneIndex;
+import com.google.common.base.Preconditions;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.HdrHistogram.Histogram;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * MixedBench runs queries against an existing Lucene index while new vectors are added to it at a
+ * fixed rate and the searcher is refreshed on an interval, the way a live service does.
+ *
+ * <p>The added vectors are the train vectors again, in order, with ids following the train set's.
+ * Nothing is committed, so the index on disk is unchanged once the run completes. It reports query
+ * latency under the write load, how long each refresh took, and the freshness lag of every added
+ * vector: the time from it being added until a refresh made it searchable.
+ *
+ * <p>Every refresh flushes a segment, so the flushed segments are merged with a tiered merge policy
+ * regardless of the one the index was built with, as a service that runs all day would, unless
+ * mixedMergePolicy says otherwise. The number of segments left at the end is reported.
+ */
+public class MixedBench {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(MixedBench.class);
+
+  private static final int DEFAULT_DURATION_SECONDS = 60;
+  private static final int DEFAULT_REFRESH_INTERVAL_MS = 1000;
+  private static final String DEFAULT_MERGE_POLICY = "tiered";
+  private static final int SIGNIFICANT_DIGITS = 3;
+
+  static void test(QuerySpec spec, Path datasetsPath, Path indexesPath, Path reportsPath)
+      throws Exception {
+    Preconditions.checkArgument(
+        spec.provider().equals("lucene"), "mixed read/write workloads require a lucene index");
+
+    var dataset = Datasets.load(datasetsPath, spec.dataset());
+    var runtime = spec.runtime();
+    var writeRate = writeRate(runtime).orElseThrow();
+    var duration = Duration.ofSeconds(durationSeconds(runtime));
+    var refreshInterval = Duration.ofMillis(refreshIntervalMs(runtime));
+    var queryThreads = QueryBench.queryThreads(runtime);
+    var warmup = QueryBench.warmup(runtime);
+    var k = spec.k();
+    Preconditions.checkArgument(writeRate > 0, "writeRate must be positive");
+
+    var queries = new ArrayList<float[]>(dataset.test().size());
+    for (int i = 0; i < dataset.test().size(); i++) {
+      queries.add(dataset.test().vectorValue(i));
+    }
+
+    var parameters =
+        new Index.Querier.Parameters(spec.provider(), spec.type(), spec.build(), spec.query());
+    try (var writer =
+        LuceneIndex.Writer.create(
+            indexesPath.resolve(dataset.name()),
+            dataset.similarityFunction(),
+            dataset.dimensions(),
+            parameters,
+            mergePolicy(runtime))) {
+
+      var warmedUp = new LongAdder();
+      try (var pool = new ForkJoinPool(queryThreads);
+          var progress = ProgressBar.create("warmup", warmup * queries.size());
+          var sampler = MetricsSampler.start(() -> progress.incTo((int) warmedUp.sum()))) {
+        QueryBench.runQueries(
+            QueryBench.QueryExecutor.FORK_JOIN,
+            pool,
+            queryThreads,
+            warmup,
+            queries.size(),
+            (i, j) -> {
+              writer.query(queries.get(j), k, false);
+              warmedUp.increment();
+            });
+      }
+
+      LOGGER.info(
+          "running queries on {} threads while adding {} vectors/s and refreshing every {} for {}",
+          queryThreads,
+          writeRate,
+          refreshInterval,
+          duration);
+
+      var trainSize = dataset.train().size();
+      var maxAdds = Math.toIntExact((long) Math.ceil(writeRate * duration.toSeconds()) + 1);
+      var addNanos = new long[maxAdds];
+      var added = new AtomicInteger();
+      var stop = new AtomicBoolean();
+      var failure = new AtomicReference<Throwable>();
+
+      var queryLatencies = new Histogram[queryThreads];
+      var refreshLatencies = new Histogram(SIGNIFICANT_DIGITS);
+      var freshnessLags = new Histogram(SIGNIFICANT_DIGITS);
+      var threads = new ArrayList<Thread>();
+
+      var start = System.nanoTime();
+      var end = start + duration.toNanos();
+
+      threads.add(
+          Thread.ofPlatform()
+              .name("mixed-writer")
+              .start(
+                  guard(
+                      failure,
+                      () -> {
+                        var vector = new float[dataset.dimensions()];
+                        var interval = 1_000_000_000d / writeRate;
+                        for (int n = 0; n < maxAdds && !stop.get(); n++) {
+                          var scheduled = start + (long) (n * interval);
+                          if (scheduled >= end) {
+                            return;
+                          }
+                          OpenLoopBench.waitUntil(scheduled);
+
+                          dataset.train().vectorValue(n % trainSize, vector);
+                          addNanos[n] = System.nanoTime();
+                          writer.add(trainSize + n, vector);
+                          added.set(n + 1);
+                        }
+                      })));
+
+      threads.add(
+          Thread.ofPlatform()
+              .name("mixed-refresher")
+              .start(
+                  guard(
+                      failure,
+                      () -> {
+                        int visible = 0;
+                        for (var next = start + refreshInterval.toNanos();
+                            !stop.get();
+                            next += refreshInterval.toNanos()) {
+                          LockSupport.parkNanos(next - System.nanoTime());
+                          if (stop.get()) {
+                            return;
+                          }
+
+                          var pending = added.get();
+                          var refreshStart = System.nanoTime();
+                          writer.refresh();
+                          var refreshEnd = System.nanoTime();
+                          refreshLatencies.recordValue(refreshEnd - refreshStart);
+                          for (int i = visible; i < pending; i++) {
+                            freshnessLags.recordValue(refreshEnd - addNanos[i]);
+                          }
+                          visible = pending;
+                        }
+                      })));
+
+      for (int t = 0; t < queryThreads; t++) {
+        var thread = t;
+        var latencies = new Histogram(SIGNIFICANT_DIGITS);
+        queryLatencies[t] = latencies;
+        threads.add(
+            Thread.ofPlatform()
+                .name("mixed-query-" + t)
+                .start(
+                    guard(
+                        failure,
+                        () -> {
+                          for (int i = thread; !stop.get(); i += queryThreads) {
+                            var query = queries.get(i % queries.size());
+                            var queryStart = System.nanoTime();
+                            writer.query(query, k, false);
+                            latencies.recordValue(System.nanoTime() - queryStart);
+                          }
+                        })));
+      }
+
+      while (System.nanoTime() < end && failure.get() == null) {
+        var remaining = end - System.nanoTime();
+        LockSupport.parkNanos(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(100)));
+      }
+      stop.set(true);
+      for (var thread : threads) {
+        thread.join();
+      }
+      var elapsed = Duration.ofNanos(System.nanoTime() - start);
+
+      if (failure.get() != null) {
+        throw new RuntimeException("caught exception during mixed workload", failure.get());
+      }
+
+      var latencies = new Histogram(SIGNIFICANT_DIGITS);
+      for (var threadLatencies : queryLatencies) {
+        latencies.add(threadLatencies);
+      }
+
+      var result =
+          new Result(
+              writeRate,
+              added.get(),
+              elapsed,
+              latencies,
+              refreshLatencies,
+              freshnessLags,
+              writer.segments());
+      LOGGER.info("completed mixed workload for {}:", writer.description());
+      LOGGER.info("\tadded {} vectors ({} /s)", result.added, result.achievedWriteRate());
+      LOGGER.info("\tqueries {} ({} /s)", latencies.getTotalCount(), result.queryThroughput());
+      LOGGER.info(
+          "\tquery p50 {}, p99 {}, max {}",
+          Duration.ofNanos(latencies.getValueAtPercentile(50)),
+          Duration.ofNanos(latencies.getValueAtPercentile(99)),
+          Duration.ofNanos(latencies.getMaxValue()));
+      LOGGER.info(
+          "\trefreshes {}, p50 {}, p99 {}, max {}",
+          refreshLatencies.getTotalCount(),
+          Duration.ofNanos(refreshLatencies.getValueAtPercentile(50)),
+          Duration.ofNanos(refreshLatencies.getValueAtPercentile(99)),
+          Duration.ofNanos(refreshLatencies.getMaxValue()));
+      LOGGER.info(
+          "\tfreshness lag p50 {}, p99 {}, max {}",
+          Duration.ofNanos(freshnessLags.getValueAtPercentile(50)),
+          Duration.ofNanos(freshnessLags.getValueAtPercentile(99)),
+          Duration.ofNanos(freshnessLags.getMaxValue()));
+      LOGGER.info("\tsegments at the end {}", result.segments);
+
+      result.write(spec, writer.description(), reportsPath);
+    }
+  }
+
+  private interface Task {
+    void run() throws Exception;
+  }
+
+  private static Runnable guard(AtomicReference<Throwable> failure, Task task) {
+    return () -> {
+      try {
+        task.run();
+      } catch (Throwable t) {
+        failure.compareAndSet(null, t);
+      }
+    };
+  }
+
+  private record Result(
+      double writeRate,
+      int added,
+      Duration elapsed,
+      Histogram queryLatencies,
+      Histogram refreshLatencies,
+      Histogram freshnessLags,
+      int segments) {
+
+    double achievedWriteRate() {
+      return added / (elapsed.toNanos() / 1e9);
+    }
+
+    double queryThroughput() {
+      return queryLatencies.getTotalCount() / (elapsed.toNanos() / 1e9);
+    }
+
+    void write(QuerySpec spec, String description, Path reportsPath) throws Exception {
+      var now = Instant.now().getEpochSecond();
+      var path =
+          reportsPath.resolve(String.format("%s-mixed-%s-%s", now, spec.dataset(), description));
+
+      var data = new ArrayList<Object>();
+      data.addAll(
+          List.of(
+              "v1",
+              description,
+              spec.dataset(),
+              spec.provider(),
+              spec.type(),
+              spec.buildString(),
+              spec.queryString(),
+              spec.runtimeString(),
+              writeRate,
+              achievedWriteRate(),
+              added,
+              queryLatencies.getTotalCount(),
+              queryThroughput(),
+              (long) queryLatencies.getMean()));
+      for (var percentile : new double[] {50, 90, 99, 99.9}) {
+        data.add(queryLatencies.getValueAtPercentile(percentile));
+      }
+      data.add(queryLatencies.getMaxValue());
+      for (var histogram : List.of(refreshLatencies, freshnessLags)) {
+        data.add(histogram.getTotalCount());
+        data.add(histogram.getValueAtPercentile(50));
+        data.add(histogram.getValueAtPercentile(99));
+        data.add(histogram.getMaxValue());
+      }
+      data.add(segments);
+
+      try (var writer = Files.newBufferedWriter(path);
+          var printer = new CSVPrinter(writer, CSVFormat.DEFAULT)) {
+        printer.printRecord(data);
+        printer.flush();
+      }
+
+      LOGGER.info("wrote report to {}", path);
+    }
+  }
+
+  static Optional<Double> writeRate(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("writeRate")).map(Double::parseDouble);
+  }
+
+  private static int durationSeconds(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("mixedDurationSeconds"))
+        .map(Integer::parseInt)
+        .orElse(DEFAULT_DURATION_SECONDS);
+  }
+
+  private static String mergePolicy(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("mixedMergePolicy")).orElse(DEFAULT_MERGE_POLICY);
+  }
+
+  private static int refreshIntervalMs(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("refreshIntervalMs"))
+        .map(Integer::parseInt)
+        .orElse(DEFAULT_REFRESH_INTERVAL_MS);
+  }
+}
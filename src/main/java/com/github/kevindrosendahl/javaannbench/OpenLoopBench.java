@@ -0,0 +1,402 @@
+package com.github.kevindrosendahl.javaannbench;
+
+import com.github.kevindrosendahl.javaannbench.index.Index;
+import com.google.common.base.Preconditions;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * OpenLoopBench issues queries at a fixed arrival rate, independent of how quickly the index
+ * answers them, and measures each query's latency from the time it was scheduled to start.
+ *
+ * <p>Unlike the closed-loop test in {@link QueryBench}, a slow query does not delay the queries
+ * scheduled after it, so queueing delay shows up in the measured latency instead of being hidden
+ * by a lower request rate (coordinated omission).
+ */
+public class OpenLoopBench {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(OpenLoopBench.class);
+
+  private static final int DEFAULT_DURATION_SECONDS = 60;
+  private static final int DEFAULT_MAX_BACKLOG = 100_000;
+  private static final double DEFAULT_CAPACITY_MIN_QPS = 10;
+  private static final double DEFAULT_CAPACITY_MAX_QPS = 1_000_000;
+  private static final int DEFAULT_CAPACITY_SEARCH_ITERATIONS = 8;
+  private static final long SPIN_THRESHOLD_NANOS = 50_000;
+
+  public enum LoadMode {
+    CLOSED,
+    OPEN,
+    CAPACITY;
+
+    static LoadMode parse(String description) {
+      return switch (description) {
+        case "closed" -> CLOSED;
+        case "open" -> OPEN;
+        case "capacity" -> CAPACITY;
+        default -> throw new RuntimeException("unknown load mode " + description);
+      };
+    }
+  }
+
+  public enum Arrivals {
+    CONSTANT,
+    POISSON;
+
+    static Arrivals parse(String description) {
+      return switch (description) {
+        case "constant" -> CONSTANT;
+        case "poisson" -> POISSON;
+        default -> throw new RuntimeException("unknown arrival distribution " + description);
+      };
+    }
+  }
+
+  /**
+   * @param latencies nanoseconds from each query's scheduled start until it completed
+   * @param serviceTimes nanoseconds from each query actually starting until it completed
+   * @param saturated whether issuing stopped early because the backlog exceeded maxBacklog
+   */
+  record Trial(
+      double targetQps,
+      double achievedQps,
+      long issued,
+      long completed,
+      boolean saturated,
+      Histogram latencies,
+      Histogram serviceTimes) {
+
+    boolean meets(Duration p99Target) {
+      return !saturated
+          && completed > 0
+          && latencies.getValueAtPercentile(99) <= p99Target.toNanos();
+    }
+  }
+
+  static void test(
+      QuerySpec spec,
+      Index.Querier index,
+      List<float[]> queries,
+      LoadMode mode,
+      Path reportsPath)
+      throws Exception {
+    var runtime = spec.runtime();
+    var threads = QueryBench.queryThreads(runtime);
+    var arrivals = arrivals(runtime);
+    var duration = Duration.ofSeconds(durationSeconds(runtime));
+    var maxBacklog = maxBacklog(runtime);
+    var random = new Random(QueryBench.seed(runtime));
+
+    var trials = new ArrayList<Trial>();
+    Optional<Double> capacity = Optional.empty();
+    switch (mode) {
+      case OPEN -> {
+        var rate = arrivalRate(runtime);
+        trials.add(
+            run(index, queries, spec.k(), rate, arrivals, duration, threads, maxBacklog, random));
+      }
+      case CAPACITY -> {
+        var target = Duration.ofNanos((long) (sloP99Ms(runtime) * 1_000_000));
+        capacity =
+            searchCapacity(
+                index,
+                queries,
+                spec.k(),
+                arrivals,
+                duration,
+                threads,
+                maxBacklog,
+                random,
+                target,
+                capacityMinQps(runtime),
+                capacityMaxQps(runtime),
+                capacitySearchIterations(runtime),
+                trials);
+        LOGGER.info(
+            "highest arrival rate meeting p99 <= {}: {}",
+            target,
+            capacity.map(qps -> String.format("%.1f qps", qps)).orElse("none"));
+      }
+      case CLOSED -> throw new RuntimeException("closed loop load is run by QueryBench");
+    }
+
+    new Report(index.description(), spec, mode, arrivals, trials, capacity).write(reportsPath);
+  }
+
+  /**
+   * Issues queries at {@code qps} for {@code duration} across {@code threads} worker threads, and
+   * waits for every issued query to complete.
+   */
+  static Trial run(
+      Index.Querier index,
+      List<float[]> queries,
+      int k,
+      double qps,
+      Arrivals arrivals,
+      Duration duration,
+      int threads,
+      int maxBacklog,
+      Random random)
+      throws Exception {
+    Preconditions.checkArgument(qps > 0, "arrival rate must be positive");
+    var latencies = new ConcurrentHistogram(3);
+    var serviceTimes = new ConcurrentHistogram(3);
+    var outstanding = new AtomicLong();
+    var completed = new AtomicLong();
+    var failed = new AtomicBoolean();
+    var meanInterArrivalNanos = 1_000_000_000d / qps;
+
+    long issued = 0;
+    boolean saturated = false;
+    var executor = Executors.newFixedThreadPool(threads);
+    var start = System.nanoTime();
+    var end = start + duration.toNanos();
+    try {
+      double scheduled = start;
+      while (scheduled < end && !failed.get()) {
+        var scheduledNanos = (long) scheduled;
+        waitUntil(scheduledNanos);
+
+        if (outstanding.get() >= maxBacklog) {
+          saturated = true;
+          break;
+        }
+
+        var query = queries.get((int) (issued % queries.size()));
+        outstanding.incrementAndGet();
+        executor.execute(
+            () -> {
+              try {
+                var serviceStart = System.nanoTime();
+                index.query(query, k, false);
+                var serviceEnd = System.nanoTime();
+                latencies.recordValue(serviceEnd - scheduledNanos);
+                serviceTimes.recordValue(serviceEnd - serviceStart);
+                completed.incrementAndGet();
+              } catch (Exception e) {
+                LOGGER.error("caught exception during open loop query", e);
+                failed.set(true);
+              } finally {
+                outstanding.decrementAndGet();
+              }
+            });
+        issued++;
+
+        scheduled +=
+            switch (arrivals) {
+              case CONSTANT -> meanInterArrivalNanos;
+              case POISSON -> -Math.log(1 - random.nextDouble()) * meanInterArrivalNanos;
+            };
+      }
+    } finally {
+      executor.shutdown();
+      Preconditions.checkState(
+          executor.awaitTermination(1, TimeUnit.HOURS), "timed out draining open loop queries");
+    }
+    Preconditions.checkState(!failed.get(), "open loop queries failed");
+
+    var elapsedSeconds = (System.nanoTime() - start) / 1_000_000_000d;
+    var trial =
+        new Trial(
+            qps,
+            completed.get() / elapsedSeconds,
+            issued,
+            completed.get(),
+            saturated,
+            latencies,
+            serviceTimes);
+
+    LOGGER.info(
+        "open loop at {} qps: achieved {} qps, p50 {}, p99 {}, max {}{}",
+        String.format("%.1f", qps),
+        String.format("%.1f", trial.achievedQps),
+        Duration.ofNanos(latencies.getValueAtPercentile(50)),
+        Duration.ofNanos(latencies.getValueAtPercentile(99)),
+        Duration.ofNanos(latencies.getMaxValue()),
+        saturated ? " (saturated)" : "");
+    return trial;
+  }
+
+  /**
+   * Finds the highest arrival rate whose p99 latency meets {@code target}. The rate is doubled from
+   * {@code minQps} until a trial misses the target, then binary searched between the last passing
+   * and first failing rates.
+   */
+  private static Optional<Double> searchCapacity(
+      Index.Querier index,
+      List<float[]> queries,
+      int k,
+      Arrivals arrivals,
+      Duration duration,
+      int threads,
+      int maxBacklog,
+      Random random,
+      Duration target,
+      double minQps,
+      double maxQps,
+      int iterations,
+      List<Trial> trials)
+      throws Exception {
+    double passing = 0;
+    double failing = maxQps;
+    for (double qps = minQps; qps <= maxQps; qps *= 2) {
+      var trial = run(index, queries, k, qps, arrivals, duration, threads, maxBacklog, random);
+      trials.add(trial);
+      if (!trial.meets(target)) {
+        failing = qps;
+        break;
+      }
+      passing = qps;
+    }
+
+    if (passing == 0) {
+      return Optional.empty();
+    }
+
+    for (int i = 0; i < iterations && failing - passing > 1; i++) {
+      var qps = (passing + failing) / 2;
+      var trial = run(index, queries, k, qps, arrivals, duration, threads, maxBacklog, random);
+      trials.add(trial);
+      if (trial.meets(target)) {
+        passing = qps;
+      } else {
+        failing = qps;
+      }
+    }
+
+    return Optional.of(passing);
+  }
+
+  static void waitUntil(long deadlineNanos) {
+    while (true) {
+      var remaining = deadlineNanos - System.nanoTime();
+      if (remaining <= 0) {
+        return;
+      }
+
+      if (remaining > SPIN_THRESHOLD_NANOS) {
+        LockSupport.parkNanos(remaining - SPIN_THRESHOLD_NANOS);
+      } else {
+        Thread.onSpinWait();
+      }
+    }
+  }
+
+  private record Report(
+      String indexDescription,
+      QuerySpec spec,
+      LoadMode mode,
+      Arrivals arrivals,
+      List<Trial> trials,
+      Optional<Double> capacity) {
+
+    void write(Path reportsPath) throws Exception {
+      var now = Instant.now().getEpochSecond();
+      var path =
+          reportsPath.resolve(
+              String.format("%s-open-loop-%s-%s", now, spec.dataset(), indexDescription));
+
+      try (var writer = Files.newBufferedWriter(path);
+          var printer = new CSVPrinter(writer, CSVFormat.DEFAULT)) {
+        for (var trial : trials) {
+          printer.printRecord(
+              "v1",
+              indexDescription,
+              spec.dataset(),
+              spec.provider(),
+              spec.type(),
+              spec.buildString(),
+              spec.queryString(),
+              spec.runtimeString(),
+              mode.name().toLowerCase(),
+              arrivals.name().toLowerCase(),
+              Double.toString(trial.targetQps()),
+              Double.toString(trial.achievedQps()),
+              Long.toString(trial.issued()),
+              Long.toString(trial.completed()),
+              Boolean.toString(trial.saturated()),
+              Long.toString(trial.latencies().getValueAtPercentile(50)),
+              Long.toString(trial.latencies().getValueAtPercentile(90)),
+              Long.toString(trial.latencies().getValueAtPercentile(99)),
+              Long.toString(trial.latencies().getMaxValue()),
+              Long.toString(trial.serviceTimes().getValueAtPercentile(50)),
+              Long.toString(trial.serviceTimes().getValueAtPercentile(99)),
+              capacity.map(qps -> Double.toString(qps)).orElse(""));
+        }
+        printer.flush();
+      }
+
+      LOGGER.info("wrote open loop report to {}", path);
+    }
+  }
+
+  static LoadMode loadMode(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("load")).map(LoadMode::parse).orElse(LoadMode.CLOSED);
+  }
+
+  private static Arrivals arrivals(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("arrivals"))
+        .map(Arrivals::parse)
+        .orElse(Arrivals.POISSON);
+  }
+
+  private static double arrivalRate(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("arrivalRate"))
+        .map(Double::parseDouble)
+        .orElseThrow(() -> new RuntimeException("must specify arrivalRate for open loop load"));
+  }
+
+  private static int durationSeconds(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("openLoopDurationSeconds"))
+        .map(Integer::parseInt)
+        .orElse(DEFAULT_DURATION_SECONDS);
+  }
+
+  private static int maxBacklog(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("maxBacklog"))
+        .map(Integer::parseInt)
+        .orElse(DEFAULT_MAX_BACKLOG);
+  }
+
+  private static double sloP99Ms(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("sloP99Ms"))
+        .map(Double::parseDouble)
+        .orElseThrow(() -> new RuntimeException("must specify sloP99Ms for capacity search"));
+  }
+
+  private static double capacityMinQps(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("capacityMinQps"))
+        .map(Double::parseDouble)
+        .orElse(DEFAULT_CAPACITY_MIN_QPS);
+  }
+
+  private static double capacityMaxQps(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("capacityMaxQps"))
+        .map(Double::parseDouble)
+        .orElse(DEFAULT_CAPACITY_MAX_QPS);
+  }
+
+  private static int capacitySearchIterations(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("capacitySearchIterations"))
+        .map(Integer::parseInt)
+        .orElse(DEFAULT_CAPACITY_SEARCH_ITERATIONS);
+  }
+}
@@ -1,16 +1,21 @@
 package com.github.kevindrosendahl.javaannbench;
 
 import com.github.kevindrosendahl.javaannbench.dataset.Datasets;
-import com.github.kevindrosendahl.javaannbench.display.Progress;
+import com.github.kevindrosendahl.javaannbench.dataset.GroundTruth;
+import com.github.kevindrosendahl.javaannbench.dataset.IVecs;
+import com.github.kevindrosendahl.javaannbench.dataset.Neighbors;
 import com.github.kevindrosendahl.javaannbench.display.ProgressBar;
 import com.github.kevindrosendahl.javaannbench.index.Index;
 import com.github.kevindrosendahl.javaannbench.util.Exceptions;
+import com.github.kevindrosendahl.javaannbench.util.MMapRandomAccessVectorValues.Encoding;
+import com.github.kevindrosendahl.javaannbench.util.ThreadIo;
 import com.google.common.base.Preconditions;
 import io.prometheus.client.Gauge;
 import io.prometheus.client.exporter.HTTPServer;
 import io.prometheus.client.hotspot.DefaultExports;
 import java.io.Closeable;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Duration;
@@ -18,6 +23,7 @@ import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -28,17 +34,22 @@ import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.IntStream;
+import java.util.stream.Stream;
 import jdk.jfr.Configuration;
 import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordingStream;
+import org.HdrHistogram.Histogram;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVPrinter;
-import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
-import org.apache.commons.math3.stat.descriptive.SynchronizedDescriptiveStatistics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import oshi.SystemInfo;
+import oshi.hardware.HWDiskStore;
 import oshi.software.os.OSProcess;
 import oshi.software.os.OSThread;
 
@@ -49,16 +60,65 @@ public class QueryBench {
   private static final int DEFAULT_WARMUP_ITERATIONS = 1;
   private static final int DEFAULT_TEST_ITERATIONS = 2;
   private static final int DEFAULT_BLOCK_DEVICE_STATS_INTERVAL_MS = 10;
+  private static final int DEFAULT_MAX_IN_FLIGHT = 1024;
+  private static final double[] REPORTED_PERCENTILES = {50, 90, 99, 99.9, 99.99};
+  private static final com.sun.management.ThreadMXBean THREADS =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+  private static final ThreadLocal<StatsCollector> STATS_COLLECTORS = new ThreadLocal<>();
+  private static final ThreadLocal<ResultBuffers> RESULT_BUFFERS =
+      ThreadLocal.withInitial(() -> new ResultBuffers(new int[0], new float[0]));
+
+  /** Reusable per-thread buffers for {@link Index.Querier}'s primitive query results. */
+  private record ResultBuffers(int[] ids, float[] scores) {
+
+    static ResultBuffers get(int k) {
+      var buffers = RESULT_BUFFERS.get();
+      if (buffers.ids.length < k) {
+        buffers = new ResultBuffers(new int[k], new float[k]);
+        RESULT_BUFFERS.set(buffers);
+      }
+      return buffers;
+    }
+  }
 
   public static void test(QuerySpec spec, Path datasetsPath, Path indexesPath, Path reportsPath)
       throws Exception {
+    if (MixedBench.writeRate(spec.runtime()).isPresent()) {
+      MixedBench.test(spec, datasetsPath, indexesPath, reportsPath);
+      return;
+    }
+    if (ChurnBench.churnFraction(spec.runtime()).isPresent()) {
+      ChurnBench.test(spec, datasetsPath, indexesPath, reportsPath);
+      return;
+    }
+    if (ColdStartBench.coldStart(spec.runtime())) {
+      ColdStartBench.test(spec, datasetsPath, indexesPath, reportsPath);
+      return;
+    }
+
+    var loadMode = OpenLoopBench.loadMode(spec.runtime());
+    var batchSizes = BatchQueryBench.batchSizes(spec.runtime());
+    var selectivities = FilteredQueryBench.selectivities(spec.runtime());
+    Preconditions.checkArgument(
+        Stream.of(
+                    loadMode != OpenLoopBench.LoadMode.CLOSED,
+                    !batchSizes.isEmpty(),
+                    !selectivities.isEmpty(),
+                    spec.hasSweep())
+                .filter(Boolean::booleanValue)
+                .count()
+            <= 1,
+        "at most one of loadMode, batchSizes, filterSelectivities and sweep can be set");
+
     var dataset = Datasets.load(datasetsPath, spec.dataset());
     try (var index =
         Index.Querier.fromParameters(
             dataset, indexesPath, spec.provider(), spec.type(), spec.build(), spec.query())) {
 
       var queryThreads = queryThreads(spec.runtime());
-      var concurrent = queryThreads != 1;
+      var executor = executor(spec.runtime());
+      var maxInFlight = maxInFlight(spec.runtime());
+      var concurrent = queryThreads != 1 || executor == QueryExecutor.VIRTUAL;
       var systemInfo = new SystemInfo();
       var warmup = warmup(spec.runtime());
       var test = test(spec.runtime());
@@ -68,58 +128,73 @@ public class QueryBench {
       var jfr = jfr(spec.runtime());
       var recall = recall(spec.runtime());
       var threadStats = threadStats(spec.runtime());
+      var ioStats = ioStats(spec.runtime());
+      var primitiveResults = primitiveResults(spec.runtime());
       var random = random(spec.runtime());
       var numQueries = testOnTrain ? trainTestQueries : dataset.test().size();
       var queries = new ArrayList<float[]>(numQueries);
 
-      Preconditions.checkArgument(!(testOnTrain && recall));
-      try (var prom = startPromServer(spec, numQueries * test)) {
-
+      var loadedGroundTruths =
+          testOnTrain && recall
+              ? loadTrainGroundTruth(datasetsPath, spec, trainTestQueries)
+              : dataset.groundTruth();
+      Preconditions.checkArgument(
+          !recall || loadedGroundTruths != null,
+          "no ground truth for %s, run with --ground-truth to generate",
+          spec.dataset());
+
+      try (var prom = startPromServer(spec, numQueries * test);
+          var memory =
+              MemorySampler.start(
+                  index,
+                  MemorySampler.interval(spec.runtime()),
+                  MemorySampler.residencyInterval(spec.runtime()),
+                  prom.labelNames(),
+                  prom.labels())) {
+
+        var trainOrdinals =
+            testOnTrain
+                ? GroundTruth.sampleTrainOrdinals(dataset.train().size(), numQueries, random)
+                : null;
         for (int i = 0; i < numQueries; i++) {
           float[] vector =
               testOnTrain
-                  ? dataset.train().vectorValue(random.nextInt(dataset.train().size()))
+                  ? dataset.train().vectorValue(trainOrdinals[i])
                   : dataset.test().vectorValue(i);
           queries.add(vector);
         }
 
-        var recalls = new SynchronizedDescriptiveStatistics();
-        var executionDurations = new SynchronizedDescriptiveStatistics();
-        var minorFaults = new SynchronizedDescriptiveStatistics();
-        var majorFaults = new SynchronizedDescriptiveStatistics();
+        // Ties are judged by the scores the querier returns, which only primitive results have.
+        Preconditions.checkArgument(
+            !tieAwareRecall(spec.runtime()) || primitiveResults,
+            "tieAwareRecall requires primitiveResults");
+        var groundTruths =
+            recall && tieAwareRecall(spec.runtime())
+                ? loadedGroundTruths.withScores(
+                    dataset.train(), queries, dataset.similarityFunction())
+                : loadedGroundTruths;
+
+        var metrics = new QueryMetrics(test, numQueries);
+        var testDuration = Duration.ZERO;
+        var pinnedEvents = 0L;
+        var pinnedDuration = Duration.ZERO;
+        DiskStatsCollector diskStats = null;
 
         try (var pool = new ForkJoinPool(queryThreads)) {
-          try (var progress = ProgressBar.create("warmup", warmup * numQueries)) {
-            if (concurrent) {
-              pool.submit(
-                      () -> {
-                        IntStream.range(0, warmup)
-                            .parallel()
-                            .forEach(
-                                i -> {
-                                  IntStream.range(0, numQueries)
-                                      .parallel()
-                                      .forEach(
-                                          j -> {
-                                            Exceptions.wrap(
-                                                () -> {
-                                                  var query = queries.get(j);
-                                                  index.query(query, k, recall);
-                                                  progress.inc();
-                                                });
-                                          });
-                                });
-                      })
-                  .join();
-            } else {
-              for (int i = 0; i < warmup; i++) {
-                for (int j = 0; j < numQueries; j++) {
+          var warmedUp = new LongAdder();
+          try (var progress = ProgressBar.create("warmup", warmup * numQueries);
+              var sampler = MetricsSampler.start(() -> progress.incTo((int) warmedUp.sum()))) {
+            runQueries(
+                executor,
+                pool,
+                maxInFlight,
+                warmup,
+                numQueries,
+                (i, j) -> {
                   var query = queries.get(j);
                   index.query(query, k, recall);
-                  progress.inc();
-                }
-              }
-            }
+                  warmedUp.increment();
+                });
           }
 
           //          Thread.sleep(Duration.ofHours(10));
@@ -138,131 +213,385 @@ public class QueryBench {
             recording.start();
           }
 
-          try (var progress = ProgressBar.create("testing", test * numQueries)) {
-            if (concurrent) {
-              pool.submit(
-                      () -> {
-                        IntStream.range(0, test)
-                            .parallel()
-                            .forEach(
-                                i -> {
-                                  IntStream.range(0, numQueries)
-                                      .parallel()
-                                      .forEach(
-                                          j -> {
-                                            Exceptions.wrap(
-                                                () -> {
-                                                  var query = queries.get(j);
-                                                  List<Integer> groundTruth = null;
-                                                  if (recall) {
-                                                    groundTruth = dataset.groundTruth().get(j);
-                                                  }
-                                                  runQuery(
-                                                      index,
-                                                      query,
-                                                      groundTruth,
-                                                      spec.k(),
-                                                      i,
-                                                      j,
-                                                      systemInfo,
-                                                      recalls,
-                                                      executionDurations,
-                                                      minorFaults,
-                                                      majorFaults,
-                                                      concurrent,
-                                                      recall,
-                                                      threadStats,
-                                                      progress,
-                                                      prom.queryDurationSeconds);
-                                                  prom.queries.inc();
-                                                });
-                                          });
-                                });
-                      })
-                  .join();
-            } else {
-              for (int i = 0; i < test; i++) {
-                for (int j = 0; j < numQueries; j++) {
-                  var query = queries.get(j);
-                  var groundTruth = dataset.groundTruth().get(j);
-                  runQuery(
-                      index,
-                      query,
-                      groundTruth,
-                      spec.k(),
-                      i,
-                      j,
-                      systemInfo,
-                      recalls,
-                      executionDurations,
-                      minorFaults,
-                      majorFaults,
-                      concurrent,
-                      recall,
-                      threadStats,
-                      progress,
-                      prom.queryDurationSeconds);
-                  prom.queries.inc();
-                }
+          try {
+            if (loadMode != OpenLoopBench.LoadMode.CLOSED) {
+              OpenLoopBench.test(spec, index, queries, loadMode, reportsPath);
+              return;
+            }
+            if (!batchSizes.isEmpty()) {
+              BatchQueryBench.test(
+                  spec,
+                  index,
+                  queries,
+                  recall ? groundTruths : null,
+                  batchSizes,
+                  pool,
+                  reportsPath);
+              return;
+            }
+            if (!selectivities.isEmpty()) {
+              FilteredQueryBench.test(
+                  spec, dataset, index, queries, selectivities, pool, reportsPath);
+              return;
+            }
+            if (spec.hasSweep()) {
+              QuerySweep.test(
+                  spec, index, queries, recall ? groundTruths : null, pool, reportsPath);
+              return;
+            }
+
+            try (var progress = ProgressBar.create("testing", test * numQueries);
+                var sampler =
+                    MetricsSampler.start(
+                        () -> {
+                          var completed = metrics.completed();
+                          progress.incTo((int) completed);
+                          prom.queries.set(completed);
+                          prom.queryDurationSeconds.set(metrics.completedLatencyNanos() / 1e9);
+                        });
+                var pinning = executor == QueryExecutor.VIRTUAL ? PinningMonitor.start() : null;
+                var disk =
+                    blockDevice(spec.runtime())
+                        .map(
+                            device ->
+                                collectDiskStats(
+                                    systemInfo,
+                                    device,
+                                    blockDeviceStatsIntervalMs(spec.runtime()),
+                                    prom))
+                        .orElse(null)) {
+              // A virtual thread can move between OS threads mid-query, and process-wide deltas
+              // per query would count every other query in flight, so with the virtual executor
+              // faults are only counted for the process as a whole, around the test.
+              var queryFaults = threadStats && executor != QueryExecutor.VIRTUAL;
+              var processFaults =
+                  threadStats && !queryFaults ? new ProcessStatsCollector(systemInfo) : null;
+              if (processFaults != null) {
+                Preconditions.checkArgument(
+                    processFaults.update(), "failed to update process stats");
+              }
+              var startMinorFaults = processFaults == null ? 0 : processFaults.minorFaults();
+              var startMajorFaults = processFaults == null ? 0 : processFaults.majorFaults();
+
+              metrics.start();
+              var testStart = System.nanoTime();
+              runQueries(
+                  executor,
+                  pool,
+                  maxInFlight,
+                  test,
+                  numQueries,
+                  (i, j) -> {
+                    var query = queries.get(j);
+                    runQuery(
+                        index,
+                        query,
+                        groundTruths,
+                        spec.k(),
+                        i,
+                        j,
+                        systemInfo,
+                        metrics,
+                        concurrent,
+                        recall,
+                        queryFaults,
+                        ioStats,
+                        primitiveResults);
+                  });
+              testDuration = Duration.ofNanos(System.nanoTime() - testStart);
+              if (processFaults != null) {
+                Preconditions.checkArgument(
+                    processFaults.update(), "failed to update process stats");
+                metrics.recordTotalFaults(
+                    processFaults.minorFaults() - startMinorFaults,
+                    processFaults.majorFaults() - startMajorFaults);
+              }
+              if (disk != null) {
+                diskStats = disk.stop();
+              }
+
+              if (pinning != null) {
+                pinning.stop();
+                pinnedEvents = pinning.events();
+                pinnedDuration = pinning.duration();
               }
-              //              }
             }
-          }
-          if (jfr) {
-            recording.stop();
-            recording.close();
+          } finally {
+            if (recording != null) {
+              recording.stop();
+              recording.close();
+            }
           }
         }
 
+        metrics.finish();
+        // Stop sampling, so that the report includes a sample taken after the last query.
+        memory.stop();
+        var latencies = metrics.latencies();
+        var throughput = metrics.count() / (testDuration.toNanos() / 1e9);
         LOGGER.info("completed recall test for {}:", index.description());
-        LOGGER.info("\ttotal queries {}", recalls.getN());
-        if (recall && !testOnTrain) {
-          LOGGER.info("\taverage recall {}", recalls.getMean());
+        LOGGER.info("\ttotal queries {}", metrics.count());
+        LOGGER.info(
+            "\tthroughput {} queries/s using {} executor", throughput, executor.description);
+        if (executor == QueryExecutor.VIRTUAL) {
+          LOGGER.info("\tpinned virtual thread events {} ({})", pinnedEvents, pinnedDuration);
         }
-        LOGGER.info("\taverage duration {}", Duration.ofNanos((long) executionDurations.getMean()));
-        if (threadStats && !testOnTrain) {
-          LOGGER.info("\taverage minor faults {}", minorFaults.getMean());
-          LOGGER.info("\taverage major faults {}", majorFaults.getMean());
+        if (recall) {
+          LOGGER.info("\taverage recall {}", metrics.meanRecall());
+        }
+        // Measured after the run, so the residency is what the queries left in the page cache.
+        var footprint = index.footprint();
+        LOGGER.info("\tvector encoding {}", dataset.train().encoding());
+        if (footprint != null) {
+          LOGGER.info(
+              "\tindex size {}, {} resident in page cache",
+              footprint.size(),
+              footprint.resident());
+        }
+        LOGGER.info("\taverage duration {}", Duration.ofNanos((long) latencies.getMean()));
+        for (var percentile : REPORTED_PERCENTILES) {
+          LOGGER.info(
+              "\tp{} duration {}",
+              percentile,
+              Duration.ofNanos(latencies.getValueAtPercentile(percentile)));
         }
-        LOGGER.info("\tmax duration {}", Duration.ofNanos((long) executionDurations.getMax()));
+        // Faults are only counted per query on platform threads, see the test phase above.
+        var perQueryFaults = metrics.minorFaults().getTotalCount() > 0;
+        if (threadStats && !testOnTrain && perQueryFaults) {
+          LOGGER.info("\taverage minor faults {}", metrics.minorFaults().getMean());
+          LOGGER.info("\taverage major faults {}", metrics.majorFaults().getMean());
+        }
+        LOGGER.info("\tmax duration {}", Duration.ofNanos(latencies.getMaxValue()));
         if (threadStats && !testOnTrain) {
-          LOGGER.info("\tmax minor faults {}", minorFaults.getMax());
-          LOGGER.info("\tmax major faults {}", majorFaults.getMax());
-          LOGGER.info("\ttotal minor faults {}", minorFaults.getSum());
-          LOGGER.info("\ttotal major faults {}", majorFaults.getSum());
+          if (perQueryFaults) {
+            LOGGER.info("\tmax minor faults {}", metrics.minorFaults().getMaxValue());
+            LOGGER.info("\tmax major faults {}", metrics.majorFaults().getMaxValue());
+          }
+          LOGGER.info("\ttotal minor faults {}", metrics.totalMinorFaults());
+          LOGGER.info("\ttotal major faults {}", metrics.totalMajorFaults());
+        }
+        var readBytes = metrics.readBytes();
+        if (readBytes.getTotalCount() > 0) {
+          LOGGER.info(
+              "\tread bytes per query mean {}, p99 {}, max {}",
+              readBytes.getMean(),
+              readBytes.getValueAtPercentile(99),
+              readBytes.getMaxValue());
+        }
+        if (diskStats != null) {
+          for (int i = 0; i < DiskStatsCollector.STATS.size(); i++) {
+            LOGGER.info(
+                "\tdisk {} p50 {}, p99 {}, max {}",
+                DiskStatsCollector.STATS.get(i),
+                diskStats.percentile(i, 50),
+                diskStats.percentile(i, 99),
+                diskStats.percentile(i, 100));
+          }
+        }
+        LOGGER.info("\tsegments {}", index.segments());
+        memory.logPeaks(LOGGER);
+        var allocated = metrics.allocatedBytes();
+        if (allocated.getTotalCount() > 0) {
+          LOGGER.info(
+              "\tallocated bytes per query mean {}, p99 {}, max {}",
+              allocated.getMean(),
+              allocated.getValueAtPercentile(99),
+              allocated.getMaxValue());
         }
 
-        new Report(index.description(), spec, recalls, executionDurations, minorFaults, majorFaults)
+        new Report(
+                index.description(),
+                spec,
+                metrics,
+                throughput,
+                pinnedEvents,
+                pinnedDuration,
+                dataset.train().encoding(),
+                footprint,
+                memory,
+                diskStats,
+                index.segments())
             .write(reportsPath);
       }
     }
   }
 
+  enum QueryExecutor {
+    FORK_JOIN("forkjoin"),
+    VIRTUAL("virtual");
+
+    final String description;
+
+    QueryExecutor(String description) {
+      this.description = description;
+    }
+
+    static QueryExecutor parse(String description) {
+      return switch (description) {
+        case "forkjoin" -> FORK_JOIN;
+        case "virtual" -> VIRTUAL;
+        default -> throw new RuntimeException("unknown query executor " + description);
+      };
+    }
+  }
+
+  interface QueryTask {
+    void run(int iteration, int query) throws Exception;
+  }
+
+  /**
+   * Runs {@code task} for every query in every iteration. With the fork join executor queries are
+   * run on the pool's platform threads, or inline if the pool has a single thread. With the virtual
+   * executor each query gets its own virtual thread, with at most {@code maxInFlight} running at
+   * once.
+   */
+  static void runQueries(
+      QueryExecutor executor,
+      ForkJoinPool pool,
+      int maxInFlight,
+      int iterations,
+      int numQueries,
+      QueryTask task)
+      throws Exception {
+    switch (executor) {
+      case FORK_JOIN -> {
+        if (pool.getParallelism() == 1) {
+          for (int i = 0; i < iterations; i++) {
+            for (int j = 0; j < numQueries; j++) {
+              task.run(i, j);
+            }
+          }
+          return;
+        }
+
+        pool.submit(
+                () -> {
+                  IntStream.range(0, iterations)
+                      .parallel()
+                      .forEach(
+                          i -> {
+                            IntStream.range(0, numQueries)
+                                .parallel()
+                                .forEach(j -> Exceptions.wrap(() -> task.run(i, j)));
+                          });
+                })
+            .join();
+      }
+      case VIRTUAL -> {
+        var inFlight = new Semaphore(maxInFlight);
+        var failure = new AtomicReference<Exception>();
+        try (var virtualExecutor = Executors.newVirtualThreadPerTaskExecutor()) {
+          for (int i = 0; i < iterations && failure.get() == null; i++) {
+            for (int j = 0; j < numQueries && failure.get() == null; j++) {
+              inFlight.acquire();
+              int iteration = i;
+              int query = j;
+              virtualExecutor.execute(
+                  () -> {
+                    try {
+                      task.run(iteration, query);
+                    } catch (Exception e) {
+                      failure.compareAndSet(null, e);
+                    } finally {
+                      inFlight.release();
+                    }
+                  });
+            }
+          }
+        }
+
+        if (failure.get() != null) {
+          throw new RuntimeException("caught exception running query", failure.get());
+        }
+      }
+    }
+  }
+
+  /**
+   * PinningMonitor counts the jdk.VirtualThreadPinned events emitted while it is open, i.e. the
+   * times a virtual thread blocked while pinned to its carrier thread.
+   */
+  private static final class PinningMonitor implements Closeable {
+
+    private final RecordingStream stream;
+    private final LongAdder events = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+
+    private PinningMonitor(RecordingStream stream) {
+      this.stream = stream;
+    }
+
+    static PinningMonitor start() {
+      var stream = new RecordingStream();
+      var monitor = new PinningMonitor(stream);
+      stream.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ZERO);
+      stream.onEvent(
+          "jdk.VirtualThreadPinned",
+          event -> {
+            monitor.events.increment();
+            monitor.nanos.add(event.getDuration().toNanos());
+          });
+      stream.startAsync();
+      return monitor;
+    }
+
+    long events() {
+      return events.sum();
+    }
+
+    Duration duration() {
+      return Duration.ofNanos(nanos.sum());
+    }
+
+    /**
+     * Stops the stream once every event recorded so far has been consumed, so that the counts
+     * include the events since the stream last flushed.
+     */
+    void stop() {
+      stream.stop();
+    }
+
+    @Override
+    public void close() {
+      stream.close();
+    }
+  }
+
+  private static Neighbors loadTrainGroundTruth(
+      Path datasetsPath, QuerySpec spec, int trainTestQueries) throws IOException {
+    var path =
+        Datasets.trainNeighborsPath(
+            datasetsPath, spec.dataset(), seed(spec.runtime()), trainTestQueries);
+    Preconditions.checkArgument(
+        path.toFile().exists(),
+        "no ground truth for train queries at %s, run with --ground-truth to generate",
+        path);
+    return Neighbors.of(
+        IVecs.load(path, trainTestQueries, GroundTruth.DEFAULT_K), GroundTruth.DEFAULT_K);
+  }
+
   private static void runQuery(
       Index.Querier index,
       float[] query,
-      List<Integer> groundTruth,
+      Neighbors groundTruths,
       int k,
       int i,
       int j,
       SystemInfo systemInfo,
-      DescriptiveStatistics recalls,
-      DescriptiveStatistics executionDurations,
-      DescriptiveStatistics minorFaults,
-      DescriptiveStatistics majorFaults,
+      QueryMetrics metrics,
       boolean concurrent,
       boolean collectRecall,
       boolean threadStats,
-      Progress progress,
-      Gauge.Child queryDurationSeconds)
+      boolean ioStats,
+      boolean primitiveResults)
       throws Exception {
     boolean collectThreadStats = systemInfo.getOperatingSystem().getFamily() != "macOS";
 
     StatsCollector statsCollector =
         threadStats
-            ? (collectThreadStats && concurrent)
-                ? new ThreadStatsCollector(systemInfo)
-                : new ProcessStatsCollector(systemInfo)
+            ? statsCollector(
+                systemInfo,
+                collectThreadStats && concurrent && !Thread.currentThread().isVirtual())
             : null;
     var startMinorFaults = 0L;
     var startMajorFaults = 0L;
@@ -272,9 +601,25 @@ public class QueryBench {
       startMajorFaults = statsCollector.majorFaults();
     }
 
-    var start = Instant.now();
-    var results = index.query(query, k, collectRecall);
-    var end = Instant.now();
+    // Reads are accounted to the OS thread, which a virtual thread can change during the query.
+    var collectReadBytes = ioStats && !Thread.currentThread().isVirtual();
+    var startReadBytes = collectReadBytes ? ThreadIo.readBytes() : -1;
+
+    List<Integer> results = null;
+    ResultBuffers buffers = null;
+    var count = 0;
+    var startAllocated = allocatedBytes();
+    var start = System.nanoTime();
+    if (primitiveResults) {
+      buffers = ResultBuffers.get(k);
+      count = index.query(query, k, collectRecall, buffers.ids, buffers.scores);
+    } else {
+      results = index.query(query, k, collectRecall);
+      count = results.size();
+    }
+    var end = System.nanoTime();
+    var allocated = startAllocated < 0 ? -1 : allocatedBytes() - startAllocated;
+    var readBytes = startReadBytes < 0 ? -1 : ThreadIo.readBytes() - startReadBytes;
 
     var endMinorFaults = 0L;
     var endMajorFaults = 0L;
@@ -284,30 +629,53 @@ public class QueryBench {
       endMajorFaults = statsCollector.majorFaults();
     }
 
-    var duration = Duration.between(start, end);
-    executionDurations.addValue(duration.toNanos());
+    var duration = end - start;
 
+    var recall = Double.NaN;
     if (collectRecall) {
       Preconditions.checkArgument(
-          results.size() <= k,
+          count <= k,
           "query %s in round %s returned %s results, expected less than k=%s",
           j,
           i,
-          results.size(),
+          count,
           k);
 
-      var truePositives = groundTruth.stream().limit(k).filter(results::contains).count();
-      var recall = (double) truePositives / k;
-      recalls.addValue(recall);
+      recall =
+          primitiveResults
+              ? groundTruths.recall(j, buffers.ids, buffers.scores, count, k)
+              : groundTruths.recall(j, results, k);
     }
 
-    if (threadStats) {
-      minorFaults.addValue(endMinorFaults - startMinorFaults);
-      majorFaults.addValue(endMajorFaults - startMajorFaults);
+    metrics.record(
+        i,
+        j,
+        start,
+        duration,
+        threadStats ? endMinorFaults - startMinorFaults : -1,
+        threadStats ? endMajorFaults - startMajorFaults : -1,
+        recall,
+        allocated,
+        readBytes);
+  }
+
+  /**
+   * Returns the calling thread's stats collector, creating it on the thread's first query, since
+   * creating one reads the whole process's or thread's stats.
+   */
+  private static StatsCollector statsCollector(SystemInfo systemInfo, boolean perThread) {
+    var collector = STATS_COLLECTORS.get();
+    if (collector == null || collector instanceof ThreadStatsCollector != perThread) {
+      collector =
+          perThread ? new ThreadStatsCollector(systemInfo) : new ProcessStatsCollector(systemInfo);
+      STATS_COLLECTORS.set(collector);
     }
+    return collector;
+  }
 
-    queryDurationSeconds.inc((double) duration.toNanos() / (1000 * 1000 * 1000));
-    progress.inc();
+  /** Returns the bytes the current thread has allocated, or -1 if that cannot be measured. */
+  private static long allocatedBytes() {
+    return THREADS.isThreadAllocatedMemoryEnabled() ? THREADS.getCurrentThreadAllocatedBytes() : -1;
   }
 
   private static Prom startPromServer(QuerySpec spec, int numQueries) throws Exception {
@@ -354,11 +722,15 @@ public class QueryBench {
         .set(numQueries);
 
     HTTPServer server = new HTTPServer(20000);
-    return new Prom(server, queries, queryDurationSeconds, labelValues);
+    return new Prom(server, queries, queryDurationSeconds, labelNames, labelValues);
   }
 
   record Prom(
-      HTTPServer server, Gauge.Child queries, Gauge.Child queryDurationSeconds, String[] labels)
+      HTTPServer server,
+      Gauge.Child queries,
+      Gauge.Child queryDurationSeconds,
+      String[] labelNames,
+      String[] labels)
       implements Closeable {
 
     @Override
@@ -367,62 +739,171 @@ public class QueryBench {
     }
   }
 
+  /**
+   * Starts sampling {@code deviceName}'s counters every {@code intervalMillis} on a background
+   * thread, until the returned collector is stopped.
+   */
   private static DiskStatsCollector collectDiskStats(
-      SystemInfo info, String deviceName, int intervalMillis) {
-    var latch = new CountDownLatch(1);
-    var queueLength = new SynchronizedDescriptiveStatistics();
-    var readBytes = new SynchronizedDescriptiveStatistics();
-    var reads = new SynchronizedDescriptiveStatistics();
-    var transferTime = new SynchronizedDescriptiveStatistics();
-
+      SystemInfo info, String deviceName, int intervalMillis, Prom prom) {
     var disk =
         info.getHardware().getDiskStores().stream()
             .filter(store -> store.getName().equals(deviceName))
             .findFirst()
             .orElseThrow(() -> new RuntimeException("could not find device " + deviceName));
 
-    var future =
+    var collector = new DiskStatsCollector(disk, prom);
+    var executor =
+        Executors.newSingleThreadExecutor(
+            Thread.ofPlatform().name("disk-stats").daemon().factory());
+    collector.future =
         CompletableFuture.runAsync(
-            () -> {
-              Exceptions.wrap(
-                  () -> {
-                    disk.updateAttributes();
-                    long totalBytesRead = disk.getReadBytes();
-                    long totalReads = disk.getReads();
+            () -> Exceptions.wrap(() -> collector.collect(intervalMillis)), executor);
+    executor.shutdown();
+    return collector;
+  }
 
-                    for (int i = 0; ; i++) {
-                      boolean done = latch.await(intervalMillis, TimeUnit.MILLISECONDS);
-                      if (done) {
-                        return;
-                      }
+  /**
+   * DiskStatsCollector records a block device's read IOPS, read throughput, queue depth, average
+   * read size and utilization over each interval. The latest interval, and percentiles over all of
+   * them, are published to Prometheus as gauges labelled by stat.
+   *
+   * <p>Intervals are only recorded by the collecting thread, so they may only be read once the
+   * collector has been stopped.
+   */
+  private static final class DiskStatsCollector implements Closeable {
+
+    static final List<String> STATS =
+        List.of(
+            "read_iops",
+            "read_bytes_per_second",
+            "queue_depth",
+            "read_request_bytes",
+            "utilization_percent");
+    private static final long NANOS_PER_SECOND = Duration.ofSeconds(1).toNanos();
+
+    private final HWDiskStore disk;
+    private final String[] labels;
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private final List<long[]> intervals = new ArrayList<>();
+    private final List<Histogram> histograms = new ArrayList<>();
+    private final List<Gauge> gauges = new ArrayList<>();
+    private CompletableFuture<?> future;
+
+    private DiskStatsCollector(HWDiskStore disk, Prom prom) {
+      this.disk = disk;
+      this.labels = prom.labels();
+      for (var stat : STATS) {
+        histograms.add(new Histogram(3));
+        gauges.add(
+            Gauge.build()
+                .labelNames(MemorySampler.withLabel(prom.labelNames(), "stat"))
+                .name("disk_" + stat)
+                .help(stat + " of " + disk.getName() + " over the latest interval and percentiles")
+                .register());
+      }
+    }
 
-                      disk.updateAttributes();
-                      queueLength.addValue((double) disk.getCurrentQueueLength());
+    private void collect(int intervalMillis) throws Exception {
+      disk.updateAttributes();
+      var start = System.nanoTime();
+      var last = start;
+      var lastPublished = start;
+      var totalReads = disk.getReads();
+      var totalReadBytes = disk.getReadBytes();
+      var totalTransferMillis = disk.getTransferTime();
+
+      while (!latch.await(intervalMillis, TimeUnit.MILLISECONDS)) {
+        disk.updateAttributes();
+        var now = System.nanoTime();
+        var elapsed = now - last;
+        var reads = disk.getReads() - totalReads;
+        var readBytes = disk.getReadBytes() - totalReadBytes;
+        var transferMillis = disk.getTransferTime() - totalTransferMillis;
+        last = now;
+        totalReads += reads;
+        totalReadBytes += readBytes;
+        totalTransferMillis += transferMillis;
+
+        // The request size is only defined for intervals with reads, and left out of the others.
+        var stats =
+            new long[] {
+              reads * NANOS_PER_SECOND / elapsed,
+              readBytes * NANOS_PER_SECOND / elapsed,
+              disk.getCurrentQueueLength(),
+              reads == 0 ? -1 : readBytes / reads,
+              Math.min(100, Duration.ofMillis(transferMillis).toNanos() * 100 / elapsed)
+            };
+        var interval = new long[stats.length + 1];
+        interval[0] = now - start;
+        System.arraycopy(stats, 0, interval, 1, stats.length);
+        intervals.add(interval);
+
+        for (int i = 0; i < stats.length; i++) {
+          if (stats[i] >= 0) {
+            histograms.get(i).recordValue(stats[i]);
+          }
+          gauges.get(i).labels(MemorySampler.withLabel(labels, "current")).set(stats[i]);
+        }
+        if (now - lastPublished >= NANOS_PER_SECOND) {
+          publishPercentiles();
+          lastPublished = now;
+        }
+      }
+    }
 
-                      long previousTotalBytesRead = totalBytesRead;
-                      totalBytesRead = disk.getReadBytes();
-                      readBytes.addValue((double) totalBytesRead - previousTotalBytesRead);
+    private void publishPercentiles() {
+      for (int i = 0; i < STATS.size(); i++) {
+        for (var percentile : REPORTED_PERCENTILES) {
+          gauges
+              .get(i)
+              .labels(MemorySampler.withLabel(labels, percentileLabel(percentile)))
+              .set(histograms.get(i).getValueAtPercentile(percentile));
+        }
+      }
+    }
 
-                      long previousTotalReads = totalReads;
-                      totalReads = disk.getReads();
-                      reads.addValue((double) totalReads - previousTotalReads);
+    /** Stops collecting, and publishes the final percentiles. */
+    DiskStatsCollector stop() {
+      latch.countDown();
+      future.join();
+      publishPercentiles();
+      return this;
+    }
 
-                      transferTime.addValue((double) disk.getTransferTime());
-                    }
-                  });
-            },
-            Executors.newSingleThreadExecutor());
+    /** Returns the given percentile of the stat, or -1 if no interval recorded it. */
+    long percentile(int stat, double percentile) {
+      var histogram = histograms.get(stat);
+      return histogram.getTotalCount() == 0 ? -1 : histogram.getValueAtPercentile(percentile);
+    }
+
+    /** Writes a CSV of every interval's end, in nanos since collection started, and its stats. */
+    void writeIntervals(Path path) throws IOException {
+      try (var writer = Files.newBufferedWriter(path);
+          var printer = new CSVPrinter(writer, CSVFormat.DEFAULT)) {
+        var header = new ArrayList<String>();
+        header.add("nanos");
+        header.addAll(STATS);
+        printer.printRecord(header);
+        for (var interval : intervals) {
+          printer.printRecord(Arrays.stream(interval).boxed().toList());
+        }
+        printer.flush();
+      }
+    }
 
-    return new DiskStatsCollector(latch, future, queueLength, readBytes, reads, transferTime);
+    @Override
+    public void close() {
+      if (latch.getCount() > 0) {
+        stop();
+      }
+    }
   }
 
-  private record DiskStatsCollector(
-      CountDownLatch latch,
-      CompletableFuture<?> future,
-      DescriptiveStatistics queueLength,
-      DescriptiveStatistics readBytes,
-      DescriptiveStatistics reads,
-      DescriptiveStatistics transferTime) {}
+  private static String percentileLabel(double percentile) {
+    return percentile == Math.rint(percentile)
+        ? "p" + (long) percentile
+        : "p" + Double.toString(percentile);
+  }
 
   private interface StatsCollector {
     boolean update();
@@ -480,78 +961,136 @@ public class QueryBench {
     }
   }
 
-  // FIXME: record full fidelity results, as well as some quantiles
   private record Report(
       String indexDescription,
       QuerySpec spec,
-      DescriptiveStatistics recall,
-      DescriptiveStatistics executionDurations,
-      DescriptiveStatistics minorFaults,
-      DescriptiveStatistics majorFaults) {
+      QueryMetrics metrics,
+      double throughput,
+      long pinnedEvents,
+      Duration pinnedDuration,
+      Encoding encoding,
+      Index.Footprint footprint,
+      MemorySampler memory,
+      DiskStatsCollector diskStats,
+      int segments) {
 
     void write(Path reportsPath) throws Exception {
       var now = Instant.now().getEpochSecond();
-      var path =
-          reportsPath.resolve(
-              String.format("%s-query-%s-%s", now, spec.dataset(), indexDescription));
-      var data =
-          new String[] {
-            "v1",
-            indexDescription,
-            spec.dataset(),
-            spec.provider(),
-            spec.type(),
-            spec.buildString(),
-            spec.queryString(),
-            spec.runtimeString(),
-            Double.toString(recall.getMean()),
-            Long.toString((long) executionDurations.getMean()),
-            Long.toString((long) executionDurations.getMax()),
-            Double.toString(minorFaults.getMean()),
-            Double.toString(minorFaults.getMax()),
-            Double.toString(minorFaults.getSum()),
-            Double.toString(majorFaults.getMean()),
-            Double.toString(majorFaults.getMax()),
-            Double.toString(majorFaults.getSum()),
-          };
+      var name = String.format("%s-query-%s-%s", now, spec.dataset(), indexDescription);
+      var path = reportsPath.resolve(name);
+      var latencies = metrics.latencies();
+      var minorFaults = metrics.minorFaults();
+      var majorFaults = metrics.majorFaults();
+      var allocated = metrics.allocatedBytes();
+
+      var data = new ArrayList<String>();
+      data.addAll(
+          List.of(
+              "v3",
+              indexDescription,
+              spec.dataset(),
+              spec.provider(),
+              spec.type(),
+              spec.buildString(),
+              spec.queryString(),
+              spec.runtimeString(),
+              Double.toString(metrics.meanRecall()),
+              Long.toString((long) latencies.getMean()),
+              Long.toString(latencies.getMaxValue()),
+              Double.toString(minorFaults.getMean()),
+              Long.toString(minorFaults.getMaxValue()),
+              Long.toString(metrics.totalMinorFaults()),
+              Double.toString(majorFaults.getMean()),
+              Long.toString(majorFaults.getMaxValue()),
+              Long.toString(metrics.totalMajorFaults()),
+              Double.toString(throughput),
+              Long.toString(pinnedEvents),
+              Long.toString(pinnedDuration.toNanos())));
+      for (var percentile : REPORTED_PERCENTILES) {
+        data.add(Long.toString(latencies.getValueAtPercentile(percentile)));
+      }
+      for (var percentile : REPORTED_PERCENTILES) {
+        data.add(Long.toString(majorFaults.getValueAtPercentile(percentile)));
+      }
+      data.add(Double.toString(allocated.getMean()));
+      data.add(Long.toString(allocated.getValueAtPercentile(99)));
+      data.add(Long.toString(allocated.getMaxValue()));
+      data.add(encoding.toString());
+      data.add(Long.toString(footprint == null ? -1 : footprint.size().toBytes()));
+      data.add(Long.toString(footprint == null ? -1 : footprint.resident().toBytes()));
+      for (var peak : memory.peaks()) {
+        data.add(Long.toString(peak));
+      }
+      var readBytes = metrics.readBytes();
+      var collectedReads = readBytes.getTotalCount() > 0;
+      data.add(Double.toString(collectedReads ? readBytes.getMean() : -1));
+      data.add(Long.toString(collectedReads ? readBytes.getValueAtPercentile(99) : -1));
+      data.add(Long.toString(collectedReads ? readBytes.getMaxValue() : -1));
+      for (int i = 0; i < DiskStatsCollector.STATS.size(); i++) {
+        for (var percentile : REPORTED_PERCENTILES) {
+          data.add(Long.toString(diskStats == null ? -1 : diskStats.percentile(i, percentile)));
+        }
+      }
+      data.add(Integer.toString(segments));
 
       try (var writer = Files.newBufferedWriter(path);
           var printer = new CSVPrinter(writer, CSVFormat.DEFAULT)) {
-        printer.printRecord((Object[]) data);
+        printer.printRecord(data);
         printer.flush();
       }
 
+      metrics.writeQueryLog(reportsPath.resolve(name + ".queries.bin"));
+      metrics.writeTimeSeries(reportsPath.resolve(name + ".timeseries.csv"));
+      metrics.writeLatencyHistogram(reportsPath.resolve(name + ".latency.hgrm"));
+      memory.writeTimeSeries(reportsPath.resolve(name + ".memory.csv"));
+      memory.writeResidency(reportsPath.resolve(name + ".residency.csv"));
+      if (diskStats != null) {
+        diskStats.writeIntervals(reportsPath.resolve(name + ".disk.csv"));
+      }
+
       LOGGER.info("wrote report to {}", path);
     }
   }
 
-  private static int queryThreads(Map<String, String> runtime) {
+  static int queryThreads(Map<String, String> runtime) {
     return Optional.ofNullable(runtime.get("queryThreads")).map(Integer::parseInt).orElse(1);
   }
 
-  private static int warmup(Map<String, String> runtime) {
+  static QueryExecutor executor(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("executor"))
+        .map(QueryExecutor::parse)
+        .orElse(QueryExecutor.FORK_JOIN);
+  }
+
+  static int maxInFlight(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("maxInFlight"))
+        .map(Integer::parseInt)
+        .orElse(DEFAULT_MAX_IN_FLIGHT);
+  }
+
+  static int warmup(Map<String, String> runtime) {
     return Optional.ofNullable(runtime.get("warmup"))
         .map(Integer::parseInt)
         .orElse(DEFAULT_WARMUP_ITERATIONS);
   }
 
-  private static int test(Map<String, String> runtime) {
+  static int test(Map<String, String> runtime) {
     return Optional.ofNullable(runtime.get("test"))
         .map(Integer::parseInt)
         .orElse(DEFAULT_TEST_ITERATIONS);
   }
 
-  private static boolean testOnTrain(Map<String, String> runtime) {
+  static boolean testOnTrain(Map<String, String> runtime) {
     return Optional.ofNullable(runtime.get("testOnTrain")).map(Boolean::parseBoolean).orElse(false);
   }
 
-  private static int trainTestQueries(Map<String, String> runtime) {
+  static int trainTestQueries(Map<String, String> runtime) {
     return Optional.ofNullable(runtime.get("trainTestQueries"))
         .map(Integer::parseInt)
         .orElse(100000);
   }
 
-  private static boolean recall(Map<String, String> runtime) {
+  static boolean recall(Map<String, String> runtime) {
     return Optional.ofNullable(runtime.get("recall")).map(Boolean::parseBoolean).orElse(true);
   }
 
@@ -559,13 +1098,32 @@ public class QueryBench {
     return Optional.ofNullable(runtime.get("threadStats")).map(Boolean::parseBoolean).orElse(true);
   }
 
+  private static boolean ioStats(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("ioStats")).map(Boolean::parseBoolean).orElse(false);
+  }
+
+  private static boolean tieAwareRecall(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("tieAwareRecall"))
+        .map(Boolean::parseBoolean)
+        .orElse(false);
+  }
+
+  private static boolean primitiveResults(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("primitiveResults"))
+        .map(Boolean::parseBoolean)
+        .orElse(false);
+  }
+
   private static boolean jfr(Map<String, String> runtime) {
     return Optional.ofNullable(runtime.get("jfr")).map(Boolean::parseBoolean).orElse(false);
   }
 
   private static Random random(Map<String, String> runtime) {
-    int seed = Optional.ofNullable(runtime.get("seed")).map(Integer::parseInt).orElse(0);
-    return new Random(seed);
+    return new Random(seed(runtime));
+  }
+
+  static int seed(Map<String, String> runtime) {
+    return Optional.ofNullable(runtime.get("seed")).map(Integer::parseInt).orElse(0);
   }
 
   private static Optional<String> blockDevice(Map<String, String> runtime) {
@@ -0,0 +1,387 @@
+package com.github.kevindrosendahl.javaannbench;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import org.HdrHistogram.Histogram;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+
+/**
+ * QueryMetrics records the latency, page faults, allocation, storage reads and recall of every
+ * query in a test run.
+ *
+ * <p>Each query ends up in a preallocated slot indexed by its iteration and query number, so the
+ * full-fidelity results can be written out as a per-query log and a per-second time series after
+ * the run. While queries are running, each platform thread appends its queries to its own {@link
+ * Recorder}, and the recorders are scattered into the slots in {@link #finish()}, so recording
+ * takes no locks and threads never write to neighbouring slots. The only shared state touched per
+ * query is a pair of {@link LongAdder}s that {@link MetricsSampler} reads to report progress. The
+ * HdrHistograms used for percentiles are built from the slots once the run is complete.
+ */
+final class QueryMetrics {
+
+  static final int QUERY_LOG_VERSION = 3;
+  private static final int QUERY_LOG_MAGIC = 0x514c4f47; // "QLOG"
+  private static final int SIGNIFICANT_DIGITS = 3;
+  private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+  private final int numQueries;
+  private long startNanos;
+  private final long[] queryStartNanos;
+  private final long[] latencyNanos;
+  private final int[] minorFaults;
+  private final int[] majorFaults;
+  private final long[] allocatedBytes;
+  private final long[] readBytes;
+  private final float[] recalls;
+  private final LongAdder completed = new LongAdder();
+  private final LongAdder completedLatencyNanos = new LongAdder();
+  private final Queue<Recorder> recorders = new ConcurrentLinkedQueue<>();
+  private final ThreadLocal<Recorder> recorder =
+      ThreadLocal.withInitial(
+          () -> {
+            var recorder = new Recorder();
+            recorders.add(recorder);
+            return recorder;
+          });
+  private long totalMinorFaults = -1;
+  private long totalMajorFaults = -1;
+
+  private Histogram latencies;
+  private Histogram minorFaultCounts;
+  private Histogram majorFaultCounts;
+  private Histogram allocatedByteCounts;
+  private Histogram readByteCounts;
+  private double meanRecall;
+
+  QueryMetrics(int iterations, int numQueries) {
+    int total = Math.multiplyExact(iterations, numQueries);
+    this.numQueries = numQueries;
+    this.startNanos = System.nanoTime();
+    this.queryStartNanos = new long[total];
+    this.latencyNanos = new long[total];
+    this.minorFaults = new int[total];
+    this.majorFaults = new int[total];
+    this.allocatedBytes = new long[total];
+    Arrays.fill(this.allocatedBytes, -1);
+    this.readBytes = new long[total];
+    Arrays.fill(this.readBytes, -1);
+    this.recalls = new float[total];
+    Arrays.fill(this.recalls, Float.NaN);
+  }
+
+  /**
+   * Marks the start of the run, which query start times and the time series are relative to. It
+   * defaults to when the metrics were created, so should be called if anything, like a warmup, runs
+   * in between.
+   */
+  void start() {
+    this.startNanos = System.nanoTime();
+  }
+
+  /**
+   * Records a query. {@code minorFaults} and {@code majorFaults} should be negative if they were
+   * not collected, and {@code recall} NaN if it was not collected.
+   */
+  void record(
+      int iteration,
+      int query,
+      long queryStartNanos,
+      long latencyNanos,
+      long minorFaults,
+      long majorFaults,
+      double recall) {
+    record(
+        iteration, query, queryStartNanos, latencyNanos, minorFaults, majorFaults, recall, -1, -1);
+  }
+
+  /**
+   * Records a query along with the bytes the querying thread allocated while running it, and the
+   * bytes it caused to be read from storage, either of which should be negative if it was not
+   * collected.
+   */
+  void record(
+      int iteration,
+      int query,
+      long queryStartNanos,
+      long latencyNanos,
+      long minorFaults,
+      long majorFaults,
+      double recall,
+      long allocatedBytes,
+      long readBytes) {
+    int slot = iteration * numQueries + query;
+    if (Thread.currentThread().isVirtual()) {
+      // Virtual threads run a single query each, so a recorder per thread would be a recorder per
+      // query. They write their slot directly instead.
+      store(
+          slot,
+          queryStartNanos - startNanos,
+          latencyNanos,
+          minorFaults,
+          majorFaults,
+          allocatedBytes,
+          readBytes,
+          (float) recall);
+    } else {
+      recorder
+          .get()
+          .add(
+              slot,
+              queryStartNanos - startNanos,
+              latencyNanos,
+              minorFaults,
+              majorFaults,
+              allocatedBytes,
+              readBytes,
+              (float) recall);
+    }
+
+    this.completed.increment();
+    this.completedLatencyNanos.add(latencyNanos);
+  }
+
+  /** The number of queries recorded so far, safe to call while queries are running. */
+  long completed() {
+    return completed.sum();
+  }
+
+  /** The summed latency of the queries recorded so far, safe to call while queries are running. */
+  long completedLatencyNanos() {
+    return completedLatencyNanos.sum();
+  }
+
+  /**
+   * Builds the histograms from the recorded slots. Must be called after every query has been
+   * recorded and before any of the accessors below.
+   */
+  void finish() {
+    for (var recorder : recorders) {
+      recorder.drainTo(this);
+    }
+    recorders.clear();
+
+    latencies = new Histogram(SIGNIFICANT_DIGITS);
+    minorFaultCounts = new Histogram(SIGNIFICANT_DIGITS);
+    majorFaultCounts = new Histogram(SIGNIFICANT_DIGITS);
+    allocatedByteCounts = new Histogram(SIGNIFICANT_DIGITS);
+    readByteCounts = new Histogram(SIGNIFICANT_DIGITS);
+    double recallSum = 0;
+    long recallCount = 0;
+    for (int slot = 0; slot < latencyNanos.length; slot++) {
+      latencies.recordValue(latencyNanos[slot]);
+      if (minorFaults[slot] >= 0) {
+        minorFaultCounts.recordValue(minorFaults[slot]);
+        majorFaultCounts.recordValue(majorFaults[slot]);
+      }
+      if (allocatedBytes[slot] >= 0) {
+        allocatedByteCounts.recordValue(allocatedBytes[slot]);
+      }
+      if (readBytes[slot] >= 0) {
+        readByteCounts.recordValue(readBytes[slot]);
+      }
+      if (!Float.isNaN(recalls[slot])) {
+        recallSum += recalls[slot];
+        recallCount++;
+      }
+    }
+    meanRecall = recallCount == 0 ? Double.NaN : recallSum / recallCount;
+  }
+
+  long count() {
+    return latencies.getTotalCount();
+  }
+
+  Histogram latencies() {
+    return latencies;
+  }
+
+  Histogram minorFaults() {
+    return minorFaultCounts;
+  }
+
+  Histogram majorFaults() {
+    return majorFaultCounts;
+  }
+
+  /** The bytes allocated per query, empty if allocations were not collected. */
+  Histogram allocatedBytes() {
+    return allocatedByteCounts;
+  }
+
+  /** The bytes read from storage per query, empty if reads were not collected. */
+  Histogram readBytes() {
+    return readByteCounts;
+  }
+
+  double meanRecall() {
+    return meanRecall;
+  }
+
+  /**
+   * Records the faults of the whole run, for when they could only be counted for the process rather
+   * than per query. The totals then report these instead of the sum over queries.
+   */
+  void recordTotalFaults(long minorFaults, long majorFaults) {
+    this.totalMinorFaults = minorFaults;
+    this.totalMajorFaults = majorFaults;
+  }
+
+  long totalMinorFaults() {
+    return totalMinorFaults >= 0 ? totalMinorFaults : sum(minorFaults);
+  }
+
+  long totalMajorFaults() {
+    return totalMajorFaults >= 0 ? totalMajorFaults : sum(majorFaults);
+  }
+
+  /**
+   * Writes every query as a big-endian binary record of (iteration int, query int, start nanos
+   * relative to the start of the run long, latency nanos long, minor faults int, major faults int,
+   * recall float, allocated bytes long, read bytes long), preceded by a header of (magic int,
+   * version int, count int).
+   */
+  void writeQueryLog(Path path) throws IOException {
+    try (var out =
+        new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16))) {
+      out.writeInt(QUERY_LOG_MAGIC);
+      out.writeInt(QUERY_LOG_VERSION);
+      out.writeInt(latencyNanos.length);
+      for (int slot = 0; slot < latencyNanos.length; slot++) {
+        out.writeInt(slot / numQueries);
+        out.writeInt(slot % numQueries);
+        out.writeLong(queryStartNanos[slot]);
+        out.writeLong(latencyNanos[slot]);
+        out.writeInt(minorFaults[slot]);
+        out.writeInt(majorFaults[slot]);
+        out.writeFloat(recalls[slot]);
+        out.writeLong(allocatedBytes[slot]);
+        out.writeLong(readBytes[slot]);
+      }
+    }
+  }
+
+  /**
+   * Writes a CSV of (second, queries completed, mean, p50, p99 and max latency nanos), bucketing
+   * queries by the second of the run they completed in.
+   */
+  void writeTimeSeries(Path path) throws IOException {
+    var buckets = new TreeMap<Long, Histogram>();
+    for (int slot = 0; slot < latencyNanos.length; slot++) {
+      var second = (queryStartNanos[slot] + latencyNanos[slot]) / NANOS_PER_SECOND;
+      buckets
+          .computeIfAbsent(second, s -> new Histogram(SIGNIFICANT_DIGITS))
+          .recordValue(latencyNanos[slot]);
+    }
+
+    try (var writer = Files.newBufferedWriter(path);
+        var printer = new CSVPrinter(writer, CSVFormat.DEFAULT)) {
+      printer.printRecord("second", "queries", "mean", "p50", "p99", "max");
+      for (var entry : buckets.entrySet()) {
+        var histogram = entry.getValue();
+        printer.printRecord(
+            entry.getKey(),
+            histogram.getTotalCount(),
+            (long) histogram.getMean(),
+            histogram.getValueAtPercentile(50),
+            histogram.getValueAtPercentile(99),
+            histogram.getMaxValue());
+      }
+      printer.flush();
+    }
+  }
+
+  /** Writes the latency histogram's percentile distribution, in microseconds. */
+  void writeLatencyHistogram(Path path) throws IOException {
+    try (var out = new PrintStream(Files.newOutputStream(path))) {
+      latencies.outputPercentileDistribution(out, 1000.0);
+    }
+  }
+
+  private void store(
+      int slot,
+      long queryStartNanos,
+      long latencyNanos,
+      long minorFaults,
+      long majorFaults,
+      long allocatedBytes,
+      long readBytes,
+      float recall) {
+    this.queryStartNanos[slot] = queryStartNanos;
+    this.latencyNanos[slot] = latencyNanos;
+    this.minorFaults[slot] = (int) minorFaults;
+    this.majorFaults[slot] = (int) majorFaults;
+    this.allocatedBytes[slot] = allocatedBytes;
+    this.readBytes[slot] = readBytes;
+    this.recalls[slot] = recall;
+  }
+
+  /**
+   * Recorder buffers one thread's queries as fixed-width rows of longs, in the order the thread ran
+   * them.
+   */
+  private static final class Recorder {
+
+    private static final int INITIAL_ROWS = 1024;
+    private static final int ROW_LONGS = 8;
+
+    private long[] rows = new long[INITIAL_ROWS * ROW_LONGS];
+    private int size;
+
+    void add(
+        int slot,
+        long queryStartNanos,
+        long latencyNanos,
+        long minorFaults,
+        long majorFaults,
+        long allocatedBytes,
+        long readBytes,
+        float recall) {
+      if ((size + 1) * ROW_LONGS > rows.length) {
+        rows = Arrays.copyOf(rows, rows.length * 2);
+      }
+      int offset = size++ * ROW_LONGS;
+      rows[offset] = slot;
+      rows[offset + 1] = queryStartNanos;
+      rows[offset + 2] = latencyNanos;
+      rows[offset + 3] = minorFaults;
+      rows[offset + 4] = majorFaults;
+      rows[offset + 5] = allocatedBytes;
+      rows[offset + 6] = readBytes;
+      rows[offset + 7] = Float.floatToRawIntBits(recall);
+    }
+
+    void drainTo(QueryMetrics metrics) {
+      for (int row = 0; row < size; row++) {
+        int offset = row * ROW_LONGS;
+        metrics.store(
+            (int) rows[offset],
+            rows[offset + 1],
+            rows[offset + 2],
+            rows[offset + 3],
+            rows[offset + 4],
+            rows[offset + 5],
+            rows[offset + 6],
+            Float.intBitsToFloat((int) rows[offset + 7]));
+      }
+      size = 0;
+    }
+  }
+
+  private static long sum(int[] values) {
+    long sum = 0;
+    for (int value : values) {
+      sum += Math.max(value, 0);
+    }
+    return sum;
+  }
+}
@@ -2,6 +2,7 @@ package com.github.kevindrosendahl.javaannbench;
 
 import com.github.kevindrosendahl.javaannbench.util.Yaml;
 import java.nio.file.Path;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.stream.Collectors;
@@ -13,7 +14,8 @@ public record QuerySpec(
     Map<String, String> build,
     Map<String, String> query,
     int k,
-    Map<String, String> runtime) {
+    Map<String, String> runtime,
+    Map<String, List<String>> sweep) {
 
   public record RuntimeConfiguration(
       String systemMemory, String heapSize, int queryThreads, boolean jfr) {}
@@ -42,6 +44,10 @@ public record QuerySpec(
         .collect(Collectors.joining("-"));
   }
 
+  public boolean hasSweep() {
+    return sweep != null && !sweep.isEmpty();
+  }
+
   public String runtimeString() {
     return runtime.entrySet().stream()
         .sorted(Entry.comparingByKey())
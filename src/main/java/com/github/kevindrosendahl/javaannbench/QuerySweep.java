@@ -0,0 +1,277 @@
+package com.github.kevindrosendahl.javaannbench;
+
+import com.github.kevindrosendahl.javaannbench.dataset.Neighbors;
+import com.github.kevindrosendahl.javaannbench.display.ProgressBar;
+import com.github.kevindrosendahl.javaannbench.index.Index;
+import com.google.common.base.Preconditions;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * QuerySweep runs every combination of the values listed in a {@link QuerySpec}'s {@code sweep}
+ * against a single opened index, and writes one row per combination to a recall/latency curve.
+ *
+ * <p>Sweep keys are query parameter names, or {@code k}. Each point is warmed up and tested with
+ * the spec's runtime parameters, and recall at each of {@link #RECALL_AT} that is no larger than
+ * the point's k is computed from the same results. Each point's speedup is its intra-query speedup:
+ * the mean latency of the point with the fewest {@code searchThreads} and otherwise the same swept
+ * values, over its own. It is 1 for every point when searchThreads is not swept. Each row also
+ * has the number of segments the index has, which bounds how far a query can be split.
+ */
+public class QuerySweep {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(QuerySweep.class);
+
+  static final int[] RECALL_AT = {1, 10, 100};
+  private static final String K = "k";
+  private static final String SEARCH_THREADS = "searchThreads";
+
+  record Point(Map<String, String> query, int k, Map<String, String> swept) {}
+
+  static void test(
+      QuerySpec spec,
+      Index.Querier index,
+      List<float[]> queries,
+      Neighbors groundTruths,
+      ForkJoinPool pool,
+      Path reportsPath)
+      throws Exception {
+    var runtime = spec.runtime();
+    var executor = QueryBench.executor(runtime);
+    var maxInFlight = QueryBench.maxInFlight(runtime);
+    var warmup = QueryBench.warmup(runtime);
+    var test = QueryBench.test(runtime);
+    var numQueries = queries.size();
+    var points = points(spec);
+
+    LOGGER.info("sweeping {} points over {}", points.size(), spec.sweep().keySet());
+
+    var results = new ArrayList<Result>(points.size());
+    for (var point : points) {
+      try (var querier = index.withQueryParameters(point.query)) {
+        var warmedUp = new LongAdder();
+        try (var progress = ProgressBar.create("warmup " + point.swept, warmup * numQueries);
+            var sampler = MetricsSampler.start(() -> progress.incTo((int) warmedUp.sum()))) {
+          QueryBench.runQueries(
+              executor,
+              pool,
+              maxInFlight,
+              warmup,
+              numQueries,
+              (i, j) -> {
+                querier.query(queries.get(j), point.k, groundTruths != null);
+                warmedUp.increment();
+              });
+        }
+
+        var metrics = new QueryMetrics(test, numQueries);
+        var recalls = new float[RECALL_AT.length][test * numQueries];
+        for (var recall : recalls) {
+          Arrays.fill(recall, Float.NaN);
+        }
+
+        var start = System.nanoTime();
+        try (var progress = ProgressBar.create("testing " + point.swept, test * numQueries);
+            var sampler = MetricsSampler.start(() -> progress.incTo((int) metrics.completed()))) {
+          QueryBench.runQueries(
+              executor,
+              pool,
+              maxInFlight,
+              test,
+              numQueries,
+              (i, j) -> {
+                var queryStart = System.nanoTime();
+                var ids = querier.query(queries.get(j), point.k, groundTruths != null);
+                var latency = System.nanoTime() - queryStart;
+
+                var recall = Double.NaN;
+                if (groundTruths != null) {
+                  var slot = i * numQueries + j;
+                  for (int r = 0; r < RECALL_AT.length; r++) {
+                    var n = RECALL_AT[r];
+                    if (n <= point.k && n <= groundTruths.count(j)) {
+                      recalls[r][slot] = (float) groundTruths.recall(j, ids, n);
+                    }
+                  }
+                  recall = groundTruths.recall(j, ids, point.k);
+                }
+
+                metrics.record(i, j, queryStart, latency, -1, -1, recall);
+              });
+        }
+        var duration = Duration.ofNanos(System.nanoTime() - start);
+        metrics.finish();
+
+        var result =
+            new Result(
+                point, querier.description(), querier.segments(), metrics, recalls, duration);
+        LOGGER.info(
+            "{}: {} segments, recall {}, p50 {}, p99 {}, throughput {} queries/s",
+            point.swept,
+            result.segments,
+            metrics.meanRecall(),
+            Duration.ofNanos(metrics.latencies().getValueAtPercentile(50)),
+            Duration.ofNanos(metrics.latencies().getValueAtPercentile(99)),
+            result.throughput());
+        results.add(result);
+      }
+    }
+
+    writeCurve(spec, index.description(), results, reportsPath);
+  }
+
+  /** Returns the cartesian product of the sweep values, varying the last key fastest. */
+  static List<Point> points(QuerySpec spec) {
+    var keys = new ArrayList<>(spec.sweep().keySet());
+    for (var key : keys) {
+      Preconditions.checkArgument(
+          !spec.sweep().get(key).isEmpty(), "sweep must list at least one value for %s", key);
+    }
+
+    var points = new ArrayList<Point>();
+    var indices = new int[keys.size()];
+    while (true) {
+      var query = new LinkedHashMap<>(spec.query());
+      var swept = new LinkedHashMap<String, String>();
+      var k = spec.k();
+      for (int i = 0; i < keys.size(); i++) {
+        var key = keys.get(i);
+        var value = spec.sweep().get(key).get(indices[i]);
+        swept.put(key, value);
+        if (key.equals(K)) {
+          k = Integer.parseInt(value);
+        } else {
+          query.put(key, value);
+        }
+      }
+      points.add(new Point(query, k, swept));
+
+      int i = keys.size() - 1;
+      while (i >= 0 && ++indices[i] == spec.sweep().get(keys.get(i)).size()) {
+        indices[i] = 0;
+        i--;
+      }
+      if (i < 0) {
+        return points;
+      }
+    }
+  }
+
+  private record Result(
+      Point point,
+      String description,
+      int segments,
+      QueryMetrics metrics,
+      float[][] recalls,
+      Duration duration) {
+
+    double throughput() {
+      return metrics.count() / (duration.toNanos() / 1e9);
+    }
+
+    double recallAt(int r) {
+      double sum = 0;
+      long count = 0;
+      for (var recall : recalls[r]) {
+        if (!Float.isNaN(recall)) {
+          sum += recall;
+          count++;
+        }
+      }
+      return count == 0 ? Double.NaN : sum / count;
+    }
+  }
+
+  private static void writeCurve(
+      QuerySpec spec, String indexDescription, List<Result> results, Path reportsPath)
+      throws Exception {
+    var now = Instant.now().getEpochSecond();
+    var path =
+        reportsPath.resolve(
+            String.format("%s-sweep-%s-%s", now, spec.dataset(), indexDescription));
+    var keys = new ArrayList<>(spec.sweep().keySet());
+
+    var header = new ArrayList<String>(keys);
+    header.add("description");
+    header.add("segments");
+    for (var n : RECALL_AT) {
+      header.add("recall@" + n);
+    }
+    header.addAll(List.of("throughput", "speedup", "mean", "p50", "p90", "p99", "p99.9", "max"));
+
+    try (var writer = Files.newBufferedWriter(path);
+        var printer = new CSVPrinter(writer, CSVFormat.DEFAULT)) {
+      printer.printRecord(header);
+      for (var result : results) {
+        var baseline = baseline(result, results);
+        var latencies = result.metrics.latencies();
+        var row = new ArrayList<String>();
+        for (var key : keys) {
+          row.add(result.point.swept.get(key));
+        }
+        row.add(result.description);
+        row.add(Integer.toString(result.segments));
+        for (int r = 0; r < RECALL_AT.length; r++) {
+          row.add(Double.toString(result.recallAt(r)));
+        }
+        row.add(Double.toString(result.throughput()));
+        row.add(
+            Double.toString(baseline.metrics.latencies().getMean() / latencies.getMean()));
+        row.add(Long.toString((long) latencies.getMean()));
+        for (var percentile : new double[] {50, 90, 99, 99.9}) {
+          row.add(Long.toString(latencies.getValueAtPercentile(percentile)));
+        }
+        row.add(Long.toString(latencies.getMaxValue()));
+        printer.printRecord(row);
+      }
+      printer.flush();
+    }
+
+    LOGGER.info("wrote sweep curve to {}", path);
+  }
+
+  /**
+   * Returns the result with the fewest searchThreads among those whose other swept values match
+   * {@code result}'s, which is {@code result} itself when searchThreads is not swept.
+   */
+  private static Result baseline(Result result, List<Result> results) {
+    Result baseline = result;
+    for (var other : results) {
+      if (sameApartFromSearchThreads(result.point, other.point)
+          && searchThreads(other.point) < searchThreads(baseline.point)) {
+        baseline = other;
+      }
+    }
+
+    if (baseline != result) {
+      LOGGER.info("speedup of {} is relative to {}", result.point.swept, baseline.point.swept);
+    }
+    return baseline;
+  }
+
+  private static boolean sameApartFromSearchThreads(Point a, Point b) {
+    var aSwept = new LinkedHashMap<>(a.swept);
+    var bSwept = new LinkedHashMap<>(b.swept);
+    aSwept.remove(SEARCH_THREADS);
+    bSwept.remove(SEARCH_THREADS);
+    return aSwept.equals(bSwept);
+  }
+
+  private static int searchThreads(Point point) {
+    var threads = point.swept.get(SEARCH_THREADS);
+    return threads == null ? 1 : Integer.parseInt(threads);
+  }
+}
@@ -0,0 +1,306 @@
+package com.github.kevindrosendahl.javaannbench.dataset;
+
+import com.github.kevindrosendahl.javaannbench.util.MMapRandomAccessVectorValues;
+import com.github.kevindrosendahl.javaannbench.util.MMapRandomAccessVectorValues.Encoding;
+import com.google.common.base.Preconditions;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ArrowIpc locates a vector column in an Arrow IPC file or stream, so that its values can be mapped
+ * in place.
+ *
+ * <p>The column must be a fixed size list of float32, float16, uint8 or int8 with no nulls, stored
+ * uncompressed. Its values are then the contiguous rows of each record batch's values buffer. Every
+ * record batch but the last must have the same number of rows, which is how writers such as Hugging
+ * Face datasets and pyarrow produce them.
+ *
+ * <p>Only the parts of the IPC format needed to find those buffers are read: the encapsulated
+ * message framing, and the Schema and RecordBatch flatbuffers. See the IPC section of
+ * https://arrow.apache.org/docs/format/Columnar.html.
+ */
+final class ArrowIpc {
+
+  private static final ValueLayout.OfInt INT =
+      ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+  private static final ValueLayout.OfLong LONG =
+      ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+  private static final ValueLayout.OfShort SHORT =
+      ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+  private static final byte[] FILE_MAGIC = "ARROW1".getBytes(StandardCharsets.US_ASCII);
+  private static final int CONTINUATION = 0xFFFFFFFF;
+
+  private static final int HEADER_SCHEMA = 1;
+  private static final int HEADER_RECORD_BATCH = 3;
+
+  private static final int TYPE_INT = 2;
+  private static final int TYPE_FLOATING_POINT = 3;
+  private static final int TYPE_FIXED_SIZE_LIST = 16;
+  private static final int PRECISION_HALF = 0;
+  private static final int PRECISION_SINGLE = 1;
+
+  /** The column's position among the flattened fields of a record batch. */
+  private record Column(int node, int valuesBuffer, int dimensions, Encoding encoding) {}
+
+  private ArrowIpc() {}
+
+  static MMapRandomAccessVectorValues open(Path path, String name) throws IOException {
+    var batchOffsets = new ArrayList<Long>();
+    int batchRows = -1;
+    int size = 0;
+
+    try (var arena = Arena.ofConfined();
+        var channel = FileChannel.open(path)) {
+      var file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+      long position = isFile(file) ? 8 : 0;
+      Column column = null;
+
+      while (position + 8 <= file.byteSize()) {
+        int metadataLength = file.get(INT, position);
+        long metadataStart = position + 4;
+        if (metadataLength == CONTINUATION) {
+          metadataLength = file.get(INT, position + 4);
+          metadataStart = position + 8;
+        }
+        if (metadataLength == 0) {
+          break;
+        }
+
+        var message = Table.root(file, metadataStart);
+        var bodyStart = metadataStart + metadataLength;
+        var bodyLength = message.getLong(3, 0);
+        switch (message.getByte(1)) {
+          case HEADER_SCHEMA -> column = column(path, message.table(2), name);
+          case HEADER_RECORD_BATCH -> {
+            Preconditions.checkState(
+                column != null, "%s has a record batch before its schema", path);
+            var batch = message.table(2);
+            Preconditions.checkArgument(
+                batch.field(3) == 0, "%s is compressed and cannot be mapped in place", path);
+            var rows = Math.toIntExact(batch.getLong(0, 0));
+            var nodes = batch.vector(1);
+            var nullCount = file.get(LONG, nodes + 4 + column.node * 16L + 8);
+            Preconditions.checkArgument(nullCount == 0, "%s has null vectors", path);
+
+            var buffers = batch.vector(2);
+            var buffer = buffers + 4 + column.valuesBuffer * 16L;
+            var offset = bodyStart + file.get(LONG, buffer);
+            var length = file.get(LONG, buffer + 8);
+            Preconditions.checkArgument(
+                length >= (long) rows * column.dimensions * column.encoding.bytes,
+                "%s has a truncated values buffer",
+                path);
+
+            if (rows > 0) {
+              Preconditions.checkArgument(
+                  batchRows < 0 || (size % batchRows == 0 && rows <= batchRows),
+                  "%s has record batches of differing sizes, rewrite it with a fixed batch size",
+                  path);
+              batchRows = Math.max(batchRows, rows);
+              batchOffsets.add(offset);
+              size = Math.addExact(size, rows);
+            }
+          }
+          default -> {}
+        }
+        position = bodyStart + bodyLength;
+      }
+
+      Preconditions.checkArgument(column != null, "%s has no schema", path);
+      var offsets = batchOffsets.stream().mapToLong(Long::longValue).toArray();
+      return MMapRandomAccessVectorValues.mmap(
+          path, size, column.dimensions, column.encoding, offsets, Math.max(batchRows, 1));
+    }
+  }
+
+  private static boolean isFile(MemorySegment file) {
+    if (file.byteSize() < FILE_MAGIC.length) {
+      return false;
+    }
+    for (int i = 0; i < FILE_MAGIC.length; i++) {
+      if (file.get(ValueLayout.JAVA_BYTE, i) != FILE_MAGIC[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Finds the vector column named {@code name}, or the only vector column if it is null, among the
+   * schema's top level fields.
+   */
+  private static Column column(Path path, Table schema, String name) {
+    Preconditions.checkArgument(
+        schema.getShort(0) == 0, "%s is big endian, only little endian is supported", path);
+
+    var fields = schema.tables(1);
+    var candidates = new ArrayList<Column>();
+    var names = new ArrayList<String>();
+    int node = 0;
+    int buffer = 0;
+    for (var field : fields) {
+      var fieldName = field.string(0);
+      var column = vectorColumn(field, node, buffer);
+      if (column != null && (name == null || name.equals(fieldName))) {
+        candidates.add(column);
+      }
+      names.add(fieldName);
+      node += nodes(field);
+      buffer += buffers(path, field);
+    }
+
+    if (candidates.size() != 1) {
+      throw new RuntimeException(
+          String.format(
+              "%s has %s fixed size list columns of float32, float16, uint8 or int8%s, set the"
+                  + " column to use. columns: %s",
+              path,
+              candidates.isEmpty() ? "no" : "multiple",
+              name == null ? "" : " named " + name,
+              names));
+    }
+    return candidates.getFirst();
+  }
+
+  private static Column vectorColumn(Table field, int node, int buffer) {
+    if (field.getByte(2) != TYPE_FIXED_SIZE_LIST) {
+      return null;
+    }
+
+    var children = field.tables(5);
+    if (children.size() != 1) {
+      return null;
+    }
+    var child = children.getFirst();
+    var childType = child.table(3);
+    Encoding encoding;
+    if (child.getByte(2) == TYPE_FLOATING_POINT && childType.getShort(0) == PRECISION_SINGLE) {
+      encoding = Encoding.FLOAT32;
+    } else if (child.getByte(2) == TYPE_FLOATING_POINT
+        && childType.getShort(0) == PRECISION_HALF) {
+      encoding = Encoding.FLOAT16;
+    } else if (child.getByte(2) == TYPE_INT && childType.getInt(0, 0) == 8) {
+      encoding = childType.getByte(1) == 0 ? Encoding.UINT8 : Encoding.INT8;
+    } else {
+      return null;
+    }
+
+    // The list's own validity buffer comes first, then the child's validity and values buffers.
+    return new Column(node, buffer + 2, field.table(3).getInt(0, 0), encoding);
+  }
+
+  /** Returns the number of field nodes the field and its descendants contribute to a batch. */
+  private static int nodes(Table field) {
+    int nodes = 1;
+    for (var child : field.tables(5)) {
+      nodes += nodes(child);
+    }
+    return nodes;
+  }
+
+  /** Returns the number of buffers the field and its descendants contribute to a batch. */
+  private static int buffers(Path path, Table field) {
+    var type = field.getByte(2);
+    int buffers =
+        switch (type) {
+          case 1 -> 0; // Null
+          case 13, 16 -> 1; // Struct, FixedSizeList
+          case 2, 3, 6, 7, 8, 9, 10, 11, 12, 15, 17, 18, 21 -> 2;
+          case 4, 5, 19, 20 -> 3; // Binary, Utf8, LargeBinary, LargeUtf8
+          default -> throw new RuntimeException(
+              String.format("%s has a column of unsupported arrow type %s", path, type));
+        };
+    for (var child : field.tables(5)) {
+      buffers += buffers(path, child);
+    }
+    return buffers;
+  }
+
+  /** A flatbuffer table, read just far enough to walk Arrow's IPC metadata. */
+  private record Table(MemorySegment segment, long position) {
+
+    static Table root(MemorySegment segment, long position) {
+      return new Table(segment, position + Integer.toUnsignedLong(segment.get(INT, position)));
+    }
+
+    /** Returns the absolute position of field {@code i}, or 0 if it is not set. */
+    long field(int i) {
+      var vtable = position - segment.get(INT, position);
+      var vtableLength = Short.toUnsignedInt(segment.get(SHORT, vtable));
+      var entry = 4 + 2 * i;
+      if (entry >= vtableLength) {
+        return 0;
+      }
+      var offset = Short.toUnsignedInt(segment.get(SHORT, vtable + entry));
+      return offset == 0 ? 0 : position + offset;
+    }
+
+    byte getByte(int i) {
+      var field = field(i);
+      return field == 0 ? 0 : segment.get(ValueLayout.JAVA_BYTE, field);
+    }
+
+    short getShort(int i) {
+      var field = field(i);
+      return field == 0 ? 0 : segment.get(SHORT, field);
+    }
+
+    int getInt(int i, int defaultValue) {
+      var field = field(i);
+      return field == 0 ? defaultValue : segment.get(INT, field);
+    }
+
+    long getLong(int i, long defaultValue) {
+      var field = field(i);
+      return field == 0 ? defaultValue : segment.get(LONG, field);
+    }
+
+    /** Returns the position of the referenced object's first byte, e.g. a vector's length. */
+    private long reference(int i) {
+      var field = field(i);
+      Preconditions.checkState(field != 0, "missing flatbuffer field %s", i);
+      return field + Integer.toUnsignedLong(segment.get(INT, field));
+    }
+
+    Table table(int i) {
+      return new Table(segment, reference(i));
+    }
+
+    long vector(int i) {
+      return reference(i);
+    }
+
+    List<Table> tables(int i) {
+      if (field(i) == 0) {
+        return List.of();
+      }
+      var vector = vector(i);
+      var length = segment.get(INT, vector);
+      var tables = new ArrayList<Table>(length);
+      for (int j = 0; j < length; j++) {
+        var element = vector + 4 + 4L * j;
+        tables.add(new Table(segment, element + Integer.toUnsignedLong(segment.get(INT, element))));
+      }
+      return tables;
+    }
+
+    String string(int i) {
+      if (field(i) == 0) {
+        return null;
+      }
+      var string = reference(i);
+      var bytes = new byte[segment.get(INT, string)];
+      MemorySegment.copy(segment, ValueLayout.JAVA_BYTE, string + 4, bytes, 0, bytes.length);
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+  }
+}
@@ -1,7 +1,6 @@
 package com.github.kevindrosendahl.javaannbench.dataset;
 
 import com.github.kevindrosendahl.javaannbench.util.MMapRandomAccessVectorValues;
-import java.util.List;
 
 public record Dataset(
     String name,
@@ -9,4 +8,4 @@ public record Dataset(
     int dimensions,
     MMapRandomAccessVectorValues train,
     MMapRandomAccessVectorValues test,
-    List<List<Integer>> groundTruth) {}
+    Neighbors groundTruth) {}
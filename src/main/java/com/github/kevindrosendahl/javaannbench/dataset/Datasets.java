@@ -2,9 +2,12 @@ package com.github.kevindrosendahl.javaannbench.dataset;
 
 import com.github.kevindrosendahl.javaannbench.util.S3;
 import com.github.kevindrosendahl.javaannbench.util.Tarball;
+import com.github.kevindrosendahl.javaannbench.util.Yaml;
 import com.google.common.base.Preconditions;
 import java.io.IOException;
 import java.nio.file.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public enum Datasets {
   COHERE_WIKI_22_12_EN_768(
@@ -22,6 +25,11 @@ public enum Datasets {
   NYTIMES_256("nytimes-256-angular", 290000, 10000, 256, SimilarityFunction.COSINE),
   SIFT_128("sift-128-euclidean", 1000000, 10000, 128, SimilarityFunction.EUCLIDEAN);
 
+  public static final String NEIGHBORS_FILE = "neighbors.ivecs";
+  public static final String DESCRIPTION_FILE = "dataset.yaml";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(Datasets.class);
+
   public final String name;
   public final int numTrainVectors;
   public final int numTestVectors;
@@ -41,8 +49,41 @@ public enum Datasets {
     this.similarityFunction = similarityFunction;
   }
 
+  /**
+   * Describes a dataset whose files are in one of the {@link VectorFormats}, read from {@value
+   * #DESCRIPTION_FILE} in the dataset's directory. Paths are relative to the directory, and
+   * {@code column} picks the vector column of Arrow files. Without {@code neighbors}, ground truth
+   * is read from {@value #NEIGHBORS_FILE} if it has been generated.
+   *
+   * <p>Setting {@code encoding} to {@code int8}, {@code float16} or {@code bfloat16} converts the
+   * vectors the first time the dataset is loaded, see {@link Int8Quantizer} and {@link
+   * HalfFloatConverter}, and writes them to converted-train and converted-test files in the
+   * dataset's directory to be reused afterwards. Ground truth generated for the dataset is then
+   * computed on the converted vectors, so a directory that only holds a description pointing at
+   * another dataset's files gives a variant of it that takes less page cache.
+   *
+   * <pre>
+   * similarity: cosine
+   * train: base.fbin
+   * test: query.fbin
+   * neighbors: groundtruth.ibin
+   * </pre>
+   */
+  public record Description(
+      String similarity,
+      String train,
+      String test,
+      String neighbors,
+      String column,
+      String encoding) {}
+
   public static Dataset load(Path datasetsPath, String name)
       throws IOException, InterruptedException {
+    var descriptionPath = datasetsPath.resolve(name).resolve(DESCRIPTION_FILE);
+    if (descriptionPath.toFile().exists()) {
+      return load(name, descriptionPath);
+    }
+
     var description =
         switch (name) {
           case "cohere-wiki-22-12-en-768-euclidean" -> COHERE_WIKI_22_12_EN_768;
@@ -69,11 +110,102 @@ public enum Datasets {
     Preconditions.checkArgument(testPath.toFile().exists());
     var test = FVecs.mmap(testPath, description.numTestVectors, description.dimensions);
 
-    var neighborsPath = datasetPath.resolve("neighbors.ivecs");
-    Preconditions.checkArgument(neighborsPath.toFile().exists());
-    var neighbors = IVecs.load(neighborsPath, description.numTestVectors, 100);
+    var neighborsPath = datasetPath.resolve(NEIGHBORS_FILE);
+    Neighbors neighbors = null;
+    if (neighborsPath.toFile().exists()) {
+      neighbors =
+          Neighbors.of(
+              IVecs.load(neighborsPath, description.numTestVectors, GroundTruth.DEFAULT_K),
+              GroundTruth.DEFAULT_K);
+    } else {
+      LOGGER.warn("no ground truth found at {}, run with --ground-truth to generate", neighborsPath);
+    }
 
     return new Dataset(
         name, description.similarityFunction, description.dimensions, train, test, neighbors);
   }
+
+  private static Dataset load(String name, Path descriptionPath) throws IOException {
+    var description = Yaml.fromYaml(descriptionPath.toFile(), Description.class);
+    Preconditions.checkArgument(
+        description.similarity != null && description.train != null && description.test != null,
+        "%s must set similarity, train and test",
+        descriptionPath);
+    var datasetPath = descriptionPath.getParent();
+
+    var train = VectorFormats.open(datasetPath.resolve(description.train), description.column);
+    var test = VectorFormats.open(datasetPath.resolve(description.test), description.column);
+    Preconditions.checkArgument(
+        train.dimension() == test.dimension(),
+        "train vectors have %s dimensions but test vectors have %s",
+        train.dimension(),
+        test.dimension());
+    var similarity = similarity(description.similarity);
+
+    if (description.encoding != null) {
+      var encoding = VectorConverter.encoding(description.encoding);
+      if (train.encoding() != encoding) {
+        var extension = VectorFormats.binExtension(encoding);
+        var convertedTrain = datasetPath.resolve("converted-train." + extension);
+        var convertedTest = datasetPath.resolve("converted-test." + extension);
+        if (!convertedTrain.toFile().exists() || !convertedTest.toFile().exists()) {
+          var converter = VectorConverter.of(encoding, train, similarity);
+          LOGGER.info("converting {} vectors with {}", train.encoding(), converter);
+          converter.write(train, convertedTrain);
+          converter.write(test, convertedTest);
+        }
+        train = VectorFormats.open(convertedTrain, null);
+        test = VectorFormats.open(convertedTest, null);
+      }
+    }
+
+    LOGGER.info(
+        "opened {} {} train and {} test {} vectors of {} dimensions",
+        name,
+        train.size(),
+        test.size(),
+        train.encoding(),
+        train.dimension());
+
+    Neighbors neighbors = null;
+    var generatedPath = datasetPath.resolve(NEIGHBORS_FILE);
+    if (description.neighbors != null) {
+      neighbors = VectorFormats.neighbors(datasetPath.resolve(description.neighbors));
+      Preconditions.checkArgument(
+          neighbors.size() == test.size(),
+          "%s has ground truth for %s queries, expected %s",
+          description.neighbors,
+          neighbors.size(),
+          test.size());
+    } else if (generatedPath.toFile().exists()) {
+      neighbors =
+          Neighbors.of(
+              IVecs.load(generatedPath, test.size(), GroundTruth.DEFAULT_K),
+              GroundTruth.DEFAULT_K);
+    } else {
+      LOGGER.warn(
+          "no ground truth found at {}, run with --ground-truth to generate", generatedPath);
+    }
+
+    return new Dataset(name, similarity, train.dimension(), train, test, neighbors);
+  }
+
+  private static SimilarityFunction similarity(String similarity) {
+    return switch (similarity.toLowerCase()) {
+      case "cosine", "angular" -> SimilarityFunction.COSINE;
+      case "dot_product", "dot", "ip" -> SimilarityFunction.DOT_PRODUCT;
+      case "euclidean", "l2" -> SimilarityFunction.EUCLIDEAN;
+      default -> throw new RuntimeException("unknown similarity " + similarity);
+    };
+  }
+
+  /**
+   * Returns the path of the ground truth file for {@code numQueries} train vectors sampled with
+   * {@code seed}, as used when running with {@code testOnTrain}.
+   */
+  public static Path trainNeighborsPath(Path datasetsPath, String name, int seed, int numQueries) {
+    return datasetsPath
+        .resolve(name)
+        .resolve(String.format("train-neighbors-seed:%s-queries:%s.ivecs", seed, numQueries));
+  }
 }
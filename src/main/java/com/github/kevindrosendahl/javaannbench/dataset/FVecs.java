@@ -2,10 +2,8 @@ package com.github.kevindrosendahl.javaannbench.dataset;
 
 import com.github.kevindrosendahl.javaannbench.util.MMapRandomAccessVectorValues;
 import io.github.jbellis.jvector.graph.RandomAccessVectorValues;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.file.Path;
 import java.util.List;
 
@@ -16,59 +14,33 @@ public class FVecs {
     return new MMapRandomAccessVectorValues(path, size, dimensions);
   }
 
+  /**
+   * Writes the vectors in chunks on multiple threads, each reading from its own {@link
+   * RandomAccessVectorValues#copy()}.
+   */
   public static void write(Path path, RandomAccessVectorValues<float[]> vectors)
       throws IOException {
-    try (var fos = new FileOutputStream(path.toFile());
-        var channel = fos.getChannel()) {
-
-      int size = vectors.size();
-      int dimension = vectors.dimension();
-      int chunkSize = 1024;
-      long position = 0;
-
-      var buffer = ByteBuffer.allocate(chunkSize * dimension * Float.BYTES);
-      buffer.order(ByteOrder.LITTLE_ENDIAN);
-
-      for (int i = 0; i < size; i++) {
-        var vector = vectors.vectorValue(i);
-        for (float f : vector) {
-          buffer.putFloat(f);
-        }
-
-        if (!buffer.hasRemaining()) {
-          buffer.flip();
-          channel.position(position);
-          channel.write(buffer);
-          position += buffer.limit();
-          buffer.clear();
-        }
-      }
-
-      // Handle any remaining data
-      if (buffer.position() > 0) {
-        buffer.flip();
-        channel.position(position);
-        channel.write(buffer);
-      }
-    }
+    VectorFiles.write(
+        path,
+        vectors.size(),
+        vectors.dimension() * Float.BYTES,
+        () -> {
+          var copy = vectors.copy();
+          return (row, buffer) -> put(copy.vectorValue((int) row), buffer);
+        });
   }
 
   public static void write(Path path, List<float[]> vectors) throws IOException {
-    try (var fos = new FileOutputStream(path.toFile());
-        var channel = fos.getChannel()) {
-
-      int size = vectors.size();
-      var buffer = ByteBuffer.allocate(size * vectors.get(0).length * Float.BYTES);
-      buffer.order(ByteOrder.LITTLE_ENDIAN);
-
-      for (var vector : vectors) {
-        for (float f : vector) {
-          buffer.putFloat(f);
-        }
-      }
+    VectorFiles.write(
+        path,
+        vectors.size(),
+        vectors.get(0).length * Float.BYTES,
+        () -> (row, buffer) -> put(vectors.get((int) row), buffer));
+  }
 
-      buffer.flip();
-      channel.write(buffer);
+  private static void put(float[] vector, ByteBuffer buffer) {
+    for (float f : vector) {
+      buffer.putFloat(f);
     }
   }
 }
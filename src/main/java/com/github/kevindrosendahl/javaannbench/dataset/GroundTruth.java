@@ -0,0 +1,146 @@
+package com.github.kevindrosendahl.javaannbench.dataset;
+
+import com.github.kevindrosendahl.javaannbench.display.Progress;
+import com.github.kevindrosendahl.javaannbench.util.MMapRandomAccessVectorValues;
+import com.github.kevindrosendahl.javaannbench.util.Madvise;
+import com.github.kevindrosendahl.javaannbench.util.TopK;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * GroundTruth computes the exact nearest neighbors of a set of queries with a tiled, multi-threaded
+ * SIMD scan over a mmapped train set.
+ *
+ * <p>The train set is streamed through in chunks. Within a chunk, each thread owns a tile of
+ * queries and scores them against a small block of train vectors at a time, so the block stays in
+ * cache while it is reused by every query in the tile. Once a chunk has been scanned its pages are
+ * released, so memory usage is bounded by the chunk size plus one heap of size k per query,
+ * regardless of the size of the train set.
+ */
+public class GroundTruth {
+
+  public static final int DEFAULT_K = 100;
+
+  private static final int CHUNK_VECTORS = 1 << 18;
+  private static final int QUERY_TILE = 16;
+  private static final int TRAIN_BLOCK = 64;
+
+  /** Decides whether a train vector may be returned for a query. */
+  public interface Filter {
+    boolean accept(int query, int ord);
+  }
+
+  /**
+   * Returns the ids of the exact top {@code k} train vectors for each query, ordered from most to
+   * least similar.
+   */
+  public static int[][] compute(
+      MMapRandomAccessVectorValues train,
+      float[][] queries,
+      SimilarityFunction similarityFunction,
+      int k,
+      int numThreads,
+      Progress progress) {
+    return compute(train, queries, similarityFunction, k, numThreads, progress, null);
+  }
+
+  /**
+   * Returns the ids of the exact top {@code k} train vectors accepted by {@code filter} for each
+   * query, ordered from most to least similar. A query may have fewer than {@code k} results if
+   * the filter accepts fewer train vectors.
+   */
+  public static int[][] compute(
+      MMapRandomAccessVectorValues train,
+      float[][] queries,
+      SimilarityFunction similarityFunction,
+      int k,
+      int numThreads,
+      Progress progress,
+      Filter filter) {
+    var heaps = new TopK[queries.length];
+    for (int i = 0; i < queries.length; i++) {
+      heaps[i] = new TopK(k);
+    }
+
+    int size = train.size();
+    int numTiles = (queries.length + QUERY_TILE - 1) / QUERY_TILE;
+
+    try (var pool = new ForkJoinPool(numThreads)) {
+      for (int chunkStart = 0; chunkStart < size; chunkStart += CHUNK_VECTORS) {
+        int start = chunkStart;
+        int end = (int) Math.min((long) chunkStart + CHUNK_VECTORS, size);
+
+        train.advise(start, end, Madvise.Advice.WILLNEED);
+        if (end < size) {
+          var nextEnd = (int) Math.min((long) end + CHUNK_VECTORS, size);
+          train.advise(end, nextEnd, Madvise.Advice.WILLNEED);
+        }
+
+        pool.submit(
+                () ->
+                    IntStream.range(0, numTiles)
+                        .parallel()
+                        .forEach(
+                            tile ->
+                                scanTile(
+                                    train,
+                                    start,
+                                    end,
+                                    queries,
+                                    heaps,
+                                    tile * QUERY_TILE,
+                                    Math.min((tile + 1) * QUERY_TILE, queries.length),
+                                    similarityFunction,
+                                    filter)))
+            .join();
+
+        train.advise(start, end, Madvise.Advice.DONTNEED);
+        progress.inc(end - start);
+      }
+    }
+
+    var results = new int[queries.length][];
+    for (int i = 0; i < queries.length; i++) {
+      results[i] = new int[heaps[i].size()];
+      heaps[i].drain(results[i], null);
+    }
+    return results;
+  }
+
+  /**
+   * Returns {@code n} train ordinals sampled with replacement, in the same order that {@code
+   * QueryBench} samples them when running with {@code testOnTrain}.
+   */
+  public static int[] sampleTrainOrdinals(int trainSize, int n, Random random) {
+    var ordinals = new int[n];
+    for (int i = 0; i < n; i++) {
+      ordinals[i] = random.nextInt(trainSize);
+    }
+    return ordinals;
+  }
+
+  private static void scanTile(
+      MMapRandomAccessVectorValues train,
+      int start,
+      int end,
+      float[][] queries,
+      TopK[] heaps,
+      int tileStart,
+      int tileEnd,
+      SimilarityFunction similarityFunction,
+      Filter filter) {
+    for (int blockStart = start; blockStart < end; blockStart += TRAIN_BLOCK) {
+      int blockEnd = Math.min(blockStart + TRAIN_BLOCK, end);
+      for (int q = tileStart; q < tileEnd; q++) {
+        var query = queries[q];
+        var heap = heaps[q];
+        for (int ord = blockStart; ord < blockEnd; ord++) {
+          if (filter == null || filter.accept(q, ord)) {
+            heap.insert(ord, train.score(similarityFunction, query, ord));
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,48 @@
+package com.github.kevindrosendahl.javaannbench.dataset;
+
+import com.github.kevindrosendahl.javaannbench.util.MMapRandomAccessVectorValues.Encoding;
+import java.nio.ByteBuffer;
+
+/**
+ * HalfFloatConverter rounds vectors to one of the 16 bit float formats. float16 keeps 10 bits of
+ * mantissa but only represents magnitudes up to 65504, bfloat16 keeps float's range with 7 bits of
+ * mantissa. Both round to nearest, ties to even.
+ */
+enum HalfFloatConverter implements VectorConverter {
+  FLOAT16 {
+    @Override
+    public Encoding encoding() {
+      return Encoding.FLOAT16;
+    }
+
+    @Override
+    public void put(float[] vector, ByteBuffer buffer) {
+      for (var value : vector) {
+        buffer.putShort(Float.floatToFloat16(value));
+      }
+    }
+  },
+
+  BFLOAT16 {
+    @Override
+    public Encoding encoding() {
+      return Encoding.BFLOAT16;
+    }
+
+    @Override
+    public void put(float[] vector, ByteBuffer buffer) {
+      for (var value : vector) {
+        buffer.putShort(toBFloat16(value));
+      }
+    }
+  };
+
+  static short toBFloat16(float value) {
+    var bits = Float.floatToRawIntBits(value);
+    if (Float.isNaN(value)) {
+      // Keep NaNs NaN even if every set mantissa bit would be truncated.
+      return (short) ((bits >>> 16) | 0x40);
+    }
+    return (short) ((bits + 0x7fff + ((bits >>> 16) & 1)) >>> 16);
+  }
+}
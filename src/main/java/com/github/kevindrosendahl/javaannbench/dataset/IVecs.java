@@ -1,56 +1,62 @@
 package com.github.kevindrosendahl.javaannbench.dataset;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import com.google.common.base.Preconditions;
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
-import java.util.ArrayList;
-import java.util.List;
 
 public class IVecs {
 
-  public static List<List<Integer>> load(Path path, int size, int dimensions) throws IOException {
-    try (var fis = new FileInputStream(path.toFile());
-        var channel = fis.getChannel()) {
-
-      var buffer = ByteBuffer.allocate(size * dimensions * Integer.BYTES);
-      buffer.order(ByteOrder.LITTLE_ENDIAN);
-      channel.read(buffer);
-      buffer.flip();
-
-      List<List<Integer>> ints = new ArrayList<>(size);
-      for (int i = 0; i < size; i++) {
-        List<Integer> innerList = new ArrayList<>(dimensions);
-        for (int j = 0; j < dimensions; j++) {
-          innerList.add(buffer.getInt());
-        }
-        ints.add(innerList);
-      }
-
-      return ints;
+  private static final ValueLayout.OfInt INT =
+      ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+  /**
+   * Reads {@code size} rows of {@code dimensions} ints into a single row-major array, copying out
+   * of a mapping of the file on multiple threads.
+   */
+  public static int[] load(Path path, int size, int dimensions) throws IOException {
+    var count = (long) size * dimensions;
+    Preconditions.checkArgument(
+        count <= Integer.MAX_VALUE - 8,
+        "%s rows of %s ints are too many to load into an array",
+        size,
+        dimensions);
+
+    var ints = new int[(int) count];
+    try (var arena = Arena.ofShared();
+        var channel = FileChannel.open(path)) {
+      var segment = VectorFiles.map(channel, path, count * Integer.BYTES, arena);
+      VectorFiles.forEachChunk(
+          count,
+          VectorFiles.CHUNK_BYTES / Integer.BYTES,
+          (start, end) ->
+              MemorySegment.copy(
+                  segment, INT, start * Integer.BYTES, ints, (int) start, (int) (end - start)));
     }
+    return ints;
   }
 
-  public static void write(Path path, List<List<Integer>> ints) throws IOException {
-    try (var fos = new FileOutputStream(path.toFile());
-        var channel = fos.getChannel()) {
-
-      int size = ints.size();
-      int dimensions = ints.get(0).size();
-
-      var buffer = ByteBuffer.allocate(size * dimensions * Integer.BYTES);
-      buffer.order(ByteOrder.LITTLE_ENDIAN);
-
-      for (var outer : ints) {
-        for (var inner : outer) {
-          buffer.putInt(inner);
-        }
-      }
-
-      buffer.flip();
-      channel.write(buffer);
-    }
+  public static void write(Path path, int[][] ints) throws IOException {
+    int dimensions = ints[0].length;
+    VectorFiles.write(
+        path,
+        ints.length,
+        dimensions * Integer.BYTES,
+        () ->
+            (row, buffer) -> {
+              var values = ints[(int) row];
+              Preconditions.checkArgument(
+                  values.length == dimensions,
+                  "expected rows of %s ints, got %s",
+                  dimensions,
+                  values.length);
+              for (var value : values) {
+                buffer.putInt(value);
+              }
+            });
   }
 }
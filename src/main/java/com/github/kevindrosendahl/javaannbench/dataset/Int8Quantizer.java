@@ -0,0 +1,69 @@
+package com.github.kevindrosendahl.javaannbench.dataset;
+
+import com.github.kevindrosendahl.javaannbench.util.MMapRandomAccessVectorValues;
+import com.github.kevindrosendahl.javaannbench.util.MMapRandomAccessVectorValues.Encoding;
+import com.google.common.base.Preconditions;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.DoubleAccumulator;
+
+/**
+ * Int8Quantizer maps float or uint8 vectors onto int8, so that a dataset can be indexed as byte
+ * vectors and its ground truth computed on exactly the values that were indexed.
+ *
+ * <p>Float components are multiplied by a single scale, chosen so that the largest magnitude in
+ * the train set maps to 127, and rounded. uint8 euclidean datasets are instead shifted down by 128,
+ * which preserves their distances exactly. Shifting would change cosine and dot product scores, so
+ * uint8 components are scaled into [0, 127] for those.
+ */
+record Int8Quantizer(float scale, float shift) implements VectorConverter {
+
+  private static final int CHUNK_VECTORS = 1 << 14;
+
+  static Int8Quantizer fit(
+      MMapRandomAccessVectorValues train, SimilarityFunction similarityFunction) {
+    return switch (train.encoding()) {
+      case INT8 -> new Int8Quantizer(1, 0);
+      case UINT8 -> similarityFunction == SimilarityFunction.EUCLIDEAN
+          ? new Int8Quantizer(1, -128)
+          : new Int8Quantizer(127f / 255, 0);
+      case FLOAT32, FLOAT16, BFLOAT16 -> {
+        var max = new DoubleAccumulator(Math::max, 0);
+        VectorFiles.forEachChunk(
+            train.size(),
+            CHUNK_VECTORS,
+            (start, end) -> {
+              var vector = new float[train.dimension()];
+              float chunkMax = 0;
+              for (var ord = start; ord < end; ord++) {
+                train.vectorValue((int) ord, vector);
+                for (var value : vector) {
+                  chunkMax = Math.max(chunkMax, Math.abs(value));
+                }
+              }
+              max.accumulate(chunkMax);
+            });
+        Preconditions.checkArgument(
+            max.get() > 0 && Double.isFinite(max.get()),
+            "cannot quantize train vectors whose largest component is %s",
+            max.get());
+        yield new Int8Quantizer((float) (127 / max.get()), 0);
+      }
+    };
+  }
+
+  @Override
+  public Encoding encoding() {
+    return Encoding.INT8;
+  }
+
+  @Override
+  public void put(float[] vector, ByteBuffer buffer) {
+    for (var value : vector) {
+      buffer.put(quantize(value));
+    }
+  }
+
+  byte quantize(float value) {
+    return (byte) Math.clamp(Math.round(value * scale + shift), Byte.MIN_VALUE, Byte.MAX_VALUE);
+  }
+}
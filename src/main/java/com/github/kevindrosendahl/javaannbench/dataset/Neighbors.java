@@ -0,0 +1,173 @@
+package com.github.kevindrosendahl.javaannbench.dataset;
+
+import com.github.kevindrosendahl.javaannbench.util.IntSet;
+import com.github.kevindrosendahl.javaannbench.util.MMapRandomAccessVectorValues;
+import com.google.common.base.Preconditions;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Neighbors is the ground truth for a set of queries: the ids of each query's exact nearest train
+ * vectors, most similar first.
+ *
+ * <p>Every query's ids are stored back to back in a single int[], so ground truth costs no more
+ * heap than the file it was loaded from, and recall is computed against a reused {@link IntSet}
+ * without allocating or boxing.
+ *
+ * <p>Recall is the fraction of a query's top k ground truth ids that were returned. Neighbors
+ * returned by {@link #withScores} additionally count a returned id that is not among them as a hit
+ * if the querier scored it at least as well as the k-th neighbor, so that an index is not penalized
+ * for breaking a tie differently than exact search did. Only results with scores can be counted
+ * this way, since looking up a result's vector to score it would fault in the dataset mid-query.
+ */
+public final class Neighbors {
+
+  private static final ThreadLocal<IntSet> SETS =
+      ThreadLocal.withInitial(() -> new IntSet(GroundTruth.DEFAULT_K));
+
+  // Querier scores are computed differently than exact search's, so are only equal to a few ulps.
+  private static final float TIE_TOLERANCE = 1e-5f;
+
+  private final int[] ids;
+  private final int[] offsets;
+  private final float[] scores;
+
+  private Neighbors(int[] ids, int[] offsets, float[] scores) {
+    this.ids = ids;
+    this.offsets = offsets;
+    this.scores = scores;
+  }
+
+  /** Returns the neighbors of {@code ids.length / k} queries with {@code k} neighbors each. */
+  public static Neighbors of(int[] ids, int k) {
+    Preconditions.checkArgument(
+        k > 0 && ids.length % k == 0, "%s ids are not a multiple of k=%s", ids.length, k);
+    var offsets = new int[ids.length / k + 1];
+    for (int q = 0; q < offsets.length; q++) {
+      offsets[q] = q * k;
+    }
+    return new Neighbors(ids, offsets, null);
+  }
+
+  /** Returns the neighbors of each query, which need not all have the same number. */
+  public static Neighbors of(int[][] neighbors) {
+    var offsets = new int[neighbors.length + 1];
+    for (int q = 0; q < neighbors.length; q++) {
+      offsets[q + 1] = offsets[q] + neighbors[q].length;
+    }
+
+    var ids = new int[offsets[neighbors.length]];
+    for (int q = 0; q < neighbors.length; q++) {
+      System.arraycopy(neighbors[q], 0, ids, offsets[q], neighbors[q].length);
+    }
+    return new Neighbors(ids, offsets, null);
+  }
+
+  /**
+   * Returns these neighbors with recall made tie aware, scoring every neighbor against its query.
+   * {@code queries} must be the queries the neighbors were computed for, in the same order.
+   */
+  public Neighbors withScores(
+      MMapRandomAccessVectorValues train,
+      List<float[]> queries,
+      SimilarityFunction similarityFunction) {
+    Preconditions.checkArgument(
+        queries.size() == size(), "expected %s queries, got %s", size(), queries.size());
+    var queryArray = queries.toArray(float[][]::new);
+
+    var scores = new float[ids.length];
+    IntStream.range(0, size())
+        .parallel()
+        .forEach(
+            q -> {
+              for (int i = offsets[q]; i < offsets[q + 1]; i++) {
+                scores[i] = train.score(similarityFunction, queryArray[q], ids[i]);
+              }
+            });
+    return new Neighbors(ids, offsets, scores);
+  }
+
+  public int size() {
+    return offsets.length - 1;
+  }
+
+  /** Returns the number of neighbors of query {@code q}. */
+  public int count(int q) {
+    return offsets[q + 1] - offsets[q];
+  }
+
+  /** Returns the {@code i}th nearest neighbor of query {@code q}. */
+  public int id(int q, int i) {
+    Preconditions.checkElementIndex(i, count(q));
+    return ids[offsets[q] + i];
+  }
+
+  /**
+   * Returns the recall at {@code k} of the first {@code count} of {@code results} for query {@code
+   * q}, out of however many of the top k it has neighbors for, or NaN if it has none. Only the
+   * first k results are considered.
+   */
+  public double recall(int q, int[] results, int count, int k) {
+    return recall(q, results, null, count, k);
+  }
+
+  /**
+   * Like {@link #recall(int, int[], int, int)}, where {@code resultScores} are the scores the
+   * querier returned for {@code results}, on the scale of {@link
+   * com.github.kevindrosendahl.javaannbench.util.VectorMath#score}, for tie aware recall. NaN
+   * scores are never counted as ties.
+   */
+  public double recall(int q, int[] results, float[] resultScores, int count, int k) {
+    var n = Math.min(k, count(q));
+    if (n == 0) {
+      return Double.NaN;
+    }
+
+    var truth = truth(q, n);
+    int hits = 0;
+    for (int i = 0; i < Math.min(count, k); i++) {
+      if (truth.contains(results[i]) || (resultScores != null && isTie(q, n, resultScores[i]))) {
+        hits++;
+      }
+    }
+    return (double) Math.min(hits, n) / n;
+  }
+
+  /**
+   * Returns the recall at {@code k} of {@code results} for query {@code q}, which has no scores to
+   * count ties with.
+   */
+  public double recall(int q, List<Integer> results, int k) {
+    var n = Math.min(k, count(q));
+    if (n == 0) {
+      return Double.NaN;
+    }
+
+    var truth = truth(q, n);
+    int hits = 0;
+    for (int i = 0; i < Math.min(results.size(), k); i++) {
+      if (truth.contains(results.get(i))) {
+        hits++;
+      }
+    }
+    return (double) Math.min(hits, n) / n;
+  }
+
+  private IntSet truth(int q, int n) {
+    var truth = SETS.get();
+    truth.clear(n);
+    for (int i = offsets[q]; i < offsets[q] + n; i++) {
+      truth.add(ids[i]);
+    }
+    return truth;
+  }
+
+  private boolean isTie(int q, int n, float score) {
+    if (scores == null) {
+      return false;
+    }
+
+    var kth = scores[offsets[q] + n - 1];
+    return score >= kth - TIE_TOLERANCE * Math.abs(kth);
+  }
+}
@@ -0,0 +1,74 @@
+package com.github.kevindrosendahl.javaannbench.dataset;
+
+import com.github.kevindrosendahl.javaannbench.util.MMapRandomAccessVectorValues;
+import com.github.kevindrosendahl.javaannbench.util.MMapRandomAccessVectorValues.Encoding;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * VectorConverter re-encodes a dataset's vectors into a narrower {@link Encoding}, so that it can
+ * be indexed and scanned with a smaller page cache footprint.
+ */
+interface VectorConverter {
+
+  Encoding encoding();
+
+  /** Puts the vector's components, converted, into the buffer. */
+  void put(float[] vector, ByteBuffer buffer);
+
+  /** Parses the name of an encoding vectors can be converted to: int8, float16 or bfloat16. */
+  static Encoding encoding(String name) {
+    return switch (name) {
+      case "int8" -> Encoding.INT8;
+      case "float16" -> Encoding.FLOAT16;
+      case "bfloat16" -> Encoding.BFLOAT16;
+      default -> throw new RuntimeException(
+          "unsupported encoding " + name + ", expected int8, float16 or bfloat16");
+    };
+  }
+
+  /**
+   * Returns the converter to {@code encoding}, fit to the train vectors it will convert if it
+   * depends on them.
+   */
+  static VectorConverter of(
+      Encoding encoding,
+      MMapRandomAccessVectorValues train,
+      SimilarityFunction similarityFunction) {
+    return switch (encoding) {
+      case INT8 -> Int8Quantizer.fit(train, similarityFunction);
+      case FLOAT16 -> HalfFloatConverter.FLOAT16;
+      case BFLOAT16 -> HalfFloatConverter.BFLOAT16;
+      default -> throw new RuntimeException("vectors cannot be converted to " + encoding);
+    };
+  }
+
+  /**
+   * Writes the converted vectors to {@code path} in the big-ann-benchmarks format, see {@link
+   * VectorFormats}. The file is written under a temporary name and then moved into place, so an
+   * interrupted write is never mistaken for a complete one.
+   */
+  default void write(MMapRandomAccessVectorValues vectors, Path path) throws IOException {
+    var header =
+        ByteBuffer.allocate(2 * Integer.BYTES)
+            .order(ByteOrder.LITTLE_ENDIAN)
+            .putInt(vectors.size())
+            .putInt(vectors.dimension())
+            .flip();
+    var temporary = path.resolveSibling(path.getFileName() + ".tmp");
+    VectorFiles.write(
+        temporary,
+        header,
+        vectors.size(),
+        vectors.dimension() * encoding().bytes,
+        () -> {
+          var vector = new float[vectors.dimension()];
+          return (row, buffer) -> put(vectors.vectorValue((int) row, vector), buffer);
+        });
+    Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE);
+  }
+}
@@ -0,0 +1,115 @@
+package com.github.kevindrosendahl.javaannbench.dataset;
+
+import com.github.kevindrosendahl.javaannbench.util.Exceptions;
+import com.google.common.base.Preconditions;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+
+/**
+ * VectorFiles holds the I/O shared by the dataset readers and writers, whose files are headerless
+ * little-endian rows that can be far larger than a ByteBuffer or an int can address.
+ *
+ * <p>Offsets are always longs. Writers fill a fixed size buffer per thread and write each chunk of
+ * rows at its own position, and readers copy out of a mapping of the file in parallel, so neither
+ * holds more than a chunk per thread on heap beyond what it returns.
+ */
+final class VectorFiles {
+
+  static final int CHUNK_BYTES = 4 << 20;
+
+  /** Puts row {@code row}'s bytes into the buffer. */
+  interface RowWriter {
+    void put(long row, ByteBuffer buffer);
+  }
+
+  /** Handles the elements in [start, end). */
+  interface RangeTask {
+    void run(long start, long end) throws IOException;
+  }
+
+  /**
+   * Writes {@code rows} rows of {@code rowBytes} each to {@code path}, replacing it. Chunks of rows
+   * are filled and written concurrently, each thread by its own writer from {@code writers}.
+   */
+  static void write(Path path, long rows, int rowBytes, Supplier<RowWriter> writers)
+      throws IOException {
+    write(path, ByteBuffer.allocate(0), rows, rowBytes, writers);
+  }
+
+  /** Writes the rows as {@link #write(Path, long, int, Supplier)} does, after {@code header}. */
+  static void write(
+      Path path, ByteBuffer header, long rows, int rowBytes, Supplier<RowWriter> writers)
+      throws IOException {
+    Preconditions.checkArgument(rowBytes > 0, "rows must not be empty");
+    var headerBytes = header.remaining();
+    var rowsPerChunk = Math.max(1, CHUNK_BYTES / rowBytes);
+    var chunks = Math.ceilDiv(rows, rowsPerChunk);
+    var threads = (int) Math.min(Runtime.getRuntime().availableProcessors(), chunks);
+
+    try (var channel =
+        FileChannel.open(
+            path,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.WRITE)) {
+      writeFully(channel, header, 0);
+      IntStream.range(0, threads)
+          .parallel()
+          .forEach(
+              thread ->
+                  Exceptions.wrap(
+                      () -> {
+                        var writer = writers.get();
+                        var buffer =
+                            ByteBuffer.allocate(rowsPerChunk * rowBytes)
+                                .order(ByteOrder.LITTLE_ENDIAN);
+                        for (long chunk = thread; chunk < chunks; chunk += threads) {
+                          var start = chunk * rowsPerChunk;
+                          var end = Math.min(rows, start + rowsPerChunk);
+                          buffer.clear();
+                          for (var row = start; row < end; row++) {
+                            writer.put(row, buffer);
+                          }
+                          buffer.flip();
+                          writeFully(channel, buffer, headerBytes + start * rowBytes);
+                        }
+                      }));
+    }
+  }
+
+  /** Maps the first {@code bytes} of the file, failing if it is shorter than that. */
+  static MemorySegment map(FileChannel channel, Path path, long bytes, Arena arena)
+      throws IOException {
+    var fileBytes = Files.size(path);
+    Preconditions.checkArgument(
+        fileBytes >= bytes, "%s has %s bytes, expected at least %s", path, fileBytes, bytes);
+    return channel.map(MapMode.READ_ONLY, 0, bytes, arena);
+  }
+
+  /** Runs {@code task} over [0, count) in ranges of {@code chunk}, in parallel. */
+  static void forEachChunk(long count, long chunk, RangeTask task) {
+    LongStream.range(0, Math.ceilDiv(count, chunk))
+        .parallel()
+        .forEach(
+            i -> Exceptions.wrap(() -> task.run(i * chunk, Math.min(count, (i + 1) * chunk))));
+  }
+
+  /** Writes all of the buffer at {@code position}, which a single write may not. */
+  private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
+    }
+  }
+}
@@ -0,0 +1,245 @@
+package com.github.kevindrosendahl.javaannbench.dataset;
+
+import com.github.kevindrosendahl.javaannbench.util.MMapRandomAccessVectorValues;
+import com.github.kevindrosendahl.javaannbench.util.MMapRandomAccessVectorValues.Encoding;
+import com.google.common.base.Preconditions;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.regex.Pattern;
+
+/**
+ * VectorFormats opens vector and ground truth files in the common interchange formats in place,
+ * reading their sizes and dimensions from the file rather than from a {@link Datasets} entry.
+ *
+ * <p>The format is picked by extension:
+ *
+ * <ul>
+ *   <li>{@code .fvecs}, {@code .bvecs} and {@code .ivecs}: the TEXMEX format, where every row is
+ *       prefixed by its dimension as an int32.
+ *   <li>{@code .fbin}, {@code .f16bin}, {@code .bf16bin}, {@code .u8bin}, {@code .i8bin} and
+ *       {@code .ibin}: the big-ann-benchmarks format, an int32 row count and dimension followed by
+ *       the rows. The half precision extensions are our own, the formats have no standard one.
+ *   <li>{@code .npy}: a two dimensional, C ordered NumPy array of {@code <f4}, {@code <f2}, {@code
+ *       u1}, {@code i1} or {@code <i4}.
+ *   <li>{@code .arrow}: an Arrow IPC file or stream with a fixed size list column of float32,
+ *       float16, uint8 or int8, see {@link ArrowIpc}.
+ * </ul>
+ *
+ * <p>Vectors are mmapped and read where they lie, so opening a file costs no time or disk space
+ * proportional to its size.
+ */
+public final class VectorFormats {
+
+  private static final ValueLayout.OfInt INT =
+      ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+  private static final Pattern NPY_DESCR = Pattern.compile("'descr':\\s*'([^']+)'");
+  private static final Pattern NPY_FORTRAN = Pattern.compile("'fortran_order':\\s*(True|False)");
+  private static final Pattern NPY_SHAPE = Pattern.compile("'shape':\\s*\\((\\d+),\\s*(\\d+),?\\)");
+
+  /** Describes where a file's rows are: {@code rows} rows of {@code stride} bytes at an offset. */
+  private record Layout(String type, int rows, int dimensions, long offset, long stride) {}
+
+  private VectorFormats() {}
+
+  /**
+   * Opens the vectors in the file. For Arrow files {@code column} names the vector column, or may
+   * be null to use the only one.
+   */
+  public static MMapRandomAccessVectorValues open(Path path, String column) throws IOException {
+    if (extension(path).equals("arrow")) {
+      return ArrowIpc.open(path, column);
+    }
+
+    var layout = layout(path);
+    var encoding =
+        switch (layout.type) {
+          case "float32" -> Encoding.FLOAT32;
+          case "float16" -> Encoding.FLOAT16;
+          case "bfloat16" -> Encoding.BFLOAT16;
+          case "uint8" -> Encoding.UINT8;
+          case "int8" -> Encoding.INT8;
+          default -> throw new RuntimeException(
+              String.format("%s holds %s rows, not vectors", path, layout.type));
+        };
+    return MMapRandomAccessVectorValues.mmap(
+        path, layout.rows, layout.dimensions, encoding, layout.offset, layout.stride);
+  }
+
+  /** Loads the ground truth in the file, one row of neighbor ids per query. */
+  public static Neighbors neighbors(Path path) throws IOException {
+    var layout = layout(path);
+    Preconditions.checkArgument(
+        layout.type.equals("int32"), "%s holds %s rows, not neighbor ids", path, layout.type);
+    var count = (long) layout.rows * layout.dimensions;
+    Preconditions.checkArgument(
+        count <= Integer.MAX_VALUE - 8, "%s has too many neighbors to load into an array", path);
+
+    var ids = new int[(int) count];
+    try (var arena = Arena.ofShared();
+        var channel = FileChannel.open(path)) {
+      var segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+      var rowsPerChunk = Math.max(1, VectorFiles.CHUNK_BYTES / (int) layout.stride);
+      VectorFiles.forEachChunk(
+          layout.rows,
+          rowsPerChunk,
+          (start, end) -> {
+            for (var row = start; row < end; row++) {
+              MemorySegment.copy(
+                  segment,
+                  INT,
+                  layout.offset + row * layout.stride,
+                  ids,
+                  (int) (row * layout.dimensions),
+                  layout.dimensions);
+            }
+          });
+    }
+    return Neighbors.of(ids, layout.dimensions);
+  }
+
+  private static Layout layout(Path path) throws IOException {
+    var extension = extension(path);
+    var fileBytes = Files.size(path);
+    try (var arena = Arena.ofConfined();
+        var channel = FileChannel.open(path)) {
+      var header =
+          channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(fileBytes, 1 << 16), arena);
+      return switch (extension) {
+        case "fvecs" -> texmex(path, header, fileBytes, "float32", Float.BYTES);
+        case "bvecs" -> texmex(path, header, fileBytes, "uint8", Byte.BYTES);
+        case "ivecs" -> texmex(path, header, fileBytes, "int32", Integer.BYTES);
+        case "fbin" -> bin(path, header, fileBytes, "float32", Float.BYTES);
+        case "f16bin" -> bin(path, header, fileBytes, "float16", Short.BYTES);
+        case "bf16bin" -> bin(path, header, fileBytes, "bfloat16", Short.BYTES);
+        case "u8bin" -> bin(path, header, fileBytes, "uint8", Byte.BYTES);
+        case "i8bin" -> bin(path, header, fileBytes, "int8", Byte.BYTES);
+        case "ibin" -> bin(path, header, fileBytes, "int32", Integer.BYTES);
+        case "npy" -> npy(path, header, fileBytes);
+        default -> throw new RuntimeException("unknown vector file format " + path);
+      };
+    }
+  }
+
+  private static Layout texmex(
+      Path path, MemorySegment header, long fileBytes, String type, int bytes) {
+    Preconditions.checkArgument(fileBytes >= Integer.BYTES, "%s is empty", path);
+    var dimensions = header.get(INT, 0);
+    var stride = Integer.BYTES + (long) dimensions * bytes;
+    Preconditions.checkArgument(
+        dimensions > 0 && fileBytes % stride == 0,
+        "%s is not a %s file: %s bytes is not a whole number of %s dimensional rows",
+        path,
+        extension(path),
+        fileBytes,
+        dimensions);
+    return new Layout(
+        type, Math.toIntExact(fileBytes / stride), dimensions, Integer.BYTES, stride);
+  }
+
+  private static Layout bin(
+      Path path, MemorySegment header, long fileBytes, String type, int bytes) {
+    Preconditions.checkArgument(fileBytes >= 2 * Integer.BYTES, "%s is empty", path);
+    var rows = header.get(INT, 0);
+    var dimensions = header.get(INT, Integer.BYTES);
+    var stride = (long) dimensions * bytes;
+    Preconditions.checkArgument(
+        rows >= 0 && dimensions > 0 && fileBytes >= 2 * Integer.BYTES + rows * stride,
+        "%s is not a %s file: it is too short for %s %s dimensional rows",
+        path,
+        extension(path),
+        rows,
+        dimensions);
+    return new Layout(type, rows, dimensions, 2 * Integer.BYTES, stride);
+  }
+
+  /** Parses the header of a NumPy .npy file, see numpy.lib.format. */
+  private static Layout npy(Path path, MemorySegment header, long fileBytes) {
+    var magic = new byte[6];
+    MemorySegment.copy(header, ValueLayout.JAVA_BYTE, 0, magic, 0, magic.length);
+    Preconditions.checkArgument(
+        new String(magic, StandardCharsets.ISO_8859_1).equals("\u0093NUMPY"),
+        "%s is not a .npy file",
+        path);
+
+    var major = header.get(ValueLayout.JAVA_BYTE, 6);
+    long headerLength;
+    long headerStart;
+    if (major == 1) {
+      headerLength =
+          Short.toUnsignedInt(
+              header.get(ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN), 8));
+      headerStart = 10;
+    } else {
+      headerLength = Integer.toUnsignedLong(header.get(INT, 8));
+      headerStart = 12;
+    }
+
+    var dictionary = new byte[(int) headerLength];
+    MemorySegment.copy(
+        header, ValueLayout.JAVA_BYTE, headerStart, dictionary, 0, dictionary.length);
+    var text = new String(dictionary, StandardCharsets.ISO_8859_1);
+
+    var descr = NPY_DESCR.matcher(text);
+    var fortran = NPY_FORTRAN.matcher(text);
+    var shape = NPY_SHAPE.matcher(text);
+    Preconditions.checkArgument(
+        descr.find() && fortran.find() && shape.find(),
+        "%s does not hold a two dimensional array: %s",
+        path,
+        text);
+    Preconditions.checkArgument(
+        fortran.group(1).equals("False"), "%s is Fortran ordered, only C order is supported", path);
+
+    var type =
+        switch (descr.group(1)) {
+          case "<f4" -> "float32";
+          case "<f2" -> "float16";
+          case "|u1", "<u1" -> "uint8";
+          case "|i1", "<i1" -> "int8";
+          case "<i4" -> "int32";
+          default -> throw new RuntimeException(
+              String.format("%s holds unsupported dtype %s", path, descr.group(1)));
+        };
+    var bytes =
+        switch (type) {
+          case "float32", "int32" -> Integer.BYTES;
+          case "float16" -> Short.BYTES;
+          default -> Byte.BYTES;
+        };
+    var rows = Integer.parseInt(shape.group(1));
+    var dimensions = Integer.parseInt(shape.group(2));
+    var offset = headerStart + headerLength;
+    var stride = (long) dimensions * bytes;
+    Preconditions.checkArgument(
+        fileBytes >= offset + rows * stride,
+        "%s is too short for %s %s dimensional rows",
+        path,
+        rows,
+        dimensions);
+    return new Layout(type, rows, dimensions, offset, stride);
+  }
+
+  /** Returns the extension of the big-ann-benchmarks style file holding vectors of the encoding. */
+  static String binExtension(Encoding encoding) {
+    return switch (encoding) {
+      case FLOAT32 -> "fbin";
+      case FLOAT16 -> "f16bin";
+      case BFLOAT16 -> "bf16bin";
+      case UINT8 -> "u8bin";
+      case INT8 -> "i8bin";
+    };
+  }
+
+  private static String extension(Path path) {
+    var name = path.getFileName().toString();
+    var dot = name.lastIndexOf('.');
+    return dot < 0 ? "" : name.substring(dot + 1);
+  }
+}
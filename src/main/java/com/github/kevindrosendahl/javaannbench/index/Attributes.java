@@ -0,0 +1,131 @@
+package com.github.kevindrosendahl.javaannbench.index;
+
+import com.google.common.base.Preconditions;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Attributes assigns every document a synthetic tenant and category, for benchmarking filtered
+ * queries.
+ *
+ * <p>Values are a pure function of the document's id, so ground truth and query filters can be
+ * computed from the train set without reading them back out of an index. With the "uniform"
+ * distribution every value is equally likely; with "zipf" value {@code i} is assigned in proportion
+ * to {@code 1 / (i + 1)}, so a few values are very common and most are rare.
+ */
+public final class Attributes {
+
+  public static final String TENANT_FIELD = "tenant";
+  public static final String CATEGORY_FIELD = "category";
+
+  static final String DEFAULT_CARDINALITY = "0";
+  static final String DEFAULT_DISTRIBUTION = "uniform";
+
+  private static final long TENANT_SALT = 0x5DEECE66DL;
+  private static final long CATEGORY_SALT = 0x2545F4914F6CDD1DL;
+
+  private final int tenants;
+  private final int categories;
+  private final String distribution;
+  private final double[] tenantCdf;
+  private final double[] categoryCdf;
+
+  private Attributes(int tenants, int categories, String distribution) {
+    Preconditions.checkArgument(
+        tenants >= 0 && categories >= 0, "attribute cardinalities must not be negative");
+    this.tenants = tenants;
+    this.categories = categories;
+    this.distribution = distribution;
+    this.tenantCdf = cdf(tenants, distribution);
+    this.categoryCdf = cdf(categories, distribution);
+  }
+
+  public static Attributes of(int tenants, int categories, String distribution) {
+    return new Attributes(tenants, categories, distribution);
+  }
+
+  /** Parses the attributes from an index's build parameters, which need not configure any. */
+  public static Attributes parse(Map<String, String> buildParameters) {
+    return new Attributes(
+        Integer.parseInt(buildParameters.getOrDefault("tenants", DEFAULT_CARDINALITY)),
+        Integer.parseInt(buildParameters.getOrDefault("categories", DEFAULT_CARDINALITY)),
+        Optional.ofNullable(buildParameters.get("attributeDistribution"))
+            .orElse(DEFAULT_DISTRIBUTION));
+  }
+
+  public boolean isEmpty() {
+    return tenants == 0 && categories == 0;
+  }
+
+  public boolean hasTenants() {
+    return tenants > 0;
+  }
+
+  public boolean hasCategories() {
+    return categories > 0;
+  }
+
+  /** Returns the number of distinct values of the field, or zero if it is not indexed. */
+  public int cardinality(String field) {
+    return switch (field) {
+      case TENANT_FIELD -> tenants;
+      case CATEGORY_FIELD -> categories;
+      default -> throw new RuntimeException("unexpected attribute field " + field);
+    };
+  }
+
+  public int tenant(int id) {
+    return value(id, TENANT_SALT, tenantCdf);
+  }
+
+  public int category(int id) {
+    return value(id, CATEGORY_SALT, categoryCdf);
+  }
+
+  public int value(String field, int id) {
+    return switch (field) {
+      case TENANT_FIELD -> tenant(id);
+      case CATEGORY_FIELD -> category(id);
+      default -> throw new RuntimeException("unexpected attribute field " + field);
+    };
+  }
+
+  private static int value(int id, long salt, double[] cdf) {
+    var u = (mix(id ^ salt) >>> 11) * 0x1.0p-53;
+    var index = Arrays.binarySearch(cdf, u);
+    return Math.min(index >= 0 ? index + 1 : -index - 1, cdf.length - 1);
+  }
+
+  private static double[] cdf(int cardinality, String distribution) {
+    var cdf = new double[cardinality];
+    double total = 0;
+    for (int i = 0; i < cardinality; i++) {
+      total +=
+          switch (distribution) {
+            case "uniform" -> 1;
+            case "zipf" -> 1.0 / (i + 1);
+            default -> throw new RuntimeException(
+                "unexpected attribute distribution " + distribution);
+          };
+      cdf[i] = total;
+    }
+    for (int i = 0; i < cardinality; i++) {
+      cdf[i] /= total;
+    }
+    return cdf;
+  }
+
+  /** The SplitMix64 finalizer, so that consecutive ids get unrelated values. */
+  private static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "tenants:%s-categories:%s-attributeDistribution:%s", tenants, categories, distribution);
+  }
+}
@@ -0,0 +1,291 @@
+package com.github.kevindrosendahl.javaannbench.index;
+
+import com.github.kevindrosendahl.javaannbench.dataset.SimilarityFunction;
+import com.github.kevindrosendahl.javaannbench.util.Bytes;
+import com.github.kevindrosendahl.javaannbench.util.MMapRandomAccessVectorValues;
+import com.github.kevindrosendahl.javaannbench.util.Records;
+import com.github.kevindrosendahl.javaannbench.util.TopK;
+import com.google.common.base.Preconditions;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * FlatIndex is an exact, brute-force "index" that scores every train vector for each query.
+ *
+ * <p>It does not build anything on disk; queries are served straight off of the mmapped train
+ * vectors. It exists to provide the exact search latency/throughput baseline to compare ANN
+ * configurations against.
+ */
+public final class FlatIndex {
+
+  private static final int BATCH_TILE = 16;
+
+  public enum Provider {
+    EXACT("exact");
+
+    final String description;
+
+    Provider(String description) {
+      this.description = description;
+    }
+
+    static Provider parse(String description) {
+      return switch (description) {
+        case "exact" -> Provider.EXACT;
+        default -> throw new RuntimeException("unexpected flat index provider " + description);
+      };
+    }
+  }
+
+  public record BuildParameters() {}
+
+  /**
+   * @param numThreads the number of threads each query is scored across
+   * @param blockSize the number of contiguous train vectors a thread scores at a time
+   */
+  public record QueryParameters(int numThreads, int blockSize) {}
+
+  public static final class Builder implements Index.Builder {
+
+    private final MMapRandomAccessVectorValues vectors;
+    private final Provider provider;
+
+    private Builder(MMapRandomAccessVectorValues vectors, Provider provider) {
+      this.vectors = vectors;
+      this.provider = provider;
+    }
+
+    public static Index.Builder create(
+        MMapRandomAccessVectorValues vectors, Index.Builder.Parameters parameters) {
+      var provider = Provider.parse(parameters.type());
+      Records.fromMap(parameters.buildParameters(), BuildParameters.class, "build parameters");
+      return new FlatIndex.Builder(vectors, provider);
+    }
+
+    @Override
+    public BuildSummary build() {
+      return new BuildSummary(List.of());
+    }
+
+    @Override
+    public Bytes size() {
+      return Bytes.ofBytes(this.vectors.segment().byteSize());
+    }
+
+    @Override
+    public String description() {
+      return String.format("flat_%s", provider.description);
+    }
+
+    @Override
+    public void close() {}
+  }
+
+  public static final class Querier implements Index.Querier {
+
+    private final MMapRandomAccessVectorValues vectors;
+    private final SimilarityFunction similarityFunction;
+    private final Provider provider;
+    private final QueryParameters queryParams;
+    private final ForkJoinPool pool;
+
+    private Querier(
+        MMapRandomAccessVectorValues vectors,
+        SimilarityFunction similarityFunction,
+        Provider provider,
+        QueryParameters queryParams,
+        ForkJoinPool pool) {
+      this.vectors = vectors;
+      this.similarityFunction = similarityFunction;
+      this.provider = provider;
+      this.queryParams = queryParams;
+      this.pool = pool;
+    }
+
+    public static Index.Querier create(
+        MMapRandomAccessVectorValues vectors,
+        SimilarityFunction similarityFunction,
+        Index.Querier.Parameters parameters) {
+      var provider = Provider.parse(parameters.type());
+      return create(vectors, similarityFunction, provider, parameters.queryParameters());
+    }
+
+    private static Querier create(
+        MMapRandomAccessVectorValues vectors,
+        SimilarityFunction similarityFunction,
+        Provider provider,
+        Map<String, String> parameters) {
+      var queryParams = Records.fromMap(parameters, QueryParameters.class, "query parameters");
+      Preconditions.checkArgument(queryParams.numThreads > 0, "numThreads must be positive");
+      Preconditions.checkArgument(queryParams.blockSize > 0, "blockSize must be positive");
+
+      var pool = queryParams.numThreads == 1 ? null : new ForkJoinPool(queryParams.numThreads);
+      return new FlatIndex.Querier(vectors, similarityFunction, provider, queryParams, pool);
+    }
+
+    @Override
+    public List<Integer> query(float[] vector, int k, boolean ensureIds) throws IOException {
+      var topK = search(vector, k);
+      var ids = new int[topK.size()];
+      topK.drain(ids, null);
+      var results = new ArrayList<Integer>(ids.length);
+      for (int id : ids) {
+        results.add(id);
+      }
+      return results;
+    }
+
+    @Override
+    public int query(float[] vector, int k, boolean ensureIds, int[] ids, float[] scores)
+        throws IOException {
+      return search(vector, k).drain(ids, scores);
+    }
+
+    private TopK search(float[] vector, int k) throws IOException {
+      var topK = new TopK(k);
+      if (this.pool == null) {
+        scoreBlocks(vector, topK, new AtomicInteger());
+      } else {
+        var nextBlock = new AtomicInteger();
+        var tasks = new ArrayList<Callable<TopK>>(queryParams.numThreads);
+        for (int i = 0; i < queryParams.numThreads; i++) {
+          tasks.add(
+              () -> {
+                var partial = new TopK(k);
+                scoreBlocks(vector, partial, nextBlock);
+                return partial;
+              });
+        }
+
+        try {
+          for (var future : this.pool.invokeAll(tasks)) {
+            topK.addAll(future.get());
+          }
+        } catch (InterruptedException | ExecutionException e) {
+          throw new IOException("caught exception during exact search", e);
+        }
+      }
+      return topK;
+    }
+
+    /**
+     * Scores the batch a tile of queries at a time, so each block of train vectors is reused by
+     * every query in the tile while it is in cache. Tiles are spread across the query threads.
+     */
+    @Override
+    public List<List<Integer>> queryBatch(float[][] vectors, int k, boolean ensureIds)
+        throws IOException {
+      var heaps = new TopK[vectors.length];
+      for (int i = 0; i < vectors.length; i++) {
+        heaps[i] = new TopK(k);
+      }
+
+      var nextTile = new AtomicInteger();
+      if (this.pool == null) {
+        scoreTiles(vectors, heaps, nextTile);
+      } else {
+        var tasks = new ArrayList<Callable<Void>>(queryParams.numThreads);
+        for (int i = 0; i < queryParams.numThreads; i++) {
+          tasks.add(
+              () -> {
+                scoreTiles(vectors, heaps, nextTile);
+                return null;
+              });
+        }
+
+        try {
+          for (var future : this.pool.invokeAll(tasks)) {
+            future.get();
+          }
+        } catch (InterruptedException | ExecutionException e) {
+          throw new IOException("caught exception during exact batch search", e);
+        }
+      }
+
+      var results = new ArrayList<List<Integer>>(vectors.length);
+      for (var heap : heaps) {
+        var ids = new int[heap.size()];
+        heap.drain(ids, null);
+        var result = new ArrayList<Integer>(ids.length);
+        for (int id : ids) {
+          result.add(id);
+        }
+        results.add(result);
+      }
+      return results;
+    }
+
+    /** Repeatedly claims the next tile of queries and scores every train vector against it. */
+    private void scoreTiles(float[][] queries, TopK[] heaps, AtomicInteger nextTile) {
+      int size = this.vectors.size();
+      int blockSize = this.queryParams.blockSize;
+
+      for (int tile = nextTile.getAndIncrement();
+          (long) tile * BATCH_TILE < queries.length;
+          tile = nextTile.getAndIncrement()) {
+        int tileStart = tile * BATCH_TILE;
+        int tileEnd = Math.min(tileStart + BATCH_TILE, queries.length);
+        for (int start = 0; start < size; start += blockSize) {
+          int end = Math.min(start + blockSize, size);
+          for (int q = tileStart; q < tileEnd; q++) {
+            var query = queries[q];
+            var heap = heaps[q];
+            for (int ord = start; ord < end; ord++) {
+              heap.insert(ord, this.vectors.score(this.similarityFunction, query, ord));
+            }
+          }
+        }
+      }
+    }
+
+    /** Flat indexes are built from the dataset's vectors alone, without their attributes. */
+    @Override
+    public List<Integer> query(float[] vector, int k, boolean ensureIds, Filter filter) {
+      throw new UnsupportedOperationException(description() + " does not support filtered queries");
+    }
+
+    @Override
+    public Index.Querier withQueryParameters(Map<String, String> queryParameters) {
+      return create(this.vectors, this.similarityFunction, this.provider, queryParameters);
+    }
+
+    /**
+     * Repeatedly claims the next unscored block of train vectors and scores it into {@code topK},
+     * until every block has been claimed.
+     */
+    private void scoreBlocks(float[] query, TopK topK, AtomicInteger nextBlock) {
+      int size = this.vectors.size();
+      int blockSize = this.queryParams.blockSize;
+
+      for (int block = nextBlock.getAndIncrement();
+          (long) block * blockSize < size;
+          block = nextBlock.getAndIncrement()) {
+        int start = block * blockSize;
+        int end = Math.min(start + blockSize, size);
+        for (int ord = start; ord < end; ord++) {
+          topK.insert(ord, this.vectors.score(this.similarityFunction, query, ord));
+        }
+      }
+    }
+
+    @Override
+    public String description() {
+      return String.format(
+          "flat_%s_numThreads:%s-blockSize:%s",
+          provider.description, queryParams.numThreads, queryParams.blockSize);
+    }
+
+    @Override
+    public void close() {
+      if (this.pool != null) {
+        this.pool.close();
+      }
+    }
+  }
+}
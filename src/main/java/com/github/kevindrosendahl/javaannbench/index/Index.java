@@ -3,12 +3,20 @@ package com.github.kevindrosendahl.javaannbench.index;
 import com.github.kevindrosendahl.javaannbench.dataset.Dataset;
 import com.github.kevindrosendahl.javaannbench.index.Index.Querier.Parameters;
 import com.github.kevindrosendahl.javaannbench.util.Bytes;
+import com.github.kevindrosendahl.javaannbench.util.Mincore;
+import com.github.kevindrosendahl.javaannbench.util.VectorMath;
 import com.google.common.base.Preconditions;
 import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
@@ -17,6 +25,62 @@ public interface Index extends AutoCloseable {
 
   String description();
 
+  /** Returns the index's current footprint, or null if it does not keep its data in files. */
+  default Footprint footprint() throws IOException {
+    return null;
+  }
+
+  /**
+   * The size of an index's files on disk, and how many of their bytes are in the page cache, in
+   * total and per file.
+   */
+  record Footprint(Bytes size, Bytes resident, List<File> files) {
+
+    /**
+     * @param name the file's path relative to the index's directory
+     */
+    public record File(String name, Bytes size, Bytes resident) {}
+
+    public static Footprint of(Path directory) throws IOException {
+      var files = new ArrayList<File>();
+      measure(directory, directory, files);
+      files.sort(Comparator.comparing(File::name));
+
+      var size = Bytes.ofBytes(0);
+      var resident = Bytes.ofBytes(0);
+      for (var file : files) {
+        size = size.add(file.size());
+        resident = resident.add(file.resident());
+      }
+      return new Footprint(size, resident, files);
+    }
+
+    // Files are listed without walking their attributes up front, since an index that is being
+    // built or merged deletes files while they are being measured, and those are skipped.
+    private static void measure(Path root, Path directory, List<File> files) throws IOException {
+      try (var entries = Files.newDirectoryStream(directory)) {
+        for (var entry : entries) {
+          if (Files.isDirectory(entry)) {
+            measure(root, entry, files);
+            continue;
+          }
+
+          try {
+            files.add(
+                new File(
+                    root.relativize(entry).toString(),
+                    Bytes.ofBytes(Files.size(entry)),
+                    Mincore.resident(entry)));
+          } catch (NoSuchFileException e) {
+            // Deleted since it was listed.
+          }
+        }
+      } catch (NoSuchFileException e) {
+        // Deleted since it was listed.
+      }
+    }
+  }
+
   interface Builder extends Index {
     BuildSummary build() throws IOException;
 
@@ -46,16 +110,61 @@ public interface Index extends AutoCloseable {
 
       return switch (parameters.provider) {
         case "lucene" -> LuceneIndex.Builder.create(
-            datasetPath, dataset.train(), dataset.similarityFunction(), parameters);
+            datasetPath, dataset.train().shared(), dataset.similarityFunction(), parameters);
         case "jvector" -> JVectorIndex.Builder.create(
             datasetPath, dataset.train(), dataset.similarityFunction(), parameters);
+        case "flat" -> FlatIndex.Builder.create(dataset.train(), parameters);
         default -> throw new RuntimeException("unknown index provider: " + parameters.type);
       };
     }
 
-    record BuildSummary(List<BuildPhase> phases) {}
+    /**
+     * @param merges the merges that ran during the build, which may have overlapped with each other
+     *     and with the phases
+     */
+    record BuildSummary(List<BuildPhase> phases, List<MergePhase> merges) {
+
+      public BuildSummary(List<BuildPhase> phases) {
+        this(phases, List.of());
+      }
+    }
+
+    /**
+     * @param docs the number of documents processed during the phase, or zero if the phase does not
+     *     process documents
+     */
+    record BuildPhase(String description, Duration duration, long docs) {
+
+      public BuildPhase(String description, Duration duration) {
+        this(description, duration, 0);
+      }
+
+      public double docsPerSecond() {
+        return duration.isZero() ? 0 : docs / (duration.toNanos() / 1e9);
+      }
+    }
 
-    record BuildPhase(String description, Duration duration) {}
+    /**
+     * @param start when the merge started, relative to when the index started being built
+     * @param cpu the CPU time of the thread running the merge, which excludes any threads the
+     *     format hands work off to
+     * @param vectors the time spent merging vectors, which for graph formats is dominated by
+     *     rebuilding the graph
+     * @param inputBytes the size of each merged segment
+     * @param inputDocs the number of documents in each merged segment
+     */
+    record MergePhase(
+        Duration start,
+        Duration duration,
+        Duration cpu,
+        Duration vectors,
+        List<Long> inputBytes,
+        List<Integer> inputDocs) {
+
+      public long docs() {
+        return inputDocs.stream().mapToLong(Integer::longValue).sum();
+      }
+    }
 
     record Parameters(String provider, String type, Map<String, String> buildParameters) {
 
@@ -88,6 +197,111 @@ public interface Index extends AutoCloseable {
 
     List<Integer> query(float[] vector, int k, boolean ensureIds) throws IOException;
 
+    /**
+     * Writes the top {@code k} results into {@code ids} and their scores into {@code scores},
+     * ordered from most to least similar, and returns how many were written. Scores are exact and
+     * on the scale of {@link VectorMath#score}, so they can be compared with ground truth, or NaN
+     * where the querier only has approximate ones. Implementations can override this to avoid
+     * allocating per query, by default the results of {@link #query(float[], int, boolean)} are
+     * copied and their scores are NaN.
+     */
+    default int query(float[] vector, int k, boolean ensureIds, int[] ids, float[] scores)
+        throws IOException {
+      var results = query(vector, k, ensureIds);
+      for (int i = 0; i < results.size(); i++) {
+        ids[i] = results.get(i);
+        scores[i] = Float.NaN;
+      }
+      return results.size();
+    }
+
+    /**
+     * Restricts a query to the documents whose {@link Attributes} value for {@code field} is one of
+     * {@code values}.
+     */
+    record Filter(String field, int[] values) {}
+
+    /**
+     * Returns the top {@code k} results among the documents matching {@code filter}.
+     * Implementations that do not index attributes throw UnsupportedOperationException.
+     */
+    List<Integer> query(float[] vector, int k, boolean ensureIds, Filter filter) throws IOException;
+
+    /**
+     * Returns how many times a filtered query has fallen back to scoring every matching document
+     * instead of searching the index, or -1 if the querier does not track it.
+     */
+    default long exactSearches() {
+      return -1;
+    }
+
+    /**
+     * Returns how many segments each query searches, which bounds how far searchThreads can split a
+     * query, or -1 if the querier's index is not segmented.
+     */
+    default int segments() throws IOException {
+      return -1;
+    }
+
+    /** A step of opening a querier, e.g. opening the index's files or loading its ids. */
+    record OpenPhase(String description, Duration duration) {}
+
+    /**
+     * Returns how long each step of opening the querier took, or an empty list if the querier does
+     * not track it or shares an index opened by another querier.
+     */
+    default List<OpenPhase> openPhases() {
+      return List.of();
+    }
+
+    /**
+     * Returns the top {@code k} results for each of {@code vectors}, in order. Implementations can
+     * override this to amortize per-query setup across the batch, by default each vector is queried
+     * in turn.
+     */
+    default List<List<Integer>> queryBatch(float[][] vectors, int k, boolean ensureIds)
+        throws IOException {
+      var results = new ArrayList<List<Integer>>(vectors.length);
+      for (var vector : vectors) {
+        results.add(query(vector, k, ensureIds));
+      }
+      return results;
+    }
+
+    /**
+     * Returns the top {@code k} results for each of the {@code count} vectors of {@code dimension}
+     * little-endian floats stored contiguously in {@code vectors}.
+     */
+    default List<List<Integer>> queryBatch(
+        MemorySegment vectors, int count, int dimension, int k, boolean ensureIds)
+        throws IOException {
+      Preconditions.checkArgument(
+          vectors.byteSize() >= (long) count * dimension * Float.BYTES,
+          "segment of %s bytes is too small for %s vectors of dimension %s",
+          vectors.byteSize(),
+          count,
+          dimension);
+
+      var batch = new float[count][dimension];
+      for (int i = 0; i < count; i++) {
+        MemorySegment.copy(
+            vectors,
+            ValueLayout.JAVA_FLOAT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN),
+            (long) i * dimension * Float.BYTES,
+            batch[i],
+            0,
+            dimension);
+      }
+      return queryBatch(batch, k, ensureIds);
+    }
+
+    /**
+     * Returns a querier over the same opened index that uses {@code queryParameters} instead. The
+     * returned querier must be closed, but closing it does not close this querier's index.
+     * Implementations that cannot share their index throw UnsupportedOperationException.
+     */
+    Querier withQueryParameters(Map<String, String> queryParameters) throws IOException;
+
     static Querier fromDescription(Dataset dataset, Path indexesPath, String description)
         throws IOException {
       var parameters = Parameters.parse(description);
@@ -113,6 +327,8 @@ public interface Index extends AutoCloseable {
       return switch (parameters.provider) {
         case "lucene" -> LuceneIndex.Querier.create(
             indexesPath.resolve(dataset.name()), parameters);
+        case "flat" -> FlatIndex.Querier.create(
+            dataset.train(), dataset.similarityFunction(), parameters);
         default -> throw new RuntimeException("unknown index provider: " + parameters.provider);
       };
     }
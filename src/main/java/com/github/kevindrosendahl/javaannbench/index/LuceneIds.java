@@ -0,0 +1,162 @@
+package com.github.kevindrosendahl.javaannbench.index;
+
+import com.google.common.base.Preconditions;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * LuceneIds resolves the docIDs of search hits to the ids their documents were indexed with.
+ *
+ * <p>"stored" reads each hit's stored fields, which decompresses a stored-field block per hit.
+ * "docValues" reads the id's numeric doc values instead, visiting the hits in docID order since
+ * doc values can only be iterated forwards. "array" reads every id's doc values once when the
+ * reader is opened into an int[] indexed by docID, so resolving a hit is a single array load.
+ */
+final class LuceneIds {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(LuceneIds.class);
+
+  static final String STORED = "stored";
+  static final String DOC_VALUES = "docValues";
+  static final String ARRAY = "array";
+
+  private final String field;
+  private final String lookup;
+  private final int[] ids;
+
+  private LuceneIds(String field, String lookup, int[] ids) {
+    this.field = field;
+    this.lookup = lookup;
+    this.ids = ids;
+  }
+
+  /**
+   * Returns ids resolved with {@code lookup}. For "array" the ids are loaded from {@code reader},
+   * and can only resolve hits from searchers over it.
+   */
+  static LuceneIds open(IndexReader reader, String field, String lookup) throws IOException {
+    return switch (lookup) {
+      case STORED, DOC_VALUES -> new LuceneIds(field, lookup, null);
+      case ARRAY -> new LuceneIds(field, lookup, load(reader, field));
+      default -> throw new RuntimeException("unexpected id lookup " + lookup);
+    };
+  }
+
+  String lookup() {
+    return lookup;
+  }
+
+  List<Integer> resolve(IndexSearcher searcher, ScoreDoc[] hits, int count) throws IOException {
+    var resolved = new ArrayList<Integer>(count);
+    switch (lookup) {
+      case STORED -> {
+        var storedFields = searcher.storedFields();
+        for (int i = 0; i < count; i++) {
+          resolved.add(
+              storedFields.document(hits[i].doc).getField(field).numericValue().intValue());
+        }
+      }
+      case DOC_VALUES -> {
+        for (var id : docValues(searcher.getIndexReader(), hits, count)) {
+          resolved.add(id);
+        }
+      }
+      case ARRAY -> {
+        for (int i = 0; i < count; i++) {
+          resolved.add(ids[hits[i].doc]);
+        }
+      }
+      default -> throw new RuntimeException("unexpected id lookup " + lookup);
+    }
+    return resolved;
+  }
+
+  /**
+   * Replaces the first {@code count} docIDs in {@code docs} with their ids. Only "array" does so
+   * without allocating.
+   */
+  void resolveInPlace(IndexReader reader, int[] docs, int count) throws IOException {
+    switch (lookup) {
+      case STORED -> {
+        var storedFields = reader.storedFields();
+        for (int i = 0; i < count; i++) {
+          docs[i] = storedFields.document(docs[i]).getField(field).numericValue().intValue();
+        }
+      }
+      case DOC_VALUES -> {
+        var leaves = reader.leaves();
+        for (int i = 0; i < count; i++) {
+          var leaf = leaves.get(ReaderUtil.subIndex(docs[i], leaves));
+          var values = leaf.reader().getNumericDocValues(field);
+          Preconditions.checkState(
+              values != null && values.advanceExact(docs[i] - leaf.docBase),
+              "doc %s has no %s doc value",
+              docs[i],
+              field);
+          docs[i] = (int) values.longValue();
+        }
+      }
+      case ARRAY -> {
+        for (int i = 0; i < count; i++) {
+          docs[i] = ids[docs[i]];
+        }
+      }
+      default -> throw new RuntimeException("unexpected id lookup " + lookup);
+    }
+  }
+
+  private int[] docValues(IndexReader reader, ScoreDoc[] hits, int count) throws IOException {
+    var order = new Integer[count];
+    for (int i = 0; i < count; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, (a, b) -> Integer.compare(hits[a].doc, hits[b].doc));
+
+    var leaves = reader.leaves();
+    var resolved = new int[count];
+    int leaf = -1;
+    NumericDocValues values = null;
+    for (var i : order) {
+      var doc = hits[i].doc;
+      var hitLeaf = ReaderUtil.subIndex(doc, leaves);
+      if (hitLeaf != leaf) {
+        leaf = hitLeaf;
+        values = leaves.get(leaf).reader().getNumericDocValues(field);
+        Preconditions.checkState(values != null, "index has no %s doc values, rebuild it", field);
+      }
+
+      var found = values.advanceExact(doc - leaves.get(leaf).docBase);
+      Preconditions.checkState(found, "doc %s has no %s doc value", doc, field);
+      resolved[i] = (int) values.longValue();
+    }
+    return resolved;
+  }
+
+  private static int[] load(IndexReader reader, String field) throws IOException {
+    var start = System.nanoTime();
+    var ids = new int[reader.maxDoc()];
+    for (var leaf : reader.leaves()) {
+      var values = leaf.reader().getNumericDocValues(field);
+      Preconditions.checkState(values != null, "index has no %s doc values, rebuild it", field);
+      for (var doc = values.nextDoc();
+          doc != NumericDocValues.NO_MORE_DOCS;
+          doc = values.nextDoc()) {
+        ids[leaf.docBase + doc] = (int) values.longValue();
+      }
+    }
+
+    LOGGER.info(
+        "loaded {} ids into memory in {}", ids.length, Duration.ofNanos(System.nanoTime() - start));
+    return ids;
+  }
+}
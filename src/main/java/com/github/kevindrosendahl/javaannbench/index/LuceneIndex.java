@@ -2,23 +2,34 @@ package com.github.kevindrosendahl.javaannbench.index;
 
 import com.github.kevindrosendahl.javaannbench.dataset.SimilarityFunction;
 import com.github.kevindrosendahl.javaannbench.display.ProgressBar;
+import com.github.kevindrosendahl.javaannbench.index.Index.Builder.MergePhase;
 import com.github.kevindrosendahl.javaannbench.util.Bytes;
 import com.github.kevindrosendahl.javaannbench.util.Exceptions;
+import com.github.kevindrosendahl.javaannbench.util.MMapRandomAccessVectorValues;
+import com.github.kevindrosendahl.javaannbench.util.Madvise;
 import com.github.kevindrosendahl.javaannbench.util.Records;
+import com.github.kevindrosendahl.javaannbench.util.TopK;
+import com.github.kevindrosendahl.javaannbench.util.VectorMath;
 import com.google.common.base.Preconditions;
-import io.github.jbellis.jvector.graph.RandomAccessVectorValues;
 import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
 import java.nio.file.Path;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.stream.IntStream;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 import org.apache.commons.io.FileUtils;
+import org.apache.lucene.codecs.Codec;
 import org.apache.lucene.codecs.KnnVectorsFormat;
 import org.apache.lucene.codecs.lucene99.Lucene99Codec;
 import org.apache.lucene.codecs.lucene99.Lucene99HnswVectorsFormat;
@@ -26,25 +37,45 @@ import org.apache.lucene.codecs.lucene99.Lucene99ScalarQuantizedVectorsFormat;
 import org.apache.lucene.codecs.vectorsandbox.VectorSandboxScalarQuantizedVectorsFormat;
 import org.apache.lucene.codecs.vectorsandbox.VectorSandboxVamanaVectorsFormat;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.IntPoint;
+import org.apache.lucene.document.KnnByteVectorField;
 import org.apache.lucene.document.KnnFloatVectorField;
+import org.apache.lucene.document.NumericDocValuesField;
 import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.MergeScheduler;
 import org.apache.lucene.index.MergeTrigger;
 import org.apache.lucene.index.SegmentCommitInfo;
 import org.apache.lucene.index.SegmentInfos;
-import org.apache.lucene.index.SerialMergeScheduler;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.index.VectorEncoding;
 import org.apache.lucene.index.VectorSimilarityFunction;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.KnnByteVectorQuery;
 import org.apache.lucene.search.KnnFloatVectorQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopKnnCollector;
 import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.store.MMapDirectory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public final class LuceneIndex {
 
+  private static final Logger LOGGER = LoggerFactory.getLogger(LuceneIndex.class);
+
   public enum Provider {
     HNSW("hnsw"),
     SANDBOX_VAMANA("sandbox-vamana");
@@ -64,10 +95,57 @@ public final class LuceneIndex {
     }
   }
 
-  public sealed interface BuildParameters permits VamanaBuildParameters, HnswBuildParameters {}
+  /**
+   * The merge and id parameters are optional and shared by every provider:
+   *
+   * <ul>
+   *   <li>mergePolicy: "single" to not merge until the build finishes and then merge everything
+   *       into one segment if forceMerge is set, or "tiered" to merge in the background as segments
+   *       are flushed using a TieredMergePolicy
+   *   <li>mergeThreads: the number of merges that can run concurrently in the background, or 1 to
+   *       run merges on the indexing thread that triggered them
+   *   <li>segmentSizeMB: the largest segment the tiered merge policy will create
+   *   <li>flushSizeMB: the amount of indexing RAM buffered before a segment is flushed
+   *   <li>idPoints: whether ids are also indexed as points, which {@link Writer} needs to delete
+   *       and update documents by id
+   * </ul>
+   */
+  public sealed interface BuildParameters permits VamanaBuildParameters, HnswBuildParameters {
+    String mergePolicy();
+
+    int mergeThreads();
+
+    int segmentSizeMB();
+
+    int flushSizeMB();
+
+    boolean idPoints();
+
+    int tenants();
+
+    int categories();
+
+    String attributeDistribution();
+
+    default Attributes attributes() {
+      return Attributes.of(tenants(), categories(), attributeDistribution());
+    }
+  }
 
   public record HnswBuildParameters(
-      int maxConn, int beamWidth, boolean scalarQuantization, int numThreads, boolean forceMerge)
+      int maxConn,
+      int beamWidth,
+      boolean scalarQuantization,
+      int numThreads,
+      boolean forceMerge,
+      @Records.Default(DEFAULT_MERGE_POLICY) String mergePolicy,
+      @Records.Default(DEFAULT_MERGE_THREADS) int mergeThreads,
+      @Records.Default(DEFAULT_SEGMENT_SIZE_MB) int segmentSizeMB,
+      @Records.Default(DEFAULT_FLUSH_SIZE_MB) int flushSizeMB,
+      @Records.Default(DEFAULT_ID_POINTS) boolean idPoints,
+      @Records.Default(Attributes.DEFAULT_CARDINALITY) int tenants,
+      @Records.Default(Attributes.DEFAULT_CARDINALITY) int categories,
+      @Records.Default(Attributes.DEFAULT_DISTRIBUTION) String attributeDistribution)
       implements BuildParameters {}
 
   public record VamanaBuildParameters(
@@ -78,12 +156,38 @@ public final class LuceneIndex {
       boolean inGraphVectors,
       boolean scalarQuantization,
       int numThreads,
-      boolean forceMerge)
+      boolean forceMerge,
+      @Records.Default(DEFAULT_MERGE_POLICY) String mergePolicy,
+      @Records.Default(DEFAULT_MERGE_THREADS) int mergeThreads,
+      @Records.Default(DEFAULT_SEGMENT_SIZE_MB) int segmentSizeMB,
+      @Records.Default(DEFAULT_FLUSH_SIZE_MB) int flushSizeMB,
+      @Records.Default(DEFAULT_ID_POINTS) boolean idPoints,
+      @Records.Default(Attributes.DEFAULT_CARDINALITY) int tenants,
+      @Records.Default(Attributes.DEFAULT_CARDINALITY) int categories,
+      @Records.Default(Attributes.DEFAULT_DISTRIBUTION) String attributeDistribution)
       implements BuildParameters {}
 
+  private static final String DEFAULT_MERGE_POLICY = "single";
+  private static final String DEFAULT_MERGE_THREADS = "1";
+  private static final String DEFAULT_SEGMENT_SIZE_MB = "5120";
+  private static final String DEFAULT_FLUSH_SIZE_MB = "40960";
+  private static final String DEFAULT_ID_POINTS = "false";
+
   public sealed interface QueryParameters permits HnswQueryParameters, VamanaQueryParameters {}
 
-  public record HnswQueryParameters(int numCandidates) implements QueryParameters {}
+  /**
+   * @param searchThreads when greater than one, segments are searched in parallel within a query
+   * @param searchExecutor "platform" to search segments on a pool of searchThreads threads, or
+   *     "virtual" to search each segment on its own virtual thread
+   * @param idLookup how hits are resolved to ids, one of "stored", "docValues" or "array", see
+   *     {@link LuceneIds}
+   */
+  public record HnswQueryParameters(
+      int numCandidates,
+      @Records.Default(DEFAULT_SEARCH_THREADS) int searchThreads,
+      @Records.Default(DEFAULT_SEARCH_EXECUTOR) String searchExecutor,
+      @Records.Default(DEFAULT_ID_LOOKUP) String idLookup)
+      implements QueryParameters {}
 
   public record VamanaQueryParameters(
       int numCandidates,
@@ -95,27 +199,48 @@ public final class LuceneIndex {
       boolean parallelNeighborhoods,
       int parallelNeighborhoodsBeamWidth,
       String parallelRerankThreads,
-      int nodeCacheDegree)
+      int nodeCacheDegree,
+      @Records.Default(DEFAULT_SEARCH_THREADS) int searchThreads,
+      @Records.Default(DEFAULT_SEARCH_EXECUTOR) String searchExecutor,
+      @Records.Default(DEFAULT_ID_LOOKUP) String idLookup)
       implements QueryParameters {}
 
+  private static final String DEFAULT_SEARCH_THREADS = "1";
+  private static final String DEFAULT_SEARCH_EXECUTOR = "platform";
+  private static final String DEFAULT_ID_LOOKUP = LuceneIds.STORED;
+
+  private static final int INGEST_BATCH = 1024;
+  private static final int INGEST_PREFETCH_VECTORS = 64 * INGEST_BATCH;
+
+  private record IngestBatch(int start, int end) {
+    static final IngestBatch END = new IngestBatch(-1, -1);
+  }
+
   private static final String VECTOR_FIELD = "vector";
   private static final String ID_FIELD = "id";
+  private static final int DELETE_BATCH_SIZE = 1024;
 
   public static final class Builder implements Index.Builder {
 
-    private final RandomAccessVectorValues<float[]> vectors;
+    private final MMapRandomAccessVectorValues vectors;
     private final MMapDirectory directory;
     private final IndexWriter writer;
     private final AtomicBoolean shouldMerge;
+    private final LuceneMerges merges;
+    private final MergeScheduler mergeScheduler;
+    private final ExecutorService mergeExecutor;
     private final Provider provider;
     private final BuildParameters buildParams;
     private final VectorSimilarityFunction similarityFunction;
 
     private Builder(
-        RandomAccessVectorValues<float[]> vectors,
+        MMapRandomAccessVectorValues vectors,
         MMapDirectory directory,
         IndexWriter writer,
         AtomicBoolean shouldMerge,
+        LuceneMerges merges,
+        MergeScheduler mergeScheduler,
+        ExecutorService mergeExecutor,
         Provider provider,
         BuildParameters buildParams,
         VectorSimilarityFunction similarityFunction) {
@@ -123,6 +248,9 @@ public final class LuceneIndex {
       this.directory = directory;
       this.writer = writer;
       this.shouldMerge = shouldMerge;
+      this.merges = merges;
+      this.mergeScheduler = mergeScheduler;
+      this.mergeExecutor = mergeExecutor;
       this.provider = provider;
       this.buildParams = buildParams;
       this.similarityFunction = similarityFunction;
@@ -130,7 +258,7 @@ public final class LuceneIndex {
 
     public static Index.Builder create(
         Path indexesPath,
-        RandomAccessVectorValues<float[]> vectors,
+        MMapRandomAccessVectorValues vectors,
         SimilarityFunction similarityFunction,
         Parameters parameters)
         throws IOException {
@@ -138,12 +266,11 @@ public final class LuceneIndex {
 
       var buildParams = parseBuildPrams(provider, parameters.buildParameters());
 
-      var similarity =
-          switch (similarityFunction) {
-            case COSINE -> VectorSimilarityFunction.COSINE;
-            case DOT_PRODUCT -> VectorSimilarityFunction.DOT_PRODUCT;
-            case EUCLIDEAN -> VectorSimilarityFunction.EUCLIDEAN;
-          };
+      var similarity = similarity(similarityFunction);
+      Preconditions.checkArgument(
+          vectors.encoding() != MMapRandomAccessVectorValues.Encoding.INT8
+              || !scalarQuantization(buildParams),
+          "scalarQuantization only applies to float vectors, not int8 ones");
 
       var description = buildDescription(provider, buildParams);
       var path = indexesPath.resolve(description);
@@ -151,116 +278,15 @@ public final class LuceneIndex {
 
       var directory = new MMapDirectory(path);
 
-      var codec =
-          switch (provider) {
-            case HNSW -> {
-              var hnswParams = (HnswBuildParameters) buildParams;
-              yield new Lucene99Codec() {
-                @Override
-                public KnnVectorsFormat getKnnVectorsFormatForField(String field) {
-                  return new Lucene99HnswVectorsFormat(
-                      hnswParams.maxConn,
-                      hnswParams.beamWidth,
-                      hnswParams.scalarQuantization
-                          ? new Lucene99ScalarQuantizedVectorsFormat()
-                          : null,
-                      hnswParams.numThreads,
-                      hnswParams.numThreads == 1
-                          ? null
-                          : Executors.newFixedThreadPool(hnswParams.numThreads));
-                }
-              };
-            }
-            case SANDBOX_VAMANA -> {
-              var vamanaParams = (VamanaBuildParameters) buildParams;
-              yield new Lucene99Codec() {
-                @Override
-                public KnnVectorsFormat getKnnVectorsFormatForField(String field) {
-                  return new VectorSandboxVamanaVectorsFormat(
-                      vamanaParams.maxConn,
-                      vamanaParams.beamWidth,
-                      vamanaParams.alpha,
-                      vamanaParams.pqFactor,
-                      vamanaParams.inGraphVectors,
-                      vamanaParams.scalarQuantization
-                          ? new VectorSandboxScalarQuantizedVectorsFormat()
-                          : null,
-                      vamanaParams.forceMerge ? vamanaParams.numThreads : 1,
-                      vamanaParams.numThreads == 1 || !vamanaParams.forceMerge
-                          ? null
-                          : Executors.newFixedThreadPool(vamanaParams.numThreads));
-                }
-              };
-            }
-          };
+      var mergeExecutor = mergeExecutor(buildParams);
+      var codec = codec(provider, buildParams, mergeExecutor);
 
+      Preconditions.checkArgument(buildParams.mergeThreads() > 0, "mergeThreads must be positive");
       var shouldMerge = new AtomicBoolean(false);
-      var mergePolicy =
-          new MergePolicy() {
-
-            @Override
-            public MergeSpecification findMerges(
-                MergeTrigger mergeTrigger, SegmentInfos segmentInfos, MergeContext mergeContext)
-                throws IOException {
-              System.out.println("findMerges triggered");
-
-              if (!shouldMerge.get()) {
-                System.out.println("shouldMerge is false, skipping");
-                return null;
-              }
-
-              var infos = segmentInfos.asList();
-              System.out.println("infos = " + infos);
-              System.out.println("infos.size() = " + infos.size());
-
-              if (infos.size() == 1) {
-                System.out.println("only one segment, skipping");
-                return null;
-              }
-
-              var merge = new OneMerge(infos);
-              var spec = new MergeSpecification();
-              spec.add(merge);
-              return spec;
-            }
-
-            @Override
-            public MergeSpecification findForcedMerges(
-                SegmentInfos segmentInfos,
-                int i,
-                Map<SegmentCommitInfo, Boolean> map,
-                MergeContext mergeContext)
-                throws IOException {
-              System.out.println("findForcedMerges triggered");
-
-              if (!shouldMerge.get()) {
-                System.out.println("shouldMerge is false, skipping");
-                return null;
-              }
-
-              var infos = segmentInfos.asList();
-              System.out.println("infos = " + infos);
-              System.out.println("infos.size() = " + infos.size());
-
-              if (infos.size() == 1) {
-                System.out.println("only one segment, skipping");
-                return null;
-              }
-
-              var merge = new OneMerge(infos);
-              var spec = new MergeSpecification();
-              spec.add(merge);
-              return spec;
-            }
-
-            @Override
-            public MergeSpecification findForcedDeletesMerges(
-                SegmentInfos segmentInfos, MergeContext mergeContext) throws IOException {
-              System.out.println("findForcedDeletesMerges triggered");
-              return null;
-            }
-          };
+      var mergePolicy = mergePolicy(buildParams.mergePolicy(), buildParams, shouldMerge);
 
+      var merges = new LuceneMerges();
+      var mergeScheduler = merges.scheduler(buildParams.mergeThreads());
       var writer =
           new IndexWriter(
               directory,
@@ -268,12 +294,22 @@ public final class LuceneIndex {
                   .setCodec(codec)
                   .setUseCompoundFile(false)
                   .setMaxBufferedDocs(1000000000)
-                  .setRAMBufferSizeMB(40 * 1024)
+                  .setRAMBufferSizeMB(buildParams.flushSizeMB())
                   .setMergePolicy(mergePolicy)
-                  .setMergeScheduler(new SerialMergeScheduler()));
+                  .setMergeScheduler(mergeScheduler)
+                  .setInfoStream(merges.infoStream()));
 
       return new LuceneIndex.Builder(
-          vectors, directory, writer, shouldMerge, provider, buildParams, similarity);
+          vectors,
+          directory,
+          writer,
+          shouldMerge,
+          merges,
+          mergeScheduler,
+          mergeExecutor,
+          provider,
+          buildParams,
+          similarity);
     }
 
     @Override
@@ -286,33 +322,20 @@ public final class LuceneIndex {
           };
 
       var buildStart = Instant.now();
-      try (var pool = new ForkJoinPool(numThreads)) {
-        try (var progress = ProgressBar.create("building", size)) {
-          pool.submit(
-                  () -> {
-                    IntStream.range(0, size)
-                        .parallel()
-                        .forEach(
-                            i -> {
-                              Exceptions.wrap(
-                                  () -> {
-                                    var doc = new Document();
-                                    doc.add(new StoredField(ID_FIELD, i));
-                                    doc.add(
-                                        new KnnFloatVectorField(
-                                            VECTOR_FIELD,
-                                            this.vectors.vectorValue(i),
-                                            this.similarityFunction));
-                                    this.writer.addDocument(doc);
-                                  });
-                              progress.inc();
-                            });
-                  })
-              .join();
-        }
+      try (var progress = ProgressBar.create("building", size)) {
+        ingest(numThreads, progress);
       }
       var buildEnd = Instant.now();
 
+      // Let the merges triggered while indexing finish, so they are not counted against the phases
+      // below.
+      var backgroundStart = Instant.now();
+      if (this.mergeScheduler instanceof ConcurrentMergeScheduler concurrent) {
+        LOGGER.info("waiting for background merges");
+        concurrent.sync();
+      }
+      var backgroundEnd = Instant.now();
+
       var merge =
           switch (buildParams) {
             case HnswBuildParameters params -> params.forceMerge;
@@ -321,28 +344,161 @@ public final class LuceneIndex {
 
       var mergeStart = Instant.now();
       if (merge) {
-        System.out.println("merging");
+        LOGGER.info("merging");
         this.shouldMerge.set(true);
         this.writer.forceMerge(1);
       }
       var mergeEnd = Instant.now();
 
-      System.out.println("committing");
+      LOGGER.info("committing");
       var commitStart = Instant.now();
       this.writer.commit();
       var commitEnd = Instant.now();
 
+      var merges = this.merges.merges();
+      LOGGER.info(
+          "ran {} merges of {} segments",
+          merges.size(),
+          merges.stream().mapToInt(m -> m.inputDocs().size()).sum());
+
       return new BuildSummary(
           List.of(
-              new BuildPhase("build", Duration.between(buildStart, buildEnd)),
-              new BuildPhase("merge", Duration.between(mergeStart, mergeEnd)),
-              new BuildPhase("commit", Duration.between(commitStart, commitEnd))));
+              new BuildPhase("build", Duration.between(buildStart, buildEnd), size),
+              new BuildPhase(
+                  "backgroundMerges", Duration.between(backgroundStart, backgroundEnd)),
+              new BuildPhase("merge", Duration.between(mergeStart, mergeEnd), merge ? size : 0),
+              new BuildPhase("commit", Duration.between(commitStart, commitEnd))),
+          merges);
+    }
+
+    /**
+     * Adds every vector to the writer through a pipeline. A dedicated reader thread walks the train
+     * file in batches of {@link #INGEST_BATCH} vectors, asking the kernel to read ahead of it, and
+     * hands each batch off to the writer threads through a bounded queue. Each writer thread reuses
+     * a single document and vector buffer, which is safe since Lucene copies the vector during
+     * addDocument. int8 train vectors are indexed as byte vectors, everything else as floats.
+     */
+    private void ingest(int numThreads, ProgressBar progress) throws IOException {
+      var size = this.vectors.size();
+      var queue = new ArrayBlockingQueue<IngestBatch>(numThreads * 2);
+      var failure = new AtomicReference<Throwable>();
+      var byteVectors = this.vectors.encoding() == MMapRandomAccessVectorValues.Encoding.INT8;
+
+      this.vectors.advise(Madvise.Advice.SEQUENTIAL);
+      var reader =
+          Thread.ofPlatform()
+              .name("ingest-reader")
+              .start(
+                  () -> {
+                    try {
+                      int prefetched = 0;
+                      for (int start = 0; start < size && failure.get() == null; ) {
+                        int end = Math.min(start + INGEST_BATCH, size);
+
+                        // Once the cursor is within half a window of the end of what has been
+                        // prefetched, ask for the next window.
+                        if (prefetched < size && prefetched - end < INGEST_PREFETCH_VECTORS / 2) {
+                          int from = Math.max(prefetched, end);
+                          int to = (int) Math.min((long) end + INGEST_PREFETCH_VECTORS, size);
+                          this.vectors.advise(from, to, Madvise.Advice.WILLNEED);
+                          prefetched = to;
+                        }
+
+                        queue.put(new IngestBatch(start, end));
+                        start = end;
+                      }
+                    } catch (Throwable t) {
+                      failure.compareAndSet(null, t);
+                    } finally {
+                      for (int i = 0; i < numThreads; i++) {
+                        Exceptions.wrap(() -> queue.put(IngestBatch.END));
+                      }
+                    }
+                  });
+
+      try (var writers = Executors.newFixedThreadPool(numThreads)) {
+        for (int i = 0; i < numThreads; i++) {
+          writers.execute(
+              () -> {
+                var vector = new float[this.vectors.dimension()];
+                var bytes = new byte[this.vectors.dimension()];
+                var id = new StoredField(ID_FIELD, 0);
+                var idPoint = this.buildParams.idPoints() ? new IntPoint(ID_FIELD, 0) : null;
+                var idValue = new NumericDocValuesField(ID_FIELD, 0);
+                var floatField =
+                    byteVectors
+                        ? null
+                        : new KnnFloatVectorField(VECTOR_FIELD, vector, this.similarityFunction);
+                var byteField =
+                    byteVectors
+                        ? new KnnByteVectorField(VECTOR_FIELD, bytes, this.similarityFunction)
+                        : null;
+                var doc = new Document();
+                doc.add(id);
+                if (idPoint != null) {
+                  doc.add(idPoint);
+                }
+                doc.add(idValue);
+                doc.add(byteVectors ? byteField : floatField);
+                var attributes = AttributeFields.addTo(doc, this.buildParams.attributes());
+
+                // Keep draining the queue after a failure, so the reader is never blocked on it.
+                while (true) {
+                  IngestBatch batch;
+                  try {
+                    batch = queue.take();
+                  } catch (InterruptedException e) {
+                    failure.compareAndSet(null, e);
+                    return;
+                  }
+
+                  if (batch == IngestBatch.END) {
+                    return;
+                  }
+                  if (failure.get() != null) {
+                    continue;
+                  }
+
+                  try {
+                    for (int ord = batch.start; ord < batch.end; ord++) {
+                      if (byteVectors) {
+                        byteField.setVectorValue(this.vectors.byteVectorValue(ord, bytes));
+                      } else {
+                        floatField.setVectorValue(this.vectors.vectorValue(ord, vector));
+                      }
+                      id.setIntValue(ord);
+                      if (idPoint != null) {
+                        idPoint.setIntValue(ord);
+                      }
+                      idValue.setLongValue(ord);
+                      attributes.set(ord);
+                      this.writer.addDocument(doc);
+                    }
+                    progress.inc(batch.end - batch.start);
+                  } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                  }
+                }
+              });
+        }
+      }
+
+      Exceptions.wrap(() -> reader.join());
+      this.vectors.advise(Madvise.Advice.NORMAL);
+      if (failure.get() != null) {
+        throw new IOException("caught exception ingesting vectors", failure.get());
+      }
     }
 
     public Bytes size() {
       return Bytes.ofBytes(FileUtils.sizeOfDirectory(this.directory.getDirectory().toFile()));
     }
 
+    @Override
+    public Footprint footprint() throws IOException {
+      return Footprint.of(this.directory.getDirectory());
+    }
+
     @Override
     public String description() {
       return buildDescription(this.provider, this.buildParams);
@@ -352,6 +508,9 @@ public final class LuceneIndex {
     public void close() throws Exception {
       this.writer.close();
       this.directory.close();
+      if (this.mergeExecutor != null) {
+        this.mergeExecutor.close();
+      }
     }
 
     private static String buildDescription(Provider provider, BuildParameters params) {
@@ -359,6 +518,26 @@ public final class LuceneIndex {
     }
 
     private static String buildParamString(BuildParameters params) {
+      var merge =
+          params.mergePolicy().equals(DEFAULT_MERGE_POLICY)
+                  && params.mergeThreads() == Integer.parseInt(DEFAULT_MERGE_THREADS)
+                  && params.segmentSizeMB() == Integer.parseInt(DEFAULT_SEGMENT_SIZE_MB)
+                  && params.flushSizeMB() == Integer.parseInt(DEFAULT_FLUSH_SIZE_MB)
+              ? ""
+              : String.format(
+                  "-mergePolicy:%s-mergeThreads:%s-segmentSizeMB:%s-flushSizeMB:%s",
+                  params.mergePolicy(),
+                  params.mergeThreads(),
+                  params.segmentSizeMB(),
+                  params.flushSizeMB());
+      var attributes = params.attributes();
+      return providerBuildParamString(params)
+          + merge
+          + (params.idPoints() ? "-idPoints:true" : "")
+          + (attributes.isEmpty() ? "" : "-" + attributes);
+    }
+
+    private static String providerBuildParamString(BuildParameters params) {
       return switch (params) {
         case HnswBuildParameters hnsw -> String.format(
             "maxConn:%s-beamWidth:%s-scalarQuantization:%s-numThreads:%s-forceMerge:%s",
@@ -389,6 +568,33 @@ public final class LuceneIndex {
     private final Provider provider;
     private final BuildParameters buildParams;
     private final QueryParameters queryParams;
+    private final ExecutorService searchExecutor;
+    private final LuceneIds ids;
+    private final boolean ownsReader;
+    private final List<OpenPhase> openPhases;
+    private final boolean byteVectors;
+    private final VectorSimilarityFunction similarity;
+    private final boolean exactScores;
+
+    private final LongAdder exactSearches = new LongAdder();
+    private final ThreadLocal<QueryScratch> scratch = new ThreadLocal<>();
+
+    /** The per-thread state of the primitive query path, sized for numCandidates and k. */
+    private static final class QueryScratch {
+      final ReusableKnnCollector collector;
+      final TopK results;
+      final int[] docs;
+      final float[] scores;
+      final byte[] bytes;
+
+      QueryScratch(int numCandidates, int k, int dimension) {
+        this.collector = new ReusableKnnCollector(numCandidates);
+        this.results = new TopK(k);
+        this.docs = new int[numCandidates];
+        this.scores = new float[numCandidates];
+        this.bytes = new byte[dimension];
+      }
+    }
 
     private Querier(
         Directory directory,
@@ -396,13 +602,26 @@ public final class LuceneIndex {
         IndexSearcher searcher,
         Provider provider,
         BuildParameters buildParams,
-        QueryParameters queryParams) {
+        QueryParameters queryParams,
+        ExecutorService searchExecutor,
+        LuceneIds ids,
+        boolean ownsReader,
+        List<OpenPhase> openPhases) {
       this.directory = directory;
       this.reader = reader;
       this.searcher = searcher;
       this.provider = provider;
       this.buildParams = buildParams;
       this.queryParams = queryParams;
+      this.searchExecutor = searchExecutor;
+      this.ids = ids;
+      this.ownsReader = ownsReader;
+      this.openPhases = openPhases;
+      this.byteVectors = byteVectors(reader);
+      this.similarity = vectorSimilarity(reader);
+      // Quantized graphs score candidates approximately, and those are the scores they return.
+      this.exactScores =
+          buildParams instanceof HnswBuildParameters hnsw && !hnsw.scalarQuantization();
     }
 
     public static Index.Querier create(Path indexesPath, Parameters parameters) throws IOException {
@@ -416,39 +635,247 @@ public final class LuceneIndex {
       Preconditions.checkArgument(path.toFile().exists(), "index does not exist at {}", path);
 
       var directory = new MMapDirectory(indexesPath.resolve(buildDescription));
+      var openStart = System.nanoTime();
       var reader = DirectoryReader.open(directory);
-      var searcher = new IndexSearcher(reader);
+      var open = Duration.ofNanos(System.nanoTime() - openStart);
+      LOGGER.info(
+          "opened index with {} segments of {} docs in {}",
+          reader.leaves().size(),
+          reader.leaves().stream().map(leaf -> leaf.reader().maxDoc()).toList(),
+          open);
+
+      var idsStart = System.nanoTime();
+      var ids = LuceneIds.open(reader, ID_FIELD, idLookup(queryParams));
+      var loadIds = Duration.ofNanos(System.nanoTime() - idsStart);
+      LOGGER.info("loaded {} ids in {}", ids.lookup(), loadIds);
+
+      var phases = List.of(new OpenPhase("open reader", open), new OpenPhase("load ids", loadIds));
+      return create(directory, reader, provider, buildParams, queryParams, ids, true, phases);
+    }
+
+    private static Querier create(
+        Directory directory,
+        IndexReader reader,
+        Provider provider,
+        BuildParameters buildParams,
+        QueryParameters queryParams,
+        LuceneIds ids,
+        boolean ownsReader,
+        List<OpenPhase> openPhases) {
+      var searchExecutor = searchExecutor(queryParams);
+      var searcher =
+          searchExecutor == null
+              ? new IndexSearcher(reader)
+              : new IndexSearcher(reader, searchExecutor);
       return new LuceneIndex.Querier(
-          directory, reader, searcher, provider, buildParams, queryParams);
+          directory,
+          reader,
+          searcher,
+          provider,
+          buildParams,
+          queryParams,
+          searchExecutor,
+          ids,
+          ownsReader,
+          openPhases);
+    }
+
+    /**
+     * Returns a querier sharing this querier's reader. Only numCandidates, the search executor and
+     * the id lookup can differ for sandbox-vamana, since the rest of its query parameters are read
+     * by the format from VAMANA_* environment variables when the index is opened.
+     */
+    @Override
+    public Index.Querier withQueryParameters(Map<String, String> queryParameters)
+        throws IOException {
+      var params = parseQueryPrams(provider, queryParameters);
+      if (params instanceof VamanaQueryParameters vamana) {
+        var current = (VamanaQueryParameters) this.queryParams;
+        Preconditions.checkArgument(
+            vamana.equals(withSearchParameters(current, vamana)),
+            "only numCandidates, searchThreads, searchExecutor and idLookup can be changed for an"
+                + " opened sandbox-vamana index");
+      }
+
+      var lookup = idLookup(params);
+      var ids =
+          lookup.equals(this.ids.lookup())
+              ? this.ids
+              : LuceneIds.open(this.reader, ID_FIELD, lookup);
+      return create(directory, reader, provider, buildParams, params, ids, false, List.of());
     }
 
     @Override
     public List<Integer> query(float[] vector, int k, boolean ensureIds) throws IOException {
-      var numCandidates =
-          switch (queryParams) {
-            case HnswQueryParameters hnsw -> hnsw.numCandidates;
-            case VamanaQueryParameters vamana -> vamana.numCandidates;
-          };
+      return search(
+          this.searcher,
+          numCandidates(queryParams),
+          knnQuery(this.byteVectors, vector, numCandidates(queryParams), null, null),
+          k,
+          ensureIds ? ids : null);
+    }
+
+    @Override
+    public List<Integer> query(float[] vector, int k, boolean ensureIds, Filter filter)
+        throws IOException {
+      return search(
+          this.searcher,
+          numCandidates(queryParams),
+          knnQuery(
+              this.byteVectors,
+              vector,
+              numCandidates(queryParams),
+              filterQuery(buildParams, filter),
+              this.exactSearches),
+          k,
+          ensureIds ? ids : null);
+    }
+
+    @Override
+    public long exactSearches() {
+      return this.exactSearches.sum();
+    }
+
+    @Override
+    public List<OpenPhase> openPhases() {
+      return this.openPhases;
+    }
+
+    @Override
+    public int segments() {
+      return this.reader.leaves().size();
+    }
+
+    /**
+     * Searches each leaf's graph directly with a per-thread reusable collector, rather than through
+     * a KnnFloatVectorQuery and IndexSearcher, merging the per-leaf results into a per-thread heap
+     * of size k. With the "array" id lookup nothing is allocated outside of the format's own graph
+     * search. Leaves are always searched serially on the calling thread.
+     */
+    @Override
+    public int query(float[] vector, int k, boolean ensureIds, int[] ids, float[] scores)
+        throws IOException {
+      var scratch = this.scratch.get();
+      if (scratch == null || scratch.results.k() != k) {
+        scratch = new QueryScratch(numCandidates(queryParams), k, vector.length);
+        this.scratch.set(scratch);
+      }
+      if (this.byteVectors) {
+        toBytes(vector, scratch.bytes);
+      }
+
+      var leaves = this.reader.leaves();
+      for (int l = 0; l < leaves.size(); l++) {
+        var leaf = leaves.get(l);
+        var leafReader = leaf.reader();
+        scratch.collector.reset();
+        if (this.byteVectors) {
+          leafReader.searchNearestVectors(
+              VECTOR_FIELD, scratch.bytes, scratch.collector, leafReader.getLiveDocs());
+        } else {
+          leafReader.searchNearestVectors(
+              VECTOR_FIELD, vector, scratch.collector, leafReader.getLiveDocs());
+        }
+        var count = scratch.collector.drain(scratch.docs, scratch.scores);
+        for (int i = 0; i < count; i++) {
+          scratch.results.insert(leaf.docBase + scratch.docs[i], scratch.scores[i]);
+        }
+      }
+
+      var count = scratch.results.drain(ids, scores);
+      if (scores != null) {
+        for (int i = 0; i < count; i++) {
+          scores[i] =
+              this.exactScores && this.similarity != null
+                  ? fromLuceneScore(this.similarity, this.byteVectors, vector.length, scores[i])
+                  : Float.NaN;
+        }
+      }
+      if (ensureIds) {
+        this.ids.resolveInPlace(this.reader, ids, count);
+      }
+      return count;
+    }
+
+    /**
+     * Searches the batch leaf by leaf, so each leaf's live docs are looked up once and the upper
+     * levels of its graph stay cached across the batch, then merges each query's per-leaf results
+     * the same way {@link KnnFloatVectorQuery} does.
+     */
+    @Override
+    public List<List<Integer>> queryBatch(float[][] vectors, int k, boolean ensureIds)
+        throws IOException {
+      var dimension = vectors.length == 0 ? 0 : vectors[0].length;
+      return queryBatch(vectors.length, dimension, (q, scratch) -> vectors[q], k, ensureIds);
+    }
+
+    /** Like {@link #queryBatch(float[][], int, boolean)}, reading each query as it is searched. */
+    @Override
+    public List<List<Integer>> queryBatch(
+        MemorySegment vectors, int count, int dimension, int k, boolean ensureIds)
+        throws IOException {
+      Preconditions.checkArgument(
+          vectors.byteSize() >= (long) count * dimension * Float.BYTES,
+          "segment of %s bytes is too small for %s vectors of dimension %s",
+          vectors.byteSize(),
+          count,
+          dimension);
+
+      var layout = ValueLayout.JAVA_FLOAT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+      return queryBatch(
+          count,
+          dimension,
+          (q, scratch) -> {
+            MemorySegment.copy(
+                vectors, layout, (long) q * dimension * Float.BYTES, scratch, 0, dimension);
+            return scratch;
+          },
+          k,
+          ensureIds);
+    }
+
+    /** Returns query {@code q} of a batch, either as it is stored or read into {@code scratch}. */
+    @FunctionalInterface
+    private interface BatchVectors {
+      float[] get(int q, float[] scratch);
+    }
 
-      var query = new KnnFloatVectorQuery(VECTOR_FIELD, vector, numCandidates);
-      var results = this.searcher.search(query, numCandidates);
-      var ids = new ArrayList<Integer>(k);
+    private List<List<Integer>> queryBatch(
+        int count, int dimension, BatchVectors vectors, int k, boolean ensureIds)
+        throws IOException {
+      var numCandidates = numCandidates(queryParams);
+      var leaves = this.reader.leaves();
+      var perLeaf = new TopDocs[count][leaves.size()];
+      var scratch = new float[dimension];
+      var bytes = new byte[dimension];
 
-      for (int i = 0; i < k; i++) {
-        var result = results.scoreDocs[i];
-        var id =
-            ensureIds
-                ? this.searcher
-                    .storedFields()
-                    .document(result.doc)
-                    .getField(ID_FIELD)
-                    .numericValue()
-                    .intValue()
-                : result.doc;
-        ids.add(id);
+      for (int l = 0; l < leaves.size(); l++) {
+        var leaf = leaves.get(l);
+        var leafReader = leaf.reader();
+        var liveDocs = leafReader.getLiveDocs();
+        for (int q = 0; q < count; q++) {
+          var vector = vectors.get(q, scratch);
+          var collector = new TopKnnCollector(numCandidates, Integer.MAX_VALUE);
+          if (this.byteVectors) {
+            leafReader.searchNearestVectors(
+                VECTOR_FIELD, toBytes(vector, bytes), collector, liveDocs);
+          } else {
+            leafReader.searchNearestVectors(VECTOR_FIELD, vector, collector, liveDocs);
+          }
+          var topDocs = collector.topDocs();
+          for (var scoreDoc : topDocs.scoreDocs) {
+            scoreDoc.doc += leaf.docBase;
+          }
+          perLeaf[q][l] = topDocs;
+        }
       }
 
-      return ids;
+      var results = new ArrayList<List<Integer>>(count);
+      for (int q = 0; q < count; q++) {
+        var merged = TopDocs.merge(k, perLeaf[q]);
+        results.add(resolve(this.searcher, merged.scoreDocs, k, ensureIds ? ids : null));
+      }
+      return results;
     }
 
     @Override
@@ -457,22 +884,724 @@ public final class LuceneIndex {
           "lucene_%s_%s_%s",
           provider.description,
           LuceneIndex.Builder.buildParamString(buildParams),
-          queryParamString());
+          queryParamString(queryParams));
+    }
+
+    @Override
+    public Footprint footprint() throws IOException {
+      return this.directory instanceof FSDirectory fs ? Footprint.of(fs.getDirectory()) : null;
     }
 
     @Override
     public void close() throws Exception {
+      if (this.searchExecutor != null) {
+        this.searchExecutor.close();
+      }
+
+      if (!this.ownsReader) {
+        return;
+      }
+
       this.directory.close();
       this.reader.close();
     }
+  }
 
-    private String queryParamString() {
-      return switch (queryParams) {
-        case HnswQueryParameters hnsw -> String.format("numCandidates:%s", hnsw.numCandidates);
-        case VamanaQueryParameters vamana -> String.format(
-            "numCandidates:%s-pqRerank:%s", vamana.numCandidates, vamana.pqRerank);
-      };
+  /**
+   * Writer adds documents to an existing index while serving queries from it through a
+   * near-real-time SearcherManager, so added documents become searchable once {@link #refresh()}
+   * is called. Nothing it adds is committed: closing it rolls the index back to how it was opened.
+   */
+  public static final class Writer implements Index.Querier {
+
+    private final Directory directory;
+    private final IndexWriter writer;
+    private final SearcherManager searcherManager;
+    private final Provider provider;
+    private final BuildParameters buildParams;
+    private final QueryParameters queryParams;
+    private final ExecutorService searchExecutor;
+    private final ExecutorService mergeExecutor;
+    private final LuceneIds ids;
+    private final LuceneMerges merges;
+    private final boolean byteVectors;
+    private final ThreadLocal<WriterDocument> documents;
+
+    /**
+     * Holds whichever of floatVector and byteVector matches the index's vector encoding, and
+     * idPoint if the index was built with idPoints.
+     */
+    private record WriterDocument(
+        Document doc,
+        StoredField id,
+        IntPoint idPoint,
+        NumericDocValuesField idValue,
+        AttributeFields attributes,
+        KnnFloatVectorField floatVector,
+        KnnByteVectorField byteVector) {}
+
+    private Writer(
+        Directory directory,
+        IndexWriter writer,
+        SearcherManager searcherManager,
+        Provider provider,
+        BuildParameters buildParams,
+        QueryParameters queryParams,
+        ExecutorService searchExecutor,
+        ExecutorService mergeExecutor,
+        LuceneIds ids,
+        LuceneMerges merges,
+        boolean byteVectors,
+        VectorSimilarityFunction similarityFunction,
+        int dimension) {
+      this.directory = directory;
+      this.writer = writer;
+      this.searcherManager = searcherManager;
+      this.provider = provider;
+      this.buildParams = buildParams;
+      this.queryParams = queryParams;
+      this.searchExecutor = searchExecutor;
+      this.mergeExecutor = mergeExecutor;
+      this.ids = ids;
+      this.merges = merges;
+      this.byteVectors = byteVectors;
+      this.documents =
+          ThreadLocal.withInitial(
+              () -> {
+                var id = new StoredField(ID_FIELD, 0);
+                var idPoint = buildParams.idPoints() ? new IntPoint(ID_FIELD, 0) : null;
+                var idValue = new NumericDocValuesField(ID_FIELD, 0);
+                var floatVector =
+                    byteVectors
+                        ? null
+                        : new KnnFloatVectorField(
+                            VECTOR_FIELD, new float[dimension], similarityFunction);
+                var byteVector =
+                    byteVectors
+                        ? new KnnByteVectorField(
+                            VECTOR_FIELD, new byte[dimension], similarityFunction)
+                        : null;
+                var doc = new Document();
+                doc.add(id);
+                if (idPoint != null) {
+                  doc.add(idPoint);
+                }
+                doc.add(idValue);
+                doc.add(byteVectors ? byteVector : floatVector);
+                var attributes = AttributeFields.addTo(doc, buildParams.attributes());
+                return new WriterDocument(
+                    doc, id, idPoint, idValue, attributes, floatVector, byteVector);
+              });
     }
+
+    /**
+     * Opens a Writer on the index described by {@code parameters}, merging the segments it flushes
+     * with {@code mergePolicy}, "single" or "tiered", or with the index's own policy if it is null.
+     */
+    public static Writer create(
+        Path indexesPath,
+        SimilarityFunction similarityFunction,
+        int dimension,
+        Index.Querier.Parameters parameters,
+        String mergePolicy)
+        throws IOException {
+      var provider = Provider.parse(parameters.type());
+      var buildParams = parseBuildPrams(provider, parameters.buildParameters());
+      var queryParams = parseQueryPrams(provider, parameters.queryParameters());
+
+      var path = indexesPath.resolve(LuceneIndex.Builder.buildDescription(provider, buildParams));
+      Preconditions.checkArgument(path.toFile().exists(), "index does not exist at %s", path);
+
+      var directory = new MMapDirectory(path);
+      boolean byteVectors;
+      try (var reader = DirectoryReader.open(directory)) {
+        byteVectors = byteVectors(reader);
+      }
+      var merges = new LuceneMerges();
+      var mergeExecutor = mergeExecutor(buildParams);
+      var writer =
+          new IndexWriter(
+              directory,
+              new IndexWriterConfig()
+                  .setOpenMode(IndexWriterConfig.OpenMode.APPEND)
+                  .setCodec(codec(provider, buildParams, mergeExecutor))
+                  .setUseCompoundFile(false)
+                  .setRAMBufferSizeMB(buildParams.flushSizeMB())
+                  .setMergePolicy(
+                      mergePolicy(
+                          mergePolicy == null ? buildParams.mergePolicy() : mergePolicy,
+                          buildParams,
+                          new AtomicBoolean(false)))
+                  .setMergeScheduler(merges.scheduler(buildParams.mergeThreads()))
+                  .setCommitOnClose(false));
+      Preconditions.checkArgument(
+          !idLookup(queryParams).equals(LuceneIds.ARRAY),
+          "the array id lookup cannot follow documents added after the index is opened");
+      var ids = LuceneIds.open(null, ID_FIELD, idLookup(queryParams));
+      var searchExecutor = searchExecutor(queryParams);
+      var searcherManager =
+          new SearcherManager(
+              writer,
+              new SearcherFactory() {
+                @Override
+                public IndexSearcher newSearcher(IndexReader reader, IndexReader previousReader) {
+                  return searchExecutor == null
+                      ? new IndexSearcher(reader)
+                      : new IndexSearcher(reader, searchExecutor);
+                }
+              });
+      return new Writer(
+          directory,
+          writer,
+          searcherManager,
+          provider,
+          buildParams,
+          queryParams,
+          searchExecutor,
+          mergeExecutor,
+          ids,
+          merges,
+          byteVectors,
+          similarity(similarityFunction),
+          dimension);
+    }
+
+    /** Adds a document, which will not be searchable until the next refresh. */
+    public void add(int id, float[] vector) throws IOException {
+      this.writer.addDocument(document(id, vector));
+    }
+
+    /**
+     * Deletes the documents with the given ids, which will still be searchable until the next
+     * refresh. The index must have been built with idPoints.
+     */
+    public void delete(int[] ids) throws IOException {
+      checkIdPoints();
+      for (int start = 0; start < ids.length; start += DELETE_BATCH_SIZE) {
+        var end = Math.min(start + DELETE_BATCH_SIZE, ids.length);
+        this.writer.deleteDocuments(
+            IntPoint.newSetQuery(ID_FIELD, Arrays.copyOfRange(ids, start, end)));
+      }
+    }
+
+    /**
+     * Atomically replaces the document with the given id, as of the next refresh. The index must
+     * have been built with idPoints.
+     */
+    public void update(int id, float[] vector) throws IOException {
+      checkIdPoints();
+      this.writer.updateDocuments(
+          IntPoint.newExactQuery(ID_FIELD, id), List.of(document(id, vector)));
+    }
+
+    /**
+     * Merges away the deleted documents, blocking until the merges have completed, and returns
+     * the merges that ran. The merged segments are not searchable until the next refresh.
+     */
+    public List<MergePhase> forceMergeDeletes() throws IOException {
+      var before = this.merges.merges().size();
+      this.writer.forceMergeDeletes(true);
+      var merges = this.merges.merges();
+      return merges.subList(before, merges.size());
+    }
+
+    /** Returns the number of live documents in the currently searchable view of the index. */
+    public int docs() throws IOException {
+      var searcher = this.searcherManager.acquire();
+      try {
+        return searcher.getIndexReader().numDocs();
+      } finally {
+        this.searcherManager.release(searcher);
+      }
+    }
+
+    @Override
+    public int segments() throws IOException {
+      var searcher = this.searcherManager.acquire();
+      try {
+        return searcher.getIndexReader().leaves().size();
+      } finally {
+        this.searcherManager.release(searcher);
+      }
+    }
+
+    /** Returns the number of deleted documents in the currently searchable view of the index. */
+    public int deletedDocs() throws IOException {
+      var searcher = this.searcherManager.acquire();
+      try {
+        return searcher.getIndexReader().numDeletedDocs();
+      } finally {
+        this.searcherManager.release(searcher);
+      }
+    }
+
+    private void checkIdPoints() {
+      Preconditions.checkArgument(
+          buildParams.idPoints(),
+          "%s was not built with idPoints:true, so its documents cannot be found by id",
+          description());
+    }
+
+    private Document document(int id, float[] vector) {
+      var document = this.documents.get();
+      document.id.setIntValue(id);
+      if (document.idPoint != null) {
+        document.idPoint.setIntValue(id);
+      }
+      document.idValue.setLongValue(id);
+      document.attributes.set(id);
+      if (this.byteVectors) {
+        document.byteVector.setVectorValue(toBytes(vector, document.byteVector.vectorValue()));
+      } else {
+        document.floatVector.setVectorValue(vector);
+      }
+      return document.doc;
+    }
+
+    /** Makes every document added before the call searchable, blocking until it has. */
+    public void refresh() throws IOException {
+      this.searcherManager.maybeRefreshBlocking();
+    }
+
+    @Override
+    public List<Integer> query(float[] vector, int k, boolean ensureIds) throws IOException {
+      var searcher = this.searcherManager.acquire();
+      try {
+        return search(
+            searcher,
+            numCandidates(queryParams),
+            knnQuery(this.byteVectors, vector, numCandidates(queryParams), null, null),
+            k,
+            ensureIds ? ids : null);
+      } finally {
+        this.searcherManager.release(searcher);
+      }
+    }
+
+    @Override
+    public List<Integer> query(float[] vector, int k, boolean ensureIds, Filter filter)
+        throws IOException {
+      var searcher = this.searcherManager.acquire();
+      try {
+        return search(
+            searcher,
+            numCandidates(queryParams),
+            knnQuery(
+                this.byteVectors,
+                vector,
+                numCandidates(queryParams),
+                filterQuery(buildParams, filter),
+                null),
+            k,
+            ensureIds ? ids : null);
+      } finally {
+        this.searcherManager.release(searcher);
+      }
+    }
+
+    /** Writers are not swept, since the documents they add would differ between points. */
+    @Override
+    public Index.Querier withQueryParameters(Map<String, String> queryParameters) {
+      throw new UnsupportedOperationException(
+          description() + " does not support changing query parameters");
+    }
+
+    @Override
+    public String description() {
+      return String.format(
+          "lucene_%s_%s_%s",
+          provider.description,
+          LuceneIndex.Builder.buildParamString(buildParams),
+          queryParamString(queryParams));
+    }
+
+    @Override
+    public void close() throws Exception {
+      this.searcherManager.close();
+      this.writer.rollback();
+      this.directory.close();
+      if (this.searchExecutor != null) {
+        this.searchExecutor.close();
+      }
+      if (this.mergeExecutor != null) {
+        this.mergeExecutor.close();
+      }
+    }
+  }
+
+  private static Query filterQuery(BuildParameters buildParams, Index.Querier.Filter filter) {
+    Preconditions.checkArgument(
+        buildParams.attributes().cardinality(filter.field()) > 0,
+        "index was not built with %s attributes",
+        filter.field());
+    return IntPoint.newSetQuery(filter.field(), filter.values());
+  }
+
+  /** The reusable attribute fields of a document, for the attributes the index was built with. */
+  private record AttributeFields(Attributes attributes, IntPoint tenant, IntPoint category) {
+
+    static AttributeFields addTo(Document doc, Attributes attributes) {
+      var tenant = attributes.hasTenants() ? new IntPoint(Attributes.TENANT_FIELD, 0) : null;
+      var category = attributes.hasCategories() ? new IntPoint(Attributes.CATEGORY_FIELD, 0) : null;
+      for (var field : new IntPoint[] {tenant, category}) {
+        if (field != null) {
+          doc.add(field);
+        }
+      }
+      return new AttributeFields(attributes, tenant, category);
+    }
+
+    void set(int id) {
+      if (tenant != null) {
+        tenant.setIntValue(attributes.tenant(id));
+      }
+      if (category != null) {
+        category.setIntValue(attributes.category(id));
+      }
+    }
+  }
+
+  /**
+   * Returns the top k results of a kNN search, as ids if {@code ids} is non-null or as docIDs
+   * otherwise.
+   */
+  private static List<Integer> search(
+      IndexSearcher searcher, int numCandidates, Query query, int k, LuceneIds ids)
+      throws IOException {
+    var results = searcher.search(query, numCandidates);
+    return resolve(searcher, results.scoreDocs, k, ids);
+  }
+
+  /**
+   * Returns a kNN query for the vector, as bytes if the index holds byte vectors. When {@code
+   * exactSearches} is non-null, it is incremented for every segment where the filter matched so few
+   * documents that Lucene scored all of them instead of searching the graph.
+   */
+  private static Query knnQuery(
+      boolean byteVectors,
+      float[] vector,
+      int numCandidates,
+      Query filter,
+      LongAdder exactSearches) {
+    if (byteVectors) {
+      var bytes = toBytes(vector, new byte[vector.length]);
+      return exactSearches == null
+          ? new KnnByteVectorQuery(VECTOR_FIELD, bytes, numCandidates, filter)
+          : new KnnByteVectorQuery(VECTOR_FIELD, bytes, numCandidates, filter) {
+            @Override
+            protected TopDocs exactSearch(LeafReaderContext context, DocIdSetIterator accept)
+                throws IOException {
+              exactSearches.increment();
+              return super.exactSearch(context, accept);
+            }
+          };
+    }
+
+    return exactSearches == null
+        ? new KnnFloatVectorQuery(VECTOR_FIELD, vector, numCandidates, filter)
+        : new KnnFloatVectorQuery(VECTOR_FIELD, vector, numCandidates, filter) {
+          @Override
+          protected TopDocs exactSearch(LeafReaderContext context, DocIdSetIterator accept)
+              throws IOException {
+            exactSearches.increment();
+            return super.exactSearch(context, accept);
+          }
+        };
+  }
+
+  /** Returns whether the index's vectors are bytes rather than floats. */
+  private static boolean byteVectors(IndexReader reader) {
+    for (var leaf : reader.leaves()) {
+      var info = leaf.reader().getFieldInfos().fieldInfo(VECTOR_FIELD);
+      if (info != null) {
+        return info.getVectorEncoding() == VectorEncoding.BYTE;
+      }
+    }
+    return false;
+  }
+
+  private static VectorSimilarityFunction vectorSimilarity(IndexReader reader) {
+    for (var leaf : reader.leaves()) {
+      var info = leaf.reader().getFieldInfos().fieldInfo(VECTOR_FIELD);
+      if (info != null) {
+        return info.getVectorSimilarityFunction();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Undoes the mapping of a similarity onto a positive score that {@link VectorSimilarityFunction}
+   * applies, returning the score {@link VectorMath#score} gives the same vectors.
+   */
+  private static float fromLuceneScore(
+      VectorSimilarityFunction similarity, boolean byteVectors, int dimension, float score) {
+    return switch (similarity) {
+      case EUCLIDEAN -> 1 - 1 / score;
+      case DOT_PRODUCT -> {
+        if (byteVectors) {
+          yield (score - 0.5f) * dimension * (1 << 15);
+        }
+        // Float dot products below -1 are all clamped to a score of 0.
+        yield score > 0 ? 2 * score - 1 : Float.NaN;
+      }
+      case COSINE -> 2 * score - 1;
+      default -> Float.NaN;
+    };
+  }
+
+  /**
+   * Narrows a vector read from an int8 dataset, whose components are all whole numbers in the
+   * range of a byte, back to bytes.
+   */
+  private static byte[] toBytes(float[] vector, byte[] into) {
+    for (int i = 0; i < vector.length; i++) {
+      into[i] = (byte) vector[i];
+    }
+    return into;
+  }
+
+  private static List<Integer> resolve(
+      IndexSearcher searcher, ScoreDoc[] hits, int k, LuceneIds ids) throws IOException {
+    var count = Math.min(k, hits.length);
+    if (ids != null) {
+      return ids.resolve(searcher, hits, count);
+    }
+
+    var docs = new ArrayList<Integer>(count);
+    for (int i = 0; i < count; i++) {
+      docs.add(hits[i].doc);
+    }
+    return docs;
+  }
+
+  private static String queryParamString(QueryParameters queryParams) {
+    var params =
+        switch (queryParams) {
+          case HnswQueryParameters hnsw -> String.format("numCandidates:%s", hnsw.numCandidates);
+          case VamanaQueryParameters vamana -> String.format(
+              "numCandidates:%s-pqRerank:%s", vamana.numCandidates, vamana.pqRerank);
+        };
+
+    var searchThreads = searchThreads(queryParams);
+    var searchExecutor = searchExecutorDescription(queryParams);
+    if (searchThreads != 1 || !searchExecutor.equals(DEFAULT_SEARCH_EXECUTOR)) {
+      params =
+          String.format(
+              "%s-searchThreads:%s-searchExecutor:%s", params, searchThreads, searchExecutor);
+    }
+
+    var idLookup = idLookup(queryParams);
+    return idLookup.equals(DEFAULT_ID_LOOKUP) ? params : params + "-idLookup:" + idLookup;
+  }
+
+  private static int numCandidates(QueryParameters params) {
+    return switch (params) {
+      case HnswQueryParameters hnsw -> hnsw.numCandidates;
+      case VamanaQueryParameters vamana -> vamana.numCandidates;
+    };
+  }
+
+  private static boolean scalarQuantization(BuildParameters params) {
+    return switch (params) {
+      case HnswBuildParameters hnsw -> hnsw.scalarQuantization;
+      case VamanaBuildParameters vamana -> vamana.scalarQuantization;
+    };
+  }
+
+  private static VectorSimilarityFunction similarity(SimilarityFunction similarityFunction) {
+    return switch (similarityFunction) {
+      case COSINE -> VectorSimilarityFunction.COSINE;
+      case DOT_PRODUCT -> VectorSimilarityFunction.DOT_PRODUCT;
+      case EUCLIDEAN -> VectorSimilarityFunction.EUCLIDEAN;
+    };
+  }
+
+  private static int searchThreads(QueryParameters params) {
+    return switch (params) {
+      case HnswQueryParameters hnsw -> hnsw.searchThreads;
+      case VamanaQueryParameters vamana -> vamana.searchThreads;
+    };
+  }
+
+  private static String idLookup(QueryParameters params) {
+    return switch (params) {
+      case HnswQueryParameters hnsw -> hnsw.idLookup;
+      case VamanaQueryParameters vamana -> vamana.idLookup;
+    };
+  }
+
+  private static String searchExecutorDescription(QueryParameters params) {
+    return switch (params) {
+      case HnswQueryParameters hnsw -> hnsw.searchExecutor;
+      case VamanaQueryParameters vamana -> vamana.searchExecutor;
+    };
+  }
+
+  /**
+   * Returns the executor the IndexSearcher should search segments with, or null if segments should
+   * be searched serially on the querying thread.
+   */
+  private static ExecutorService searchExecutor(QueryParameters params) {
+    var searchThreads = searchThreads(params);
+    Preconditions.checkArgument(searchThreads > 0, "searchThreads must be positive");
+    if (searchThreads == 1) {
+      return null;
+    }
+
+    return switch (searchExecutorDescription(params)) {
+      case "platform" -> Executors.newFixedThreadPool(
+          searchThreads, Thread.ofPlatform().name("lucene-search-", 0).daemon().factory());
+      case "virtual" -> Executors.newThreadPerTaskExecutor(
+          Thread.ofVirtual().name("lucene-search-", 0).factory());
+      default -> throw new RuntimeException(
+          "unexpected search executor " + searchExecutorDescription(params));
+    };
+  }
+
+  /**
+   * Returns the executor the vector format should build graphs with when flushing and merging, or
+   * null if it should build them on the indexing or merging thread. The codec hands the same
+   * executor to every segment, so it is shut down once with the Builder or Writer.
+   */
+  private static ExecutorService mergeExecutor(BuildParameters buildParams) {
+    var numThreads =
+        switch (buildParams) {
+          case HnswBuildParameters params -> params.numThreads;
+          case VamanaBuildParameters params -> params.forceMerge ? params.numThreads : 1;
+        };
+    if (numThreads == 1) {
+      return null;
+    }
+    return Executors.newFixedThreadPool(
+        numThreads, Thread.ofPlatform().name("lucene-merge-", 0).daemon().factory());
+  }
+
+  private static Codec codec(
+      Provider provider, BuildParameters buildParams, ExecutorService mergeExecutor) {
+    return switch (provider) {
+      case HNSW -> {
+        var hnswParams = (HnswBuildParameters) buildParams;
+        yield new Lucene99Codec() {
+          @Override
+          public KnnVectorsFormat getKnnVectorsFormatForField(String field) {
+            return new Lucene99HnswVectorsFormat(
+                hnswParams.maxConn,
+                hnswParams.beamWidth,
+                hnswParams.scalarQuantization ? new Lucene99ScalarQuantizedVectorsFormat() : null,
+                hnswParams.numThreads,
+                mergeExecutor);
+          }
+        };
+      }
+      case SANDBOX_VAMANA -> {
+        var vamanaParams = (VamanaBuildParameters) buildParams;
+        yield new Lucene99Codec() {
+          @Override
+          public KnnVectorsFormat getKnnVectorsFormatForField(String field) {
+            return new VectorSandboxVamanaVectorsFormat(
+                vamanaParams.maxConn,
+                vamanaParams.beamWidth,
+                vamanaParams.alpha,
+                vamanaParams.pqFactor,
+                vamanaParams.inGraphVectors,
+                vamanaParams.scalarQuantization
+                    ? new VectorSandboxScalarQuantizedVectorsFormat()
+                    : null,
+                vamanaParams.forceMerge ? vamanaParams.numThreads : 1,
+                mergeExecutor);
+          }
+        };
+      }
+    };
+  }
+
+  private static MergePolicy mergePolicy(
+      String mergePolicy, BuildParameters buildParams, AtomicBoolean shouldMerge) {
+    return switch (mergePolicy) {
+      case "single" -> singleSegmentMergePolicy(shouldMerge);
+      case "tiered" -> {
+        var tiered = new TieredMergePolicy();
+        tiered.setMaxMergedSegmentMB(buildParams.segmentSizeMB());
+        yield tiered;
+      }
+      default -> throw new RuntimeException("unexpected merge policy " + mergePolicy);
+    };
+  }
+
+  /**
+   * Returns a merge policy that does not merge until {@code shouldMerge} is set, and then merges
+   * every segment into one.
+   */
+  private static MergePolicy singleSegmentMergePolicy(AtomicBoolean shouldMerge) {
+    return new MergePolicy() {
+
+      @Override
+      public MergeSpecification findMerges(
+          MergeTrigger mergeTrigger, SegmentInfos segmentInfos, MergeContext mergeContext) {
+        return mergeAll(segmentInfos);
+      }
+
+      @Override
+      public MergeSpecification findForcedMerges(
+          SegmentInfos segmentInfos,
+          int i,
+          Map<SegmentCommitInfo, Boolean> map,
+          MergeContext mergeContext) {
+        return mergeAll(segmentInfos);
+      }
+
+      @Override
+      public MergeSpecification findForcedDeletesMerges(
+          SegmentInfos segmentInfos, MergeContext mergeContext) throws IOException {
+        // Deletes are only reclaimed when asked for explicitly, by rewriting everything into a
+        // single segment again.
+        var infos = segmentInfos.asList();
+        for (var info : infos) {
+          if (mergeContext.numDeletesToMerge(info) > 0) {
+            var spec = new MergeSpecification();
+            spec.add(new OneMerge(infos));
+            return spec;
+          }
+        }
+        return null;
+      }
+
+      private MergeSpecification mergeAll(SegmentInfos segmentInfos) {
+        if (!shouldMerge.get()) {
+          return null;
+        }
+
+        var infos = segmentInfos.asList();
+        LOGGER.debug("merging {} segments", infos.size());
+        if (infos.size() == 1) {
+          return null;
+        }
+
+        var spec = new MergeSpecification();
+        spec.add(new OneMerge(infos));
+        return spec;
+      }
+    };
+  }
+
+  /** Returns {@code params} with the per-querier parameters taken from {@code from}. */
+  private static VamanaQueryParameters withSearchParameters(
+      VamanaQueryParameters params, VamanaQueryParameters from) {
+    return new VamanaQueryParameters(
+        from.numCandidates,
+        params.pqRerank,
+        params.mlockGraph,
+        params.mmapPqVectors,
+        params.mlockPqVectors,
+        params.parallelPqVectors,
+        params.parallelNeighborhoods,
+        params.parallelNeighborhoodsBeamWidth,
+        params.parallelRerankThreads,
+        params.nodeCacheDegree,
+        from.searchThreads,
+        from.searchExecutor,
+        from.idLookup);
   }
 
   private static BuildParameters parseBuildPrams(
@@ -0,0 +1,123 @@
+package com.github.kevindrosendahl.javaannbench.index;
+
+import com.github.kevindrosendahl.javaannbench.index.Index.Builder.MergePhase;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.MergePolicy.OneMerge;
+import org.apache.lucene.index.MergeScheduler;
+import org.apache.lucene.index.MergeTrigger;
+import org.apache.lucene.util.InfoStream;
+
+/**
+ * LuceneMerges records every merge an IndexWriter runs as a {@link MergePhase}.
+ *
+ * <p>The merge schedulers it creates time each merge on the thread running it, and the InfoStream
+ * it creates picks up how long the SegmentMerger spent merging the vectors, which for graph formats
+ * is dominated by rebuilding the graph.
+ */
+final class LuceneMerges {
+
+  private static final Pattern VECTOR_MERGE =
+      Pattern.compile("^(\\d+) ms to merge numeric vectors");
+
+  private final long startNanos = System.nanoTime();
+  private final List<MergePhase> merges = Collections.synchronizedList(new ArrayList<>());
+  private final ThreadLocal<long[]> vectorMergeMillis = ThreadLocal.withInitial(() -> new long[1]);
+
+  private interface Merge {
+    void run() throws IOException;
+  }
+
+  /**
+   * Returns a scheduler that runs merges on the thread that triggered them when {@code
+   * mergeThreads} is one, or a ConcurrentMergeScheduler running up to {@code mergeThreads} merges
+   * in the background otherwise.
+   */
+  MergeScheduler scheduler(int mergeThreads) {
+    if (mergeThreads == 1) {
+      return new MergeScheduler() {
+        @Override
+        public synchronized void merge(MergeSource mergeSource, MergeTrigger trigger)
+            throws IOException {
+          for (var merge = mergeSource.getNextMerge();
+              merge != null;
+              merge = mergeSource.getNextMerge()) {
+            var next = merge;
+            record(next, () -> mergeSource.merge(next));
+          }
+        }
+
+        @Override
+        public void close() {}
+      };
+    }
+
+    var scheduler =
+        new ConcurrentMergeScheduler() {
+          @Override
+          protected void doMerge(MergeSource mergeSource, OneMerge merge) throws IOException {
+            record(merge, () -> super.doMerge(mergeSource, merge));
+          }
+        };
+    scheduler.setMaxMergesAndThreads(mergeThreads + 5, mergeThreads);
+    return scheduler;
+  }
+
+  InfoStream infoStream() {
+    return new InfoStream() {
+      @Override
+      public void message(String component, String message) {
+        var matcher = VECTOR_MERGE.matcher(message);
+        if (matcher.find()) {
+          vectorMergeMillis.get()[0] += Long.parseLong(matcher.group(1));
+        }
+      }
+
+      @Override
+      public boolean isEnabled(String component) {
+        return component.equals("SM");
+      }
+
+      @Override
+      public void close() {}
+    };
+  }
+
+  List<MergePhase> merges() {
+    synchronized (merges) {
+      return List.copyOf(merges);
+    }
+  }
+
+  private void record(OneMerge merge, Merge run) throws IOException {
+    var inputBytes = new ArrayList<Long>(merge.segments.size());
+    var inputDocs = new ArrayList<Integer>(merge.segments.size());
+    for (var segment : merge.segments) {
+      inputBytes.add(segment.sizeInBytes());
+      inputDocs.add(segment.info.maxDoc());
+    }
+
+    var threads = ManagementFactory.getThreadMXBean();
+    vectorMergeMillis.get()[0] = 0;
+    var cpuStart = threads.getCurrentThreadCpuTime();
+    var start = System.nanoTime();
+    run.run();
+    var end = System.nanoTime();
+    var cpuEnd = threads.getCurrentThreadCpuTime();
+
+    merges.add(
+        new MergePhase(
+            Duration.ofNanos(start - startNanos),
+            Duration.ofNanos(end - start),
+            Duration.ofNanos(cpuEnd - cpuStart),
+            Duration.ofMillis(vectorMergeMillis.get()[0]),
+            inputBytes,
+            inputDocs));
+  }
+}
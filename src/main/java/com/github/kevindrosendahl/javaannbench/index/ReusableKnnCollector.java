@@ -0,0 +1,85 @@
+package com.github.kevindrosendahl.javaannbench.index;
+
+import com.github.kevindrosendahl.javaannbench.util.TopK;
+import org.apache.lucene.search.KnnCollector;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TotalHits;
+
+/**
+ * ReusableKnnCollector collects the top k hits of a vector search into a {@link TopK}, which unlike
+ * Lucene's TopKnnCollector can be reset and reused across searches without allocating.
+ */
+final class ReusableKnnCollector implements KnnCollector {
+
+  private final TopK heap;
+  private long visited;
+
+  ReusableKnnCollector(int k) {
+    this.heap = new TopK(k);
+  }
+
+  void reset() {
+    heap.clear();
+    visited = 0;
+  }
+
+  /**
+   * Writes the collected docs and scores into the arrays ordered from most to least similar, and
+   * resets the collector. Returns the number of hits written.
+   */
+  int drain(int[] docs, float[] scores) {
+    var count = heap.drain(docs, scores);
+    visited = 0;
+    return count;
+  }
+
+  @Override
+  public boolean earlyTerminated() {
+    return false;
+  }
+
+  @Override
+  public void incVisitedCount(int count) {
+    visited += count;
+  }
+
+  @Override
+  public long visitedCount() {
+    return visited;
+  }
+
+  @Override
+  public long visitLimit() {
+    return Long.MAX_VALUE;
+  }
+
+  @Override
+  public int k() {
+    return heap.k();
+  }
+
+  @Override
+  public boolean collect(int docId, float similarity) {
+    return heap.insert(docId, similarity);
+  }
+
+  @Override
+  public float minCompetitiveSimilarity() {
+    return heap.minCompetitiveScore();
+  }
+
+  /** Drains the collector into a TopDocs, which allocates, so is not used on the fast path. */
+  @Override
+  public TopDocs topDocs() {
+    var totalHits = new TotalHits(visited, TotalHits.Relation.EQUAL_TO);
+    var docs = new int[heap.size()];
+    var scores = new float[heap.size()];
+    var count = drain(docs, scores);
+    var scoreDocs = new ScoreDoc[count];
+    for (int i = 0; i < count; i++) {
+      scoreDocs[i] = new ScoreDoc(docs[i], scores[i]);
+    }
+    return new TopDocs(totalHits, scoreDocs);
+  }
+}
@@ -0,0 +1,105 @@
+package com.github.kevindrosendahl.javaannbench.util;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+/**
+ * Fadvise gives the kernel posix_fadvise advice about whole files. Unlike {@link Madvise}, the
+ * advice applies to the file's pages in the page cache rather than to a mapping of them, so
+ * DONTNEED evicts a file's clean pages without needing root, as long as no process has them
+ * mapped.
+ */
+public class Fadvise {
+  public enum Advice {
+    NORMAL(0),
+    RANDOM(1),
+    SEQUENTIAL(2),
+    WILLNEED(3),
+    DONTNEED(4),
+    NOREUSE(5);
+
+    private final int code;
+
+    Advice(int code) {
+      this.code = code;
+    }
+  }
+
+  private static final int O_RDONLY = 0;
+
+  private static final MethodHandle OPEN;
+  private static final MethodHandle CLOSE;
+  private static final MethodHandle POSIX_FADVISE;
+
+  static {
+    var linker = Linker.nativeLinker();
+    var stdlib = linker.defaultLookup();
+
+    OPEN =
+        linker.downcallHandle(
+            stdlib.find("open").get(),
+            FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.JAVA_INT));
+
+    CLOSE =
+        linker.downcallHandle(
+            stdlib.find("close").get(),
+            FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_INT));
+
+    POSIX_FADVISE =
+        linker.downcallHandle(
+            stdlib.find("posix_fadvise").get(),
+            FunctionDescriptor.of(
+                ValueLayout.JAVA_INT,
+                ValueLayout.JAVA_INT,
+                ValueLayout.JAVA_LONG,
+                ValueLayout.JAVA_LONG,
+                ValueLayout.JAVA_INT));
+  }
+
+  /** Applies the advice to the whole file. */
+  public static void advise(Path file, Advice advice) throws IOException {
+    int fd;
+    try (var arena = Arena.ofConfined()) {
+      fd = (int) OPEN.invokeExact(arena.allocateUtf8String(file.toString()), O_RDONLY);
+    } catch (Throwable t) {
+      throw new RuntimeException("caught exception invoking open", t);
+    }
+    if (fd < 0) {
+      throw new IOException("could not open " + file);
+    }
+
+    // posix_fadvise returns the error number rather than setting errno.
+    int result;
+    try {
+      result = (int) POSIX_FADVISE.invokeExact(fd, 0L, 0L, advice.code);
+    } catch (Throwable t) {
+      throw new RuntimeException("caught exception invoking posix_fadvise", t);
+    } finally {
+      try {
+        int ignored = (int) CLOSE.invokeExact(fd);
+      } catch (Throwable t) {
+        throw new RuntimeException("caught exception invoking close", t);
+      }
+    }
+
+    if (result != 0) {
+      throw new IOException("got error calling posix_fadvise on " + file + ", error " + result);
+    }
+  }
+
+  /** Applies the advice to every regular file under {@code directory}. */
+  public static void adviseUnder(Path directory, Advice advice) throws IOException {
+    try (Stream<Path> files = Files.walk(directory)) {
+      for (var file : files.filter(Files::isRegularFile).toList()) {
+        advise(file, advice);
+      }
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package com.github.kevindrosendahl.javaannbench.util;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import java.util.Arrays;
+
+/**
+ * IntSet is an open-addressing hash set of ints, for membership tests over a few hundred ids.
+ *
+ * <p>Slots are stamped with the generation that filled them, so {@link #clear(int)} is constant
+ * time unless the set has to grow, and a set can be reused per query without allocating. It is not
+ * thread safe.
+ */
+public final class IntSet {
+
+  private int[] keys;
+  private int[] stamps;
+  private int mask;
+  private int stamp = 1;
+
+  public IntSet(int capacity) {
+    allocate(capacity);
+  }
+
+  /** Empties the set, making room for at least {@code capacity} keys. */
+  public void clear(int capacity) {
+    Preconditions.checkArgument(capacity >= 0, "capacity must not be negative, got %s", capacity);
+    if (capacity * 2 > keys.length) {
+      allocate(capacity);
+      return;
+    }
+
+    if (++stamp == 0) {
+      Arrays.fill(stamps, 0);
+      stamp = 1;
+    }
+  }
+
+  /** Adds the key, returning whether it was not already present. */
+  public boolean add(int key) {
+    for (int slot = slot(key); ; slot = (slot + 1) & mask) {
+      if (stamps[slot] != stamp) {
+        stamps[slot] = stamp;
+        keys[slot] = key;
+        return true;
+      }
+      if (keys[slot] == key) {
+        return false;
+      }
+    }
+  }
+
+  public boolean contains(int key) {
+    for (int slot = slot(key); ; slot = (slot + 1) & mask) {
+      if (stamps[slot] != stamp) {
+        return false;
+      }
+      if (keys[slot] == key) {
+        return true;
+      }
+    }
+  }
+
+  /** Sets the current generation, so tests can reach its wraparound without 2^32 clears. */
+  @VisibleForTesting
+  void setStamp(int stamp) {
+    this.stamp = stamp;
+  }
+
+  private int slot(int key) {
+    var hash = key * 0x9E3779B9;
+    return (hash ^ (hash >>> 16)) & mask;
+  }
+
+  /** Sizes the table to at most half full at {@code capacity} keys. */
+  private void allocate(int capacity) {
+    var size = Integer.highestOneBit(Math.max(capacity, 4) * 2 - 1) << 1;
+    keys = new int[size];
+    stamps = new int[size];
+    mask = size - 1;
+    stamp = 1;
+  }
+}
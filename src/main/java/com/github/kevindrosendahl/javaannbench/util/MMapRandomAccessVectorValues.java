@@ -1,5 +1,7 @@
 package com.github.kevindrosendahl.javaannbench.util;
 
+import com.github.kevindrosendahl.javaannbench.dataset.SimilarityFunction;
+import com.google.common.base.Preconditions;
 import io.github.jbellis.jvector.graph.RandomAccessVectorValues;
 import java.io.IOException;
 import java.lang.foreign.Arena;
@@ -9,18 +11,145 @@ import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 import java.nio.file.Path;
 
+/**
+ * MMapRandomAccessVectorValues provides access to a file of little-endian vectors through a
+ * read-only mmap.
+ *
+ * <p>Vectors start {@code offset} bytes into the file and are {@code stride} bytes apart, which
+ * leaves room for a file header and for a header on every vector. Files split into batches, such
+ * as Arrow IPC record batches, instead give the offset of each batch of {@code batchRows} vectors.
+ * Components are stored as {@link Encoding}s and widened to floats when read, so half precision
+ * and byte datasets take a half or a quarter of the page cache that floats would.
+ *
+ * <p>By default every call to {@link #vectorValue(int)} returns a freshly allocated array. A view
+ * created with {@link #shared()} instead copies into a single buffer owned by the view and reports
+ * {@link #isValueShared()}, so callers that do not retain vectors can read without allocating;
+ * {@link #copy()} then returns a new view with its own buffer for use on another thread.
+ */
 public class MMapRandomAccessVectorValues implements RandomAccessVectorValues<float[]> {
+
+  public enum Encoding {
+    FLOAT32(Float.BYTES),
+    FLOAT16(Short.BYTES),
+    BFLOAT16(Short.BYTES),
+    UINT8(Byte.BYTES),
+    INT8(Byte.BYTES);
+
+    public final int bytes;
+
+    Encoding(int bytes) {
+      this.bytes = bytes;
+    }
+  }
+
+  private static final ValueLayout.OfFloat FLOAT = ValueLayout.JAVA_FLOAT_UNALIGNED;
+
   private final MemorySegment segment;
   private final int size;
   private final int dimension;
+  private final Encoding encoding;
+  private final long offset;
+  private final long stride;
+  private final long[] batchOffsets;
+  private final int batchRows;
+  private final float[] sharedBuffer;
 
+  /** Maps a file of {@code size} headerless float vectors. */
   public MMapRandomAccessVectorValues(Path path, int size, int dimension) throws IOException {
-    try (var channel = FileChannel.open(path)) {
-      this.segment =
-          channel.map(MapMode.READ_ONLY, 0, (long) size * dimension * Float.BYTES, Arena.global());
-    }
+    this(
+        map(path, (long) size * dimension * Float.BYTES),
+        size,
+        dimension,
+        Encoding.FLOAT32,
+        0,
+        (long) dimension * Float.BYTES,
+        null,
+        0,
+        null);
+  }
+
+  private MMapRandomAccessVectorValues(
+      MemorySegment segment,
+      int size,
+      int dimension,
+      Encoding encoding,
+      long offset,
+      long stride,
+      long[] batchOffsets,
+      int batchRows,
+      float[] sharedBuffer) {
+    this.segment = segment;
     this.size = size;
     this.dimension = dimension;
+    this.encoding = encoding;
+    this.offset = offset;
+    this.stride = stride;
+    this.batchOffsets = batchOffsets;
+    this.batchRows = batchRows;
+    this.sharedBuffer = sharedBuffer;
+  }
+
+  /**
+   * Maps {@code size} vectors starting {@code offset} bytes into the file, each {@code stride}
+   * bytes after the last.
+   */
+  public static MMapRandomAccessVectorValues mmap(
+      Path path, int size, int dimension, Encoding encoding, long offset, long stride)
+      throws IOException {
+    Preconditions.checkArgument(
+        stride >= (long) dimension * encoding.bytes, "stride %s is shorter than a vector", stride);
+    var bytes = size == 0 ? offset : offset + (size - 1) * stride + rowBytes(dimension, encoding);
+    var segment = map(path, bytes);
+    return new MMapRandomAccessVectorValues(
+        segment, size, dimension, encoding, offset, stride, null, 0, null);
+  }
+
+  /**
+   * Maps {@code size} vectors stored in batches of {@code batchRows} contiguous vectors, the last
+   * of which may be shorter, starting at each of {@code batchOffsets}.
+   */
+  public static MMapRandomAccessVectorValues mmap(
+      Path path, int size, int dimension, Encoding encoding, long[] batchOffsets, int batchRows)
+      throws IOException {
+    Preconditions.checkArgument(
+        batchOffsets.length == Math.ceilDiv(size, Math.max(batchRows, 1)),
+        "%s batches of %s vectors cannot hold %s vectors",
+        batchOffsets.length,
+        batchRows,
+        size);
+    var lastRows = size - (batchOffsets.length - 1L) * batchRows;
+    var segment =
+        map(
+            path,
+            size == 0
+                ? 0
+                : batchOffsets[batchOffsets.length - 1] + lastRows * rowBytes(dimension, encoding));
+    return new MMapRandomAccessVectorValues(
+        segment,
+        size,
+        dimension,
+        encoding,
+        0,
+        rowBytes(dimension, encoding),
+        batchOffsets,
+        batchRows,
+        null);
+  }
+
+  private static MemorySegment map(Path path, long bytes) throws IOException {
+    try (var channel = FileChannel.open(path)) {
+      Preconditions.checkArgument(
+          channel.size() >= bytes,
+          "%s has %s bytes, expected at least %s",
+          path,
+          channel.size(),
+          bytes);
+      return channel.map(MapMode.READ_ONLY, 0, bytes, Arena.global());
+    }
+  }
+
+  private static long rowBytes(int dimension, Encoding encoding) {
+    return (long) dimension * encoding.bytes;
   }
 
   @Override
@@ -33,32 +162,133 @@ public class MMapRandomAccessVectorValues implements RandomAccessVectorValues<fl
     return dimension;
   }
 
+  public Encoding encoding() {
+    return encoding;
+  }
+
   @Override
   public float[] vectorValue(int targetOrd) {
-    if (targetOrd < 0 || targetOrd >= size) {
-      throw new IllegalArgumentException("Invalid ordinal");
+    var result = sharedBuffer != null ? sharedBuffer : new float[dimension];
+    return vectorValue(targetOrd, result);
+  }
+
+  /** Bulk copies the vector into {@code into}, which must hold at least dimension floats. */
+  public float[] vectorValue(int targetOrd, float[] into) {
+    checkOrdinal(targetOrd);
+    var start = offset(targetOrd);
+    switch (encoding) {
+      case FLOAT32 -> MemorySegment.copy(segment, FLOAT, start, into, 0, dimension);
+      case FLOAT16 -> VectorMath.widenFloat16(segment, start, into, dimension);
+      case BFLOAT16 -> VectorMath.widenBFloat16(segment, start, into, dimension);
+      case UINT8 -> {
+        for (int i = 0; i < dimension; i++) {
+          into[i] = Byte.toUnsignedInt(segment.get(ValueLayout.JAVA_BYTE, start + i));
+        }
+      }
+      case INT8 -> {
+        for (int i = 0; i < dimension; i++) {
+          into[i] = segment.get(ValueLayout.JAVA_BYTE, start + i);
+        }
+      }
     }
+    return into;
+  }
 
-    float[] result = new float[dimension];
-    for (int i = 0; i < dimension; i++) {
-      result[i] =
-          segment.getAtIndex(ValueLayout.JAVA_FLOAT_UNALIGNED, (long) targetOrd * dimension + i);
+  /** Bulk copies an {@link Encoding#INT8} vector into {@code into} without widening it. */
+  public byte[] byteVectorValue(int targetOrd, byte[] into) {
+    checkOrdinal(targetOrd);
+    Preconditions.checkState(
+        encoding == Encoding.INT8, "%s vectors cannot be read as bytes", encoding);
+    MemorySegment.copy(segment, ValueLayout.JAVA_BYTE, offset(targetOrd), into, 0, dimension);
+    return into;
+  }
+
+  /**
+   * Returns the byte offset of the vector in {@link #segment()}, for consumers that score directly
+   * off-heap.
+   */
+  public long offset(int targetOrd) {
+    if (batchOffsets == null) {
+      return offset + targetOrd * stride;
     }
+    return batchOffsets[targetOrd / batchRows] + (targetOrd % batchRows) * stride;
+  }
 
-    return result;
+  /**
+   * Returns a view of the vector's bytes in the mmapped file, for consumers that can score directly
+   * off-heap. The components are little-endian and not necessarily aligned.
+   */
+  public MemorySegment vectorSegment(int targetOrd) {
+    checkOrdinal(targetOrd);
+    return segment.asSlice(offset(targetOrd), rowBytes(dimension, encoding));
+  }
+
+  /**
+   * Returns {@link VectorMath#score(SimilarityFunction, float[], float[])} of {@code query} and the
+   * vector, scored in place in the mapping.
+   */
+  public float score(SimilarityFunction similarityFunction, float[] query, int targetOrd) {
+    return switch (encoding) {
+      case FLOAT32 -> VectorMath.score(similarityFunction, query, segment, offset(targetOrd));
+      case FLOAT16 -> VectorMath.scoreFloat16(
+          similarityFunction, query, segment, offset(targetOrd));
+      case BFLOAT16 -> VectorMath.scoreBFloat16(
+          similarityFunction, query, segment, offset(targetOrd));
+      case UINT8 -> VectorMath.scoreUnsigned(similarityFunction, query, segment, offset(targetOrd));
+      case INT8 -> VectorMath.scoreSigned(similarityFunction, query, segment, offset(targetOrd));
+    };
   }
 
   @Override
   public boolean isValueShared() {
-    return false;
+    return sharedBuffer != null;
   }
 
   @Override
-  public RandomAccessVectorValues<float[]> copy() {
-    return this;
+  public MMapRandomAccessVectorValues copy() {
+    return sharedBuffer != null ? shared() : this;
+  }
+
+  /**
+   * Returns a view over the same mapping whose {@link #vectorValue(int)} reuses a single buffer.
+   * The view is not thread safe, use {@link #copy()} to get a view for each thread.
+   */
+  public MMapRandomAccessVectorValues shared() {
+    return new MMapRandomAccessVectorValues(
+        segment,
+        size,
+        dimension,
+        encoding,
+        offset,
+        stride,
+        batchOffsets,
+        batchRows,
+        new float[dimension]);
+  }
+
+  /** Returns the mmapped segment holding every vector, located by {@link #offset(int)}. */
+  public MemorySegment segment() {
+    return segment;
   }
 
   public void advise(Madvise.Advice advice) {
     Madvise.advise(this.segment, this.segment.byteSize(), advice);
   }
+
+  /** Applies the advice to the pages holding vectors [start, end). */
+  public void advise(int start, int end, Madvise.Advice advice) {
+    if (start >= end) {
+      return;
+    }
+    long from = offset(start);
+    long to = Math.min(offset(end - 1) + rowBytes(dimension, encoding), segment.byteSize());
+    long alignedFrom = from - (from % Madvise.pageSize());
+    Madvise.advise(segment.asSlice(alignedFrom), to - alignedFrom, advice);
+  }
+
+  private void checkOrdinal(int targetOrd) {
+    if (targetOrd < 0 || targetOrd >= size) {
+      throw new IllegalArgumentException("Invalid ordinal");
+    }
+  }
 }
@@ -23,6 +23,7 @@ public class Madvise {
 
   private static final MethodHandle MADVISE;
   private static final MethodHandle ERRNO;
+  private static final long PAGE_SIZE;
 
   static {
     var linker = Linker.nativeLinker();
@@ -40,6 +41,24 @@ public class Madvise {
     ERRNO =
         linker.downcallHandle(
             stdlib.find("errno").get(), FunctionDescriptor.of(ValueLayout.JAVA_INT));
+
+    // getpagesize rather than sysconf, since the value of _SC_PAGESIZE differs between platforms.
+    var getpagesize =
+        linker.downcallHandle(
+            stdlib.find("getpagesize").get(), FunctionDescriptor.of(ValueLayout.JAVA_INT));
+    try {
+      PAGE_SIZE = (int) getpagesize.invokeExact();
+    } catch (Throwable t) {
+      throw new RuntimeException("caught exception invoking getpagesize", t);
+    }
+  }
+
+  /**
+   * Returns the size of the kernel's pages, which madvise ranges must start on. This is not always
+   * 4 KiB, e.g. arm64 kernels can use 16 KiB or 64 KiB pages.
+   */
+  public static long pageSize() {
+    return PAGE_SIZE;
   }
 
   public static void advise(MemorySegment segment, long length, Advice advice) {
@@ -0,0 +1,92 @@
+package com.github.kevindrosendahl.javaannbench.util;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+/**
+ * Mincore reports how much of a file is resident in the page cache, by mapping it and asking the
+ * kernel which of its pages are in memory. Mapping a file does not read it, so measuring does not
+ * change what is measured.
+ */
+public class Mincore {
+
+  // mincore reports residency per page of the kernel's page size, which is 16K or 64K on some
+  // aarch64 kernels.
+  private static final long PAGE_SIZE = Madvise.pageSize();
+
+  private static final MethodHandle MINCORE;
+
+  static {
+    var linker = Linker.nativeLinker();
+    MINCORE =
+        linker.downcallHandle(
+            linker.defaultLookup().find("mincore").get(),
+            FunctionDescriptor.of(
+                ValueLayout.JAVA_INT,
+                ValueLayout.ADDRESS,
+                ValueLayout.JAVA_LONG,
+                ValueLayout.ADDRESS));
+  }
+
+  /** Returns the number of bytes of the file that are in the page cache. */
+  public static Bytes resident(Path file) throws IOException {
+    try (var arena = Arena.ofConfined();
+        var channel = FileChannel.open(file)) {
+      var size = channel.size();
+      if (size == 0) {
+        return Bytes.ofBytes(0);
+      }
+      return resident(channel.map(MapMode.READ_ONLY, 0, size, arena));
+    }
+  }
+
+  /**
+   * Returns the number of bytes of the mapping that are in the page cache. The mapping must start
+   * on a page boundary, as mappings of whole files do.
+   */
+  public static Bytes resident(MemorySegment mapping) throws IOException {
+    var size = mapping.byteSize();
+    var pages = Math.ceilDiv(size, PAGE_SIZE);
+    try (var arena = Arena.ofConfined()) {
+      var residency = arena.allocate(Math.max(pages, 1));
+      int result;
+      try {
+        result = (int) MINCORE.invokeExact(mapping, size, residency);
+      } catch (Throwable t) {
+        throw new RuntimeException("caught exception invoking mincore", t);
+      }
+      if (result != 0) {
+        throw new IOException("got error calling mincore");
+      }
+
+      long resident = 0;
+      for (long page = 0; page < pages; page++) {
+        if ((residency.get(ValueLayout.JAVA_BYTE, page) & 1) != 0) {
+          resident++;
+        }
+      }
+      return Bytes.ofBytes(Math.min(resident * PAGE_SIZE, size));
+    }
+  }
+
+  /** Returns the number of bytes of the regular files under {@code directory} in the cache. */
+  public static Bytes residentUnder(Path directory) throws IOException {
+    try (Stream<Path> files = Files.walk(directory)) {
+      var resident = Bytes.ofBytes(0);
+      for (var file : files.filter(Files::isRegularFile).toList()) {
+        resident = resident.add(resident(file));
+      }
+      return resident;
+    }
+  }
+}
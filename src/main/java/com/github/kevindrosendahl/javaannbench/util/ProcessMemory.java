@@ -0,0 +1,170 @@
+package com.github.kevindrosendahl.javaannbench.util;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * ProcessMemory is a sample of where this process's memory is going, in bytes, with -1 for what
+ * cannot be measured here.
+ *
+ * <p>rss and pss come from /proc/self/smaps_rollup, and so are only available on linux. pss splits
+ * shared pages between the processes mapping them, and pssFile is the part of it backed by files,
+ * which for an mmapped index is mostly its page cache. The heap and buffer pool figures come from
+ * the JVM. The NMT figures are only available when the JVM is run with
+ * -XX:NativeMemoryTracking=summary, and nmtOffHeapCommitted is everything NMT counts apart from the
+ * Java heap, which does not include memory mapped files.
+ *
+ * @param directBuffers the bytes of direct ByteBuffers
+ * @param mappedBuffers the bytes of mapped ByteBuffers, which do not include mapped MemorySegments
+ */
+public record ProcessMemory(
+    long rss,
+    long pss,
+    long pssAnon,
+    long pssFile,
+    long swap,
+    long heapUsed,
+    long heapCommitted,
+    long nonHeapUsed,
+    long nonHeapCommitted,
+    long directBuffers,
+    long mappedBuffers,
+    long nmtCommitted,
+    long nmtOffHeapCommitted) {
+
+  private static final Path SMAPS_ROLLUP = Path.of("/proc/self/smaps_rollup");
+  private static final Pattern SMAPS_LINE = Pattern.compile("^(\\w+):\\s+(\\d+) kB$");
+  private static final Pattern NMT_TOTAL =
+      Pattern.compile("Total: reserved=(\\d+)KB, committed=(\\d+)KB");
+  private static final Pattern NMT_HEAP =
+      Pattern.compile("Java Heap \\(reserved=(\\d+)KB, committed=(\\d+)KB\\)");
+  private static final boolean NMT_ENABLED = nmtEnabled();
+
+  public static ProcessMemory sample() throws IOException {
+    var smaps = smapsRollup();
+    var memory = ManagementFactory.getMemoryMXBean();
+    var heap = memory.getHeapMemoryUsage();
+    var nonHeap = memory.getNonHeapMemoryUsage();
+    var nmt = NMT_ENABLED ? nativeMemorySummary() : null;
+
+    long nmtCommitted = -1;
+    long nmtOffHeapCommitted = -1;
+    if (nmt != null) {
+      var total = NMT_TOTAL.matcher(nmt);
+      var javaHeap = NMT_HEAP.matcher(nmt);
+      if (total.find()) {
+        nmtCommitted = committedBytes(total);
+        nmtOffHeapCommitted = nmtCommitted - (javaHeap.find() ? committedBytes(javaHeap) : 0);
+      }
+    }
+
+    return new ProcessMemory(
+        smaps.getOrDefault("Rss", -1L),
+        smaps.getOrDefault("Pss", -1L),
+        smaps.getOrDefault("Pss_Anon", -1L),
+        smaps.getOrDefault("Pss_File", -1L),
+        smaps.getOrDefault("Swap", -1L),
+        heap.getUsed(),
+        heap.getCommitted(),
+        nonHeap.getUsed(),
+        nonHeap.getCommitted(),
+        bufferPool("direct"),
+        bufferPool("mapped"),
+        nmtCommitted,
+        nmtOffHeapCommitted);
+  }
+
+  /** The names of the fields, in the order of {@link #values()}. */
+  public static List<String> names() {
+    return List.of(
+        "rss",
+        "pss",
+        "pss_anon",
+        "pss_file",
+        "swap",
+        "heap_used",
+        "heap_committed",
+        "non_heap_used",
+        "non_heap_committed",
+        "direct_buffers",
+        "mapped_buffers",
+        "nmt_committed",
+        "nmt_off_heap_committed");
+  }
+
+  public long[] values() {
+    return new long[] {
+      rss,
+      pss,
+      pssAnon,
+      pssFile,
+      swap,
+      heapUsed,
+      heapCommitted,
+      nonHeapUsed,
+      nonHeapCommitted,
+      directBuffers,
+      mappedBuffers,
+      nmtCommitted,
+      nmtOffHeapCommitted
+    };
+  }
+
+  private static Map<String, Long> smapsRollup() throws IOException {
+    var fields = new HashMap<String, Long>();
+    if (!Files.exists(SMAPS_ROLLUP)) {
+      return fields;
+    }
+
+    for (var line : Files.readAllLines(SMAPS_ROLLUP)) {
+      var matcher = SMAPS_LINE.matcher(line);
+      if (matcher.matches()) {
+        fields.put(matcher.group(1), Bytes.ofKibi(Long.parseLong(matcher.group(2))).toBytes());
+      }
+    }
+    return fields;
+  }
+
+  private static long bufferPool(String name) {
+    return ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class).stream()
+        .filter(pool -> pool.getName().equals(name))
+        .mapToLong(BufferPoolMXBean::getMemoryUsed)
+        .findFirst()
+        .orElse(-1);
+  }
+
+  private static long committedBytes(Matcher matcher) {
+    return Bytes.ofKibi(Long.parseLong(matcher.group(2))).toBytes();
+  }
+
+  private static boolean nmtEnabled() {
+    var diagnostics = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+    return diagnostics != null
+        && !diagnostics.getVMOption("NativeMemoryTracking").getValue().equals("off");
+  }
+
+  private static String nativeMemorySummary() {
+    try {
+      return (String)
+          ManagementFactory.getPlatformMBeanServer()
+              .invoke(
+                  new ObjectName("com.sun.management:type=DiagnosticCommand"),
+                  "vmNativeMemory",
+                  new Object[] {new String[] {"summary"}},
+                  new String[] {String[].class.getName()});
+    } catch (JMException e) {
+      throw new RuntimeException("caught exception getting native memory summary", e);
+    }
+  }
+}
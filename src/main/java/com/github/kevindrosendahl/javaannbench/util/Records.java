@@ -1,30 +1,60 @@
 package com.github.kevindrosendahl.javaannbench.util;
 
 import com.google.common.base.Preconditions;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
 import java.lang.reflect.Constructor;
+import java.lang.reflect.RecordComponent;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.stream.Collectors;
 
 public class Records {
 
+  /**
+   * Marks a record component as optional. When it is not specified, {@link #fromMap} parses {@link
+   * #value()} instead.
+   */
+  @Retention(RetentionPolicy.RUNTIME)
+  @Target(ElementType.RECORD_COMPONENT)
+  public @interface Default {
+    String value();
+  }
+
   @SuppressWarnings("unchecked")
   public static <T> T fromMap(Map<String, String> parameters, Class<T> clazz, String description) {
     var fields = clazz.getRecordComponents();
     Constructor<T> constructor = (Constructor<T>) clazz.getDeclaredConstructors()[0];
+    var required = Arrays.stream(fields).filter(field -> !isOptional(field)).count();
     Preconditions.checkArgument(
-        constructor.getParameterCount() == parameters.size(),
+        parameters.size() >= required && parameters.size() <= constructor.getParameterCount(),
         "unexpected number of parameters when parsing %s. expected %s, got %s",
         description,
-        constructor.getParameterCount(),
+        required == constructor.getParameterCount()
+            ? Long.toString(required)
+            : String.format("%s to %s", required, constructor.getParameterCount()),
         parameters.size());
 
+    var names = Arrays.stream(fields).map(RecordComponent::getName).collect(Collectors.toSet());
+    for (var name : parameters.keySet()) {
+      Preconditions.checkArgument(
+          names.contains(name), "unexpected parameter %s when parsing %s", name, description);
+    }
+
     var args = new Object[fields.length];
     for (int i = 0; i < fields.length; i++) {
       var component = fields[i];
 
       var name = component.getName();
-      Preconditions.checkArgument(parameters.containsKey(name), "must specify %s", name);
+      Preconditions.checkArgument(
+          parameters.containsKey(name) || isOptional(component), "must specify %s", name);
 
-      var value = parameters.get(name);
+      var value =
+          parameters.containsKey(name)
+              ? parameters.get(name)
+              : component.getAnnotation(Default.class).value();
       var parsed = parse(value, component.getType());
       args[i] = parsed;
     }
@@ -37,6 +67,11 @@ public class Records {
     }
   }
 
+  /** Returns whether {@code component} is annotated with {@link Default}. */
+  public static boolean isOptional(RecordComponent component) {
+    return component.isAnnotationPresent(Default.class);
+  }
+
   private static Object parse(String value, Class<?> type) {
     if (type == int.class) {
       return Integer.parseInt(value);
@@ -0,0 +1,87 @@
+package com.github.kevindrosendahl.javaannbench.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * ThreadIo reads the current thread's I/O accounting from /proc/thread-self/io, which is only
+ * available on linux.
+ *
+ * <p>read_bytes counts the bytes the thread caused to be read from storage, including page faults
+ * on mmapped files and their readahead, but not reads served from the page cache. Since it is
+ * accounted to the OS thread, it must not be used from virtual threads, which can move between
+ * carrier threads.
+ *
+ * <p>Each thread keeps the file open and rereads it into the same buffer, so that a read costs one
+ * pread rather than an open, a read, a close and a String. /proc/thread-self resolves to the thread
+ * that opened it, which is why the channel is per thread.
+ */
+public class ThreadIo {
+
+  private static final Path THREAD_IO = Path.of("/proc/thread-self/io");
+  private static final byte[] READ_BYTES = "read_bytes: ".getBytes(StandardCharsets.US_ASCII);
+  private static final boolean AVAILABLE = Files.isReadable(THREAD_IO);
+
+  private static final ThreadLocal<ThreadIo> THREAD = new ThreadLocal<>();
+
+  private final FileChannel channel;
+  private final ByteBuffer buffer = ByteBuffer.allocate(512);
+
+  private ThreadIo(FileChannel channel) {
+    this.channel = channel;
+  }
+
+  /** Returns the bytes the current thread has read from storage, or -1 if that is not available. */
+  public static long readBytes() throws IOException {
+    if (!AVAILABLE) {
+      return -1;
+    }
+
+    var io = THREAD.get();
+    if (io == null) {
+      // The channel is closed by its cleaner once the thread and its ThreadIo are collected.
+      io = new ThreadIo(FileChannel.open(THREAD_IO));
+      THREAD.set(io);
+    }
+    return io.read();
+  }
+
+  private long read() throws IOException {
+    buffer.clear();
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, buffer.position()) <= 0) {
+        break;
+      }
+    }
+
+    var bytes = buffer.array();
+    var length = buffer.position();
+    var start = indexOf(bytes, length, READ_BYTES);
+    if (start < 0) {
+      return -1;
+    }
+
+    long value = 0;
+    for (int i = start + READ_BYTES.length; i < length && bytes[i] != '\n'; i++) {
+      value = value * 10 + (bytes[i] - '0');
+    }
+    return value;
+  }
+
+  private static int indexOf(byte[] bytes, int length, byte[] target) {
+    outer:
+    for (int i = 0; i <= length - target.length; i++) {
+      for (int j = 0; j < target.length; j++) {
+        if (bytes[i + j] != target[j]) {
+          continue outer;
+        }
+      }
+      return i;
+    }
+    return -1;
+  }
+}
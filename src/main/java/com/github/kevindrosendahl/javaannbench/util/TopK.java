@@ -0,0 +1,150 @@
+package com.github.kevindrosendahl.javaannbench.util;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * TopK is a bounded min-heap of (id, score) pairs that retains the k highest scoring ids it has
+ * been offered.
+ *
+ * <p>Ids and scores are kept in preallocated primitive arrays, so a TopK can be reused across
+ * queries via {@link #clear()} without allocating. It is not thread safe.
+ */
+public final class TopK {
+
+  private final int k;
+  private final int[] ids;
+  private final float[] scores;
+  private int size;
+
+  public TopK(int k) {
+    Preconditions.checkArgument(k > 0, "k must be positive, got %s", k);
+    this.k = k;
+    this.ids = new int[k];
+    this.scores = new float[k];
+  }
+
+  public int k() {
+    return k;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isFull() {
+    return size == k;
+  }
+
+  /**
+   * Returns the lowest score that could still be inserted, or {@link Float#NEGATIVE_INFINITY} if
+   * the heap is not yet full.
+   */
+  public float minCompetitiveScore() {
+    return size == k ? scores[0] : Float.NEGATIVE_INFINITY;
+  }
+
+  /**
+   * Offers the id to the heap, returning whether it was retained. A NaN score, e.g. the cosine of a
+   * zero vector, is kept as {@link Float#NEGATIVE_INFINITY}, since NaN compares false with every
+   * score and would break the heap's order.
+   */
+  public boolean insert(int id, float score) {
+    if (Float.isNaN(score)) {
+      score = Float.NEGATIVE_INFINITY;
+    }
+
+    if (size < k) {
+      ids[size] = id;
+      scores[size] = score;
+      siftUp(size++);
+      return true;
+    }
+
+    if (score <= scores[0]) {
+      return false;
+    }
+
+    ids[0] = id;
+    scores[0] = score;
+    siftDown(0);
+    return true;
+  }
+
+  /** Offers every entry of {@code other} to this heap. {@code other} is left unchanged. */
+  public void addAll(TopK other) {
+    for (int i = 0; i < other.size; i++) {
+      insert(other.ids[i], other.scores[i]);
+    }
+  }
+
+  public void clear() {
+    size = 0;
+  }
+
+  /**
+   * Writes the retained ids and scores into the supplied arrays ordered from highest to lowest
+   * score, and empties the heap. Returns the number of entries written.
+   */
+  public int drain(int[] idsOut, float[] scoresOut) {
+    int count = size;
+    Preconditions.checkArgument(
+        idsOut.length >= count, "ids buffer too small, need %s got %s", count, idsOut.length);
+    Preconditions.checkArgument(
+        scoresOut == null || scoresOut.length >= count,
+        "scores buffer too small, need %s",
+        count);
+
+    for (int i = count - 1; i >= 0; i--) {
+      idsOut[i] = ids[0];
+      if (scoresOut != null) {
+        scoresOut[i] = scores[0];
+      }
+      pop();
+    }
+    return count;
+  }
+
+  private void pop() {
+    size--;
+    ids[0] = ids[size];
+    scores[0] = scores[size];
+    siftDown(0);
+  }
+
+  private void siftUp(int i) {
+    int id = ids[i];
+    float score = scores[i];
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+      if (scores[parent] <= score) {
+        break;
+      }
+      ids[i] = ids[parent];
+      scores[i] = scores[parent];
+      i = parent;
+    }
+    ids[i] = id;
+    scores[i] = score;
+  }
+
+  private void siftDown(int i) {
+    int id = ids[i];
+    float score = scores[i];
+    int half = size >>> 1;
+    while (i < half) {
+      int child = 2 * i + 1;
+      int right = child + 1;
+      if (right < size && scores[right] < scores[child]) {
+        child = right;
+      }
+      if (score <= scores[child]) {
+        break;
+      }
+      ids[i] = ids[child];
+      scores[i] = scores[child];
+      i = child;
+    }
+    ids[i] = id;
+    scores[i] = score;
+  }
+}
@@ -0,0 +1,389 @@
+package com.github.kevindrosendahl.javaannbench.util;
+
+import com.github.kevindrosendahl.javaannbench.dataset.SimilarityFunction;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * VectorMath provides SIMD distance kernels built on the incubating Vector API.
+ *
+ * <p>Kernels are provided both for on-heap vectors and for vectors stored as little-endian floats,
+ * half precision floats or bytes in a {@link MemorySegment}, so that exact search can score
+ * straight off of a mmapped dataset without copying each vector onto the heap first.
+ */
+public class VectorMath {
+
+  private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+  // Byte and half precision vectors are widened a preferred float vector's lanes at a time. With
+  // fewer than 8 float lanes, e.g. on 128 bit NEON, there is no byte shape that narrow and the
+  // widening costs more than it saves, so those kernels only run their scalar loops.
+  private static final VectorSpecies<Float> WIDENED_FLOAT_SPECIES = FloatVector.SPECIES_PREFERRED;
+  private static final VectorSpecies<Integer> WIDENED_INT_SPECIES =
+      WIDENED_FLOAT_SPECIES.withLanes(int.class);
+  private static final int WIDENED_LANES = WIDENED_FLOAT_SPECIES.length();
+  private static final boolean WIDEN = WIDENED_LANES >= 8;
+  private static final VectorSpecies<Byte> BYTE_SPECIES = narrowed(byte.class, Byte.SIZE);
+  private static final VectorSpecies<Short> HALF_SPECIES = narrowed(short.class, Short.SIZE);
+  private static final ValueLayout.OfShort SHORT =
+      ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+  private static final ValueLayout.OfFloat FLOAT = ValueLayout.JAVA_FLOAT_UNALIGNED;
+  private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+  /**
+   * Returns a score for the two vectors where higher scores denote more similar vectors. The
+   * ordering is the same as Lucene's for each similarity function, but the values are not scaled
+   * into Lucene's [0, 1] range.
+   */
+  public static float score(SimilarityFunction similarityFunction, float[] a, float[] b) {
+    return switch (similarityFunction) {
+      case COSINE -> cosine(a, b);
+      case DOT_PRODUCT -> dotProduct(a, b);
+      case EUCLIDEAN -> -squareDistance(a, b);
+    };
+  }
+
+  /**
+   * Returns a score for {@code a} and the vector of {@code a.length} floats starting at byte
+   * {@code offset} in {@code b}. See {@link #score(SimilarityFunction, float[], float[])}.
+   */
+  public static float score(
+      SimilarityFunction similarityFunction, float[] a, MemorySegment b, long offset) {
+    return switch (similarityFunction) {
+      case COSINE -> cosine(a, b, offset);
+      case DOT_PRODUCT -> dotProduct(a, b, offset);
+      case EUCLIDEAN -> -squareDistance(a, b, offset);
+    };
+  }
+
+  public static float dotProduct(float[] a, float[] b) {
+    var acc = FloatVector.zero(SPECIES);
+    int i = 0;
+    int bound = SPECIES.loopBound(a.length);
+    for (; i < bound; i += SPECIES.length()) {
+      var va = FloatVector.fromArray(SPECIES, a, i);
+      var vb = FloatVector.fromArray(SPECIES, b, i);
+      acc = va.fma(vb, acc);
+    }
+
+    float result = acc.reduceLanes(VectorOperators.ADD);
+    for (; i < a.length; i++) {
+      result += a[i] * b[i];
+    }
+    return result;
+  }
+
+  public static float dotProduct(float[] a, MemorySegment b, long offset) {
+    var acc = FloatVector.zero(SPECIES);
+    int i = 0;
+    int bound = SPECIES.loopBound(a.length);
+    for (; i < bound; i += SPECIES.length()) {
+      var va = FloatVector.fromArray(SPECIES, a, i);
+      var vb = FloatVector.fromMemorySegment(SPECIES, b, offset + (long) i * Float.BYTES, ORDER);
+      acc = va.fma(vb, acc);
+    }
+
+    float result = acc.reduceLanes(VectorOperators.ADD);
+    for (; i < a.length; i++) {
+      result += a[i] * b.get(FLOAT, offset + (long) i * Float.BYTES);
+    }
+    return result;
+  }
+
+  public static float squareDistance(float[] a, float[] b) {
+    var acc = FloatVector.zero(SPECIES);
+    int i = 0;
+    int bound = SPECIES.loopBound(a.length);
+    for (; i < bound; i += SPECIES.length()) {
+      var va = FloatVector.fromArray(SPECIES, a, i);
+      var vb = FloatVector.fromArray(SPECIES, b, i);
+      var diff = va.sub(vb);
+      acc = diff.fma(diff, acc);
+    }
+
+    float result = acc.reduceLanes(VectorOperators.ADD);
+    for (; i < a.length; i++) {
+      float diff = a[i] - b[i];
+      result += diff * diff;
+    }
+    return result;
+  }
+
+  public static float squareDistance(float[] a, MemorySegment b, long offset) {
+    var acc = FloatVector.zero(SPECIES);
+    int i = 0;
+    int bound = SPECIES.loopBound(a.length);
+    for (; i < bound; i += SPECIES.length()) {
+      var va = FloatVector.fromArray(SPECIES, a, i);
+      var vb = FloatVector.fromMemorySegment(SPECIES, b, offset + (long) i * Float.BYTES, ORDER);
+      var diff = va.sub(vb);
+      acc = diff.fma(diff, acc);
+    }
+
+    float result = acc.reduceLanes(VectorOperators.ADD);
+    for (; i < a.length; i++) {
+      float diff = a[i] - b.get(FLOAT, offset + (long) i * Float.BYTES);
+      result += diff * diff;
+    }
+    return result;
+  }
+
+  public static float cosine(float[] a, float[] b) {
+    var dot = FloatVector.zero(SPECIES);
+    var normA = FloatVector.zero(SPECIES);
+    var normB = FloatVector.zero(SPECIES);
+    int i = 0;
+    int bound = SPECIES.loopBound(a.length);
+    for (; i < bound; i += SPECIES.length()) {
+      var va = FloatVector.fromArray(SPECIES, a, i);
+      var vb = FloatVector.fromArray(SPECIES, b, i);
+      dot = va.fma(vb, dot);
+      normA = va.fma(va, normA);
+      normB = vb.fma(vb, normB);
+    }
+
+    float sumDot = dot.reduceLanes(VectorOperators.ADD);
+    float sumA = normA.reduceLanes(VectorOperators.ADD);
+    float sumB = normB.reduceLanes(VectorOperators.ADD);
+    for (; i < a.length; i++) {
+      sumDot += a[i] * b[i];
+      sumA += a[i] * a[i];
+      sumB += b[i] * b[i];
+    }
+    return (float) (sumDot / Math.sqrt((double) sumA * (double) sumB));
+  }
+
+  public static float cosine(float[] a, MemorySegment b, long offset) {
+    var dot = FloatVector.zero(SPECIES);
+    var normA = FloatVector.zero(SPECIES);
+    var normB = FloatVector.zero(SPECIES);
+    int i = 0;
+    int bound = SPECIES.loopBound(a.length);
+    for (; i < bound; i += SPECIES.length()) {
+      var va = FloatVector.fromArray(SPECIES, a, i);
+      var vb = FloatVector.fromMemorySegment(SPECIES, b, offset + (long) i * Float.BYTES, ORDER);
+      dot = va.fma(vb, dot);
+      normA = va.fma(va, normA);
+      normB = vb.fma(vb, normB);
+    }
+
+    float sumDot = dot.reduceLanes(VectorOperators.ADD);
+    float sumA = normA.reduceLanes(VectorOperators.ADD);
+    float sumB = normB.reduceLanes(VectorOperators.ADD);
+    for (; i < a.length; i++) {
+      float value = b.get(FLOAT, offset + (long) i * Float.BYTES);
+      sumDot += a[i] * value;
+      sumA += a[i] * a[i];
+      sumB += value * value;
+    }
+    return (float) (sumDot / Math.sqrt((double) sumA * (double) sumB));
+  }
+
+  /**
+   * Returns a score for {@code a} and the vector of {@code a.length} unsigned bytes starting at
+   * byte {@code offset} in {@code b}. See {@link #score(SimilarityFunction, float[], float[])}.
+   */
+  public static float scoreUnsigned(
+      SimilarityFunction similarityFunction, float[] a, MemorySegment b, long offset) {
+    return scoreBytes(similarityFunction, a, b, offset, VectorOperators.ZERO_EXTEND_B2I);
+  }
+
+  /**
+   * Returns a score for {@code a} and the vector of {@code a.length} signed bytes starting at byte
+   * {@code offset} in {@code b}. See {@link #score(SimilarityFunction, float[], float[])}.
+   */
+  public static float scoreSigned(
+      SimilarityFunction similarityFunction, float[] a, MemorySegment b, long offset) {
+    return scoreBytes(similarityFunction, a, b, offset, VectorOperators.B2I);
+  }
+
+  /**
+   * Scores a byte vector by widening its components with {@code widen} and then to floats, so that
+   * the score is the same as if the vector had been read into a float[] first.
+   */
+  private static float scoreBytes(
+      SimilarityFunction similarityFunction,
+      float[] a,
+      MemorySegment b,
+      long offset,
+      VectorOperators.Conversion<Byte, Integer> widen) {
+    var dot = FloatVector.zero(WIDENED_FLOAT_SPECIES);
+    var normA = FloatVector.zero(WIDENED_FLOAT_SPECIES);
+    var normB = FloatVector.zero(WIDENED_FLOAT_SPECIES);
+    var distance = FloatVector.zero(WIDENED_FLOAT_SPECIES);
+    int i = 0;
+    int bound = widenedBound(a.length);
+    for (; i < bound; i += WIDENED_LANES) {
+      var va = FloatVector.fromArray(WIDENED_FLOAT_SPECIES, a, i);
+      var vb =
+          (FloatVector)
+              ByteVector.fromMemorySegment(BYTE_SPECIES, b, offset + i, ORDER)
+                  .convertShape(widen, WIDENED_INT_SPECIES, 0)
+                  .convert(VectorOperators.I2F, 0);
+      var diff = va.sub(vb);
+      dot = va.fma(vb, dot);
+      normA = va.fma(va, normA);
+      normB = vb.fma(vb, normB);
+      distance = diff.fma(diff, distance);
+    }
+
+    float sumDot = dot.reduceLanes(VectorOperators.ADD);
+    float sumA = normA.reduceLanes(VectorOperators.ADD);
+    float sumB = normB.reduceLanes(VectorOperators.ADD);
+    float sumDistance = distance.reduceLanes(VectorOperators.ADD);
+    for (; i < a.length; i++) {
+      byte raw = b.get(ValueLayout.JAVA_BYTE, offset + i);
+      float value = widen == VectorOperators.B2I ? raw : Byte.toUnsignedInt(raw);
+      float diff = a[i] - value;
+      sumDot += a[i] * value;
+      sumA += a[i] * a[i];
+      sumB += value * value;
+      sumDistance += diff * diff;
+    }
+
+    return switch (similarityFunction) {
+      case COSINE -> (float) (sumDot / Math.sqrt((double) sumA * (double) sumB));
+      case DOT_PRODUCT -> sumDot;
+      case EUCLIDEAN -> -sumDistance;
+    };
+  }
+
+  /**
+   * Returns a score for {@code a} and the vector of {@code a.length} little-endian IEEE 754 half
+   * precision floats starting at byte {@code offset} in {@code b}. See {@link
+   * #score(SimilarityFunction, float[], float[])}.
+   */
+  public static float scoreFloat16(
+      SimilarityFunction similarityFunction, float[] a, MemorySegment b, long offset) {
+    return scoreHalves(similarityFunction, a, b, offset, false);
+  }
+
+  /**
+   * Returns a score for {@code a} and the vector of {@code a.length} little-endian bfloat16s
+   * starting at byte {@code offset} in {@code b}. See {@link #score(SimilarityFunction, float[],
+   * float[])}.
+   */
+  public static float scoreBFloat16(
+      SimilarityFunction similarityFunction, float[] a, MemorySegment b, long offset) {
+    return scoreHalves(similarityFunction, a, b, offset, true);
+  }
+
+  /** Widens {@code length} float16s starting at byte {@code offset} in {@code b}. */
+  public static void widenFloat16(MemorySegment b, long offset, float[] into, int length) {
+    int i = 0;
+    int bound = widenedBound(length);
+    for (; i < bound; i += WIDENED_LANES) {
+      float16s(b, offset + (long) i * Short.BYTES).intoArray(into, i);
+    }
+    for (; i < length; i++) {
+      into[i] = Float.float16ToFloat(b.get(SHORT, offset + (long) i * Short.BYTES));
+    }
+  }
+
+  /** Widens {@code length} bfloat16s starting at byte {@code offset} in {@code b}. */
+  public static void widenBFloat16(MemorySegment b, long offset, float[] into, int length) {
+    int i = 0;
+    int bound = widenedBound(length);
+    for (; i < bound; i += WIDENED_LANES) {
+      bfloat16s(b, offset + (long) i * Short.BYTES).intoArray(into, i);
+    }
+    for (; i < length; i++) {
+      into[i] = bfloat16ToFloat(b.get(SHORT, offset + (long) i * Short.BYTES));
+    }
+  }
+
+  private static float scoreHalves(
+      SimilarityFunction similarityFunction,
+      float[] a,
+      MemorySegment b,
+      long offset,
+      boolean bfloat16) {
+    var dot = FloatVector.zero(WIDENED_FLOAT_SPECIES);
+    var normA = FloatVector.zero(WIDENED_FLOAT_SPECIES);
+    var normB = FloatVector.zero(WIDENED_FLOAT_SPECIES);
+    var distance = FloatVector.zero(WIDENED_FLOAT_SPECIES);
+    int i = 0;
+    int bound = widenedBound(a.length);
+    for (; i < bound; i += WIDENED_LANES) {
+      var va = FloatVector.fromArray(WIDENED_FLOAT_SPECIES, a, i);
+      var position = offset + (long) i * Short.BYTES;
+      var vb = bfloat16 ? bfloat16s(b, position) : float16s(b, position);
+      var diff = va.sub(vb);
+      dot = va.fma(vb, dot);
+      normA = va.fma(va, normA);
+      normB = vb.fma(vb, normB);
+      distance = diff.fma(diff, distance);
+    }
+
+    float sumDot = dot.reduceLanes(VectorOperators.ADD);
+    float sumA = normA.reduceLanes(VectorOperators.ADD);
+    float sumB = normB.reduceLanes(VectorOperators.ADD);
+    float sumDistance = distance.reduceLanes(VectorOperators.ADD);
+    for (; i < a.length; i++) {
+      short raw = b.get(SHORT, offset + (long) i * Short.BYTES);
+      float value = bfloat16 ? bfloat16ToFloat(raw) : Float.float16ToFloat(raw);
+      float diff = a[i] - value;
+      sumDot += a[i] * value;
+      sumA += a[i] * a[i];
+      sumB += value * value;
+      sumDistance += diff * diff;
+    }
+
+    return switch (similarityFunction) {
+      case COSINE -> (float) (sumDot / Math.sqrt((double) sumA * (double) sumB));
+      case DOT_PRODUCT -> sumDot;
+      case EUCLIDEAN -> -sumDistance;
+    };
+  }
+
+  /**
+   * Widens {@link #WIDENED_LANES} float16s. The Vector API has no half precision conversion, so
+   * the exponent and mantissa are moved into place and rescaled by 2^112, the difference between
+   * the two formats' exponent biases, which also normalizes subnormals. Infinities and NaNs get the
+   * float exponent.
+   */
+  private static FloatVector float16s(MemorySegment b, long offset) {
+    var halves =
+        (IntVector)
+            ShortVector.fromMemorySegment(HALF_SPECIES, b, offset, ORDER)
+                .convertShape(VectorOperators.ZERO_EXTEND_S2I, WIDENED_INT_SPECIES, 0);
+    var magnitude = halves.and(0x7fff);
+    var shifted = magnitude.lanewise(VectorOperators.LSHL, 13);
+    var special = magnitude.compare(VectorOperators.GE, 0x7c00);
+    var finite = shifted.reinterpretAsFloats().mul(0x1p112f).reinterpretAsInts();
+    var widened = finite.blend(shifted.or(0x7f800000), special);
+    var sign = halves.and(0x8000).lanewise(VectorOperators.LSHL, 16);
+    return widened.or(sign).reinterpretAsFloats();
+  }
+
+  /** Widens {@link #WIDENED_LANES} bfloat16s, which are the upper halves of floats. */
+  private static FloatVector bfloat16s(MemorySegment b, long offset) {
+    return ((IntVector)
+            ShortVector.fromMemorySegment(HALF_SPECIES, b, offset, ORDER)
+                .convertShape(VectorOperators.ZERO_EXTEND_S2I, WIDENED_INT_SPECIES, 0))
+        .lanewise(VectorOperators.LSHL, 16)
+        .reinterpretAsFloats();
+  }
+
+  /** Returns the species with {@link #WIDENED_LANES} lanes of {@code bits} bits, if widening. */
+  private static <E> VectorSpecies<E> narrowed(Class<E> type, int bits) {
+    return WIDEN ? VectorSpecies.of(type, VectorShape.forBitSize(WIDENED_LANES * bits)) : null;
+  }
+
+  /** Returns how many of {@code length} components the widening kernels can vectorize. */
+  private static int widenedBound(int length) {
+    return WIDEN ? length - length % WIDENED_LANES : 0;
+  }
+
+  private static float bfloat16ToFloat(short value) {
+    return Float.intBitsToFloat(value << 16);
+  }
+}
@@ -1,4 +1,4 @@
 sudo apt install -y python3.10-venv
 python3 -m venv venv
 source venv/bin/activate
-pip install faiss-cpu numpy tqdm datasets
\ No newline at end of file
+pip install numpy tqdm datasets
\ No newline at end of file
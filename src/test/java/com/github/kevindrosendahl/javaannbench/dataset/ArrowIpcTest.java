@@ -0,0 +1,186 @@
+package com.github.kevindrosendahl.javaannbench.dataset;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.github.kevindrosendahl.javaannbench.util.MMapRandomAccessVectorValues.Encoding;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.Float4Vector;
+import org.apache.arrow.vector.IntVector;
+import org.apache.arrow.vector.UInt1Vector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.complex.FixedSizeListVector;
+import org.apache.arrow.vector.ipc.ArrowFileWriter;
+import org.apache.arrow.vector.ipc.ArrowStreamWriter;
+import org.apache.arrow.vector.ipc.ArrowWriter;
+import org.apache.arrow.vector.types.FloatingPointPrecision;
+import org.apache.arrow.vector.types.pojo.ArrowType;
+import org.apache.arrow.vector.types.pojo.Field;
+import org.apache.arrow.vector.types.pojo.FieldType;
+import org.apache.arrow.vector.types.pojo.Schema;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ArrowIpcTest {
+
+  private static final int DIMENSIONS = 3;
+  private static final ArrowType FLOAT32 =
+      new ArrowType.FloatingPoint(FloatingPointPrecision.SINGLE);
+  private static final ArrowType UINT8 = new ArrowType.Int(8, false);
+
+  @Test
+  void opensMultiBatchStream(@TempDir Path dir) throws IOException {
+    var path = dir.resolve("base.arrow");
+    var vectors = vectors(7);
+    write(path, false, FLOAT32, List.of("embedding"), vectors, List.of(3, 3, 1));
+
+    var values = VectorFormats.open(path, null);
+    assertEquals(Encoding.FLOAT32, values.encoding());
+    assertEquals(vectors.length, values.size());
+    assertEquals(DIMENSIONS, values.dimension());
+    for (int i = 0; i < vectors.length; i++) {
+      assertArrayEquals(vectors[i], values.vectorValue(i));
+    }
+  }
+
+  @Test
+  void opensMultiBatchFile(@TempDir Path dir) throws IOException {
+    var path = dir.resolve("base.arrow");
+    var vectors = vectors(5);
+    write(path, true, FLOAT32, List.of("embedding"), vectors, List.of(2, 2, 1));
+
+    var values = VectorFormats.open(path, null);
+    assertEquals(vectors.length, values.size());
+    for (int i = 0; i < vectors.length; i++) {
+      assertArrayEquals(vectors[i], values.vectorValue(i));
+    }
+  }
+
+  @Test
+  void opensUint8Column(@TempDir Path dir) throws IOException {
+    var path = dir.resolve("base.arrow");
+    float[][] vectors = {{0, 127, 255}, {200, 1, 9}};
+    write(path, false, UINT8, List.of("embedding"), vectors, List.of(1, 1));
+
+    var values = VectorFormats.open(path, null);
+    assertEquals(Encoding.UINT8, values.encoding());
+    for (int i = 0; i < vectors.length; i++) {
+      assertArrayEquals(vectors[i], values.vectorValue(i));
+    }
+  }
+
+  @Test
+  void opensNamedColumnAfterOtherColumns(@TempDir Path dir) throws IOException {
+    var path = dir.resolve("base.arrow");
+    var vectors = vectors(4);
+    write(path, false, FLOAT32, List.of("title", "embedding"), vectors, List.of(4));
+
+    // Both columns hold the same vectors plus the column's index, see write.
+    var values = VectorFormats.open(path, "embedding");
+    for (int i = 0; i < vectors.length; i++) {
+      var expected = vectors[i].clone();
+      for (int j = 0; j < DIMENSIONS; j++) {
+        expected[j] += 1;
+      }
+      assertArrayEquals(expected, values.vectorValue(i));
+    }
+  }
+
+  @Test
+  void rejectsAmbiguousColumn(@TempDir Path dir) throws IOException {
+    var path = dir.resolve("base.arrow");
+    write(path, false, FLOAT32, List.of("title", "embedding"), vectors(2), List.of(2));
+
+    assertThrows(RuntimeException.class, () -> VectorFormats.open(path, null));
+    assertThrows(RuntimeException.class, () -> VectorFormats.open(path, "missing"));
+  }
+
+  @Test
+  void rejectsGrowingBatches(@TempDir Path dir) throws IOException {
+    var path = dir.resolve("base.arrow");
+    write(path, false, FLOAT32, List.of("embedding"), vectors(5), List.of(2, 3));
+
+    assertThrows(IllegalArgumentException.class, () -> VectorFormats.open(path, null));
+  }
+
+  private static float[][] vectors(int count) {
+    var vectors = new float[count][DIMENSIONS];
+    for (int i = 0; i < count; i++) {
+      for (int j = 0; j < DIMENSIONS; j++) {
+        vectors[i][j] = i * 10 + j;
+      }
+    }
+    return vectors;
+  }
+
+  /**
+   * Writes an int32 id column followed by a fixed size list column of {@code type} per name, the
+   * c-th holding {@code vectors} plus c, in record batches of {@code batchRows}.
+   */
+  private static void write(
+      Path path,
+      boolean file,
+      ArrowType type,
+      List<String> names,
+      float[][] vectors,
+      List<Integer> batchRows)
+      throws IOException {
+    var fields = new ArrayList<Field>();
+    fields.add(Field.notNullable("id", new ArrowType.Int(32, true)));
+    for (var name : names) {
+      fields.add(
+          new Field(
+              name,
+              FieldType.notNullable(new ArrowType.FixedSizeList(DIMENSIONS)),
+              List.of(Field.notNullable("item", type))));
+    }
+
+    try (var allocator = new RootAllocator();
+        var root = VectorSchemaRoot.create(new Schema(fields), allocator);
+        var channel =
+            FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        ArrowWriter writer =
+            file
+                ? new ArrowFileWriter(root, null, channel)
+                : new ArrowStreamWriter(root, null, channel)) {
+      writer.start();
+      int start = 0;
+      for (var rows : batchRows) {
+        root.allocateNew();
+        var ids = (IntVector) root.getVector("id");
+        for (int row = 0; row < rows; row++) {
+          ids.setSafe(row, start + row);
+        }
+
+        for (int c = 0; c < names.size(); c++) {
+          var list = (FixedSizeListVector) root.getVector(names.get(c));
+          var items = list.getDataVector();
+          for (int row = 0; row < rows; row++) {
+            list.setNotNull(row);
+            for (int j = 0; j < DIMENSIONS; j++) {
+              var value = vectors[start + row][j] + c;
+              var index = row * DIMENSIONS + j;
+              if (items instanceof Float4Vector floats) {
+                floats.setSafe(index, value);
+              } else {
+                ((UInt1Vector) items).setSafe(index, (int) value);
+              }
+            }
+          }
+        }
+
+        root.setRowCount(rows);
+        writer.writeBatch();
+        start += rows;
+      }
+      writer.end();
+    }
+  }
+}
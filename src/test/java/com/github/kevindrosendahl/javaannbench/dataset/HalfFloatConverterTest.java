@@ -0,0 +1,70 @@
+package com.github.kevindrosendahl.javaannbench.dataset;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.junit.jupiter.api.Test;
+
+class HalfFloatConverterTest {
+
+  private static final int HALVES = 1 << 16;
+
+  @Test
+  void bfloat16RoundTripsEveryValue() {
+    for (int bits = 0; bits < HALVES; bits++) {
+      var value = Float.intBitsToFloat(bits << 16);
+      var rounded = HalfFloatConverter.toBFloat16(value);
+      if (Float.isNaN(value)) {
+        assertTrue(Float.isNaN(Float.intBitsToFloat(rounded << 16)), Integer.toHexString(bits));
+      } else {
+        assertEquals((short) bits, rounded, Integer.toHexString(bits));
+      }
+    }
+  }
+
+  @Test
+  void bfloat16RoundsToNearestTiesToEven() {
+    for (int bits = 0; bits < HALVES; bits++) {
+      var value = Float.intBitsToFloat(bits << 16);
+      if (Float.isNaN(value) || Float.isInfinite(value)) {
+        continue;
+      }
+      var even = (bits & 1) == 0;
+      var halfway = (bits << 16) | 0x8000;
+      assertEquals(
+          (short) (even ? bits : bits + 1),
+          HalfFloatConverter.toBFloat16(Float.intBitsToFloat(halfway)),
+          Integer.toHexString(bits));
+      assertEquals(
+          (short) bits,
+          HalfFloatConverter.toBFloat16(Float.intBitsToFloat(halfway - 1)),
+          Integer.toHexString(bits));
+      assertEquals(
+          (short) (bits + 1),
+          HalfFloatConverter.toBFloat16(Float.intBitsToFloat(halfway + 1)),
+          Integer.toHexString(bits));
+    }
+  }
+
+  @Test
+  void bfloat16KeepsNaNsWhoseMantissaWouldBeTruncated() {
+    var nan = Float.intBitsToFloat(0x7f800001);
+    var rounded = HalfFloatConverter.toBFloat16(nan);
+    assertTrue(Float.isNaN(Float.intBitsToFloat(rounded << 16)));
+  }
+
+  @Test
+  void float16RoundsToNearestTiesToEven() {
+    // 1 + 2^-11 is halfway between 1 and the next float16, 1 + 2^-10, and rounds to the even 1.
+    float[] vector = {1 + 0x1p-11f, 1 + 0x1p-11f + 0x1p-20f, 65504, 65520};
+    var buffer = ByteBuffer.allocate(vector.length * Short.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    HalfFloatConverter.FLOAT16.put(vector, buffer);
+
+    assertEquals(1f, Float.float16ToFloat(buffer.getShort(0)));
+    assertEquals(1 + 0x1p-10f, Float.float16ToFloat(buffer.getShort(2)));
+    assertEquals(65504f, Float.float16ToFloat(buffer.getShort(4)));
+    assertEquals(Float.POSITIVE_INFINITY, Float.float16ToFloat(buffer.getShort(6)));
+  }
+}
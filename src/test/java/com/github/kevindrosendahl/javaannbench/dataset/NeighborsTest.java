@@ -0,0 +1,90 @@
+package com.github.kevindrosendahl.javaannbench.dataset;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.github.kevindrosendahl.javaannbench.util.MMapRandomAccessVectorValues;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class NeighborsTest {
+
+  @Test
+  void recallOnlyConsidersFirstKResults() {
+    var neighbors = Neighbors.of(new int[] {0, 1, 2, 3}, 4);
+    int[] results = {9, 8, 0, 1};
+
+    assertEquals(0.0, neighbors.recall(0, results, results.length, 2));
+    assertEquals(0.5, neighbors.recall(0, results, results.length, 4));
+    assertEquals(0.0, neighbors.recall(0, List.of(9, 8, 0, 1), 2));
+    assertEquals(0.5, neighbors.recall(0, List.of(9, 8, 0, 1), 4));
+  }
+
+  @Test
+  void recallOnlyConsidersFirstCountResults() {
+    var neighbors = Neighbors.of(new int[] {0, 1}, 2);
+    int[] results = {0, 5, 1};
+
+    assertEquals(0.5, neighbors.recall(0, results, 2, 2));
+  }
+
+  @Test
+  void recallIsOutOfTopKNeighbors() {
+    var neighbors = Neighbors.of(new int[] {4, 3, 2, 1}, 4);
+
+    // Only the top 2 neighbors count at k=2, so 2 is a miss even though it is a neighbor.
+    assertEquals(0.5, neighbors.recall(0, new int[] {4, 2}, 2, 2));
+    assertEquals(1.0, neighbors.recall(0, new int[] {3, 4}, 2, 2));
+  }
+
+  @Test
+  void recallIsOutOfNeighborsWhenFewerThanK() {
+    var neighbors = Neighbors.of(new int[][] {{5}, {}});
+
+    assertEquals(1, neighbors.count(0));
+    assertEquals(1.0, neighbors.recall(0, new int[] {5, 6, 7}, 3, 10));
+    assertTrue(Double.isNaN(neighbors.recall(1, new int[] {5}, 1, 10)));
+  }
+
+  @Test
+  void tieAwareRecallCountsResultsScoringAsWellAsKth(@TempDir Path dir) throws IOException {
+    // Train vectors 0 and 1 are both at distance 1 from the query, and the ground truth has 0.
+    var train = train(dir, new float[][] {{1, 0}, {0, 1}, {2, 0}});
+    var neighbors =
+        Neighbors.of(new int[] {0}, 1)
+            .withScores(train, List.of(new float[] {0, 0}), SimilarityFunction.EUCLIDEAN);
+
+    assertEquals(1.0, neighbors.recall(0, new int[] {1}, new float[] {-1}, 1, 1));
+    assertEquals(0.0, neighbors.recall(0, new int[] {2}, new float[] {-4}, 1, 1));
+    assertEquals(0.0, neighbors.recall(0, new int[] {1}, new float[] {Float.NaN}, 1, 1));
+    assertEquals(0.0, neighbors.recall(0, new int[] {1}, 1, 1));
+  }
+
+  @Test
+  void scoresAreIgnoredWithoutGroundTruthScores() {
+    var neighbors = Neighbors.of(new int[] {0}, 1);
+
+    assertEquals(0.0, neighbors.recall(0, new int[] {1}, new float[] {100}, 1, 1));
+  }
+
+  private static MMapRandomAccessVectorValues train(Path dir, float[][] vectors)
+      throws IOException {
+    var buffer =
+        ByteBuffer.allocate(vectors.length * vectors[0].length * Float.BYTES)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    for (var vector : vectors) {
+      for (var component : vector) {
+        buffer.putFloat(component);
+      }
+    }
+    var path = dir.resolve("train");
+    Files.write(path, buffer.array());
+    return new MMapRandomAccessVectorValues(path, vectors.length, vectors[0].length);
+  }
+}
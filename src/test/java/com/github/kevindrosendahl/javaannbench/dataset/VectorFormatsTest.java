@@ -0,0 +1,217 @@
+package com.github.kevindrosendahl.javaannbench.dataset;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.github.kevindrosendahl.javaannbench.util.MMapRandomAccessVectorValues;
+import com.github.kevindrosendahl.javaannbench.util.MMapRandomAccessVectorValues.Encoding;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class VectorFormatsTest {
+
+  private static final float[][] VECTORS = {{1.5f, -2f, 3f}, {0f, 4.25f, -1f}};
+  private static final int[][] BYTE_VECTORS = {{0, 127, 255}, {200, 1, 9}};
+
+  @Test
+  void opensFvecs(@TempDir Path dir) throws IOException {
+    var buffer = buffer(VECTORS.length * (Integer.BYTES + 3 * Float.BYTES));
+    for (var vector : VECTORS) {
+      buffer.putInt(vector.length);
+      putFloats(buffer, vector);
+    }
+
+    assertVectors(VectorFormats.open(write(dir, "base.fvecs", buffer), null), Encoding.FLOAT32);
+  }
+
+  @Test
+  void opensBvecs(@TempDir Path dir) throws IOException {
+    var buffer = buffer(BYTE_VECTORS.length * (Integer.BYTES + 3));
+    for (var vector : BYTE_VECTORS) {
+      buffer.putInt(vector.length);
+      putBytes(buffer, vector);
+    }
+
+    assertByteVectors(VectorFormats.open(write(dir, "base.bvecs", buffer), null), Encoding.UINT8);
+  }
+
+  @Test
+  void rejectsTruncatedFvecs(@TempDir Path dir) throws IOException {
+    var buffer = buffer(Integer.BYTES + 2 * Float.BYTES);
+    buffer.putInt(3);
+    putFloats(buffer, new float[] {1, 2});
+    var path = write(dir, "base.fvecs", buffer);
+
+    assertThrows(IllegalArgumentException.class, () -> VectorFormats.open(path, null));
+  }
+
+  @Test
+  void opensFbin(@TempDir Path dir) throws IOException {
+    var buffer = buffer(2 * Integer.BYTES + VECTORS.length * 3 * Float.BYTES);
+    buffer.putInt(VECTORS.length).putInt(3);
+    for (var vector : VECTORS) {
+      putFloats(buffer, vector);
+    }
+
+    assertVectors(VectorFormats.open(write(dir, "base.fbin", buffer), null), Encoding.FLOAT32);
+  }
+
+  @Test
+  void opensU8bin(@TempDir Path dir) throws IOException {
+    var buffer = buffer(2 * Integer.BYTES + BYTE_VECTORS.length * 3);
+    buffer.putInt(BYTE_VECTORS.length).putInt(3);
+    for (var vector : BYTE_VECTORS) {
+      putBytes(buffer, vector);
+    }
+
+    assertByteVectors(VectorFormats.open(write(dir, "base.u8bin", buffer), null), Encoding.UINT8);
+  }
+
+  @Test
+  void rejectsFbinShorterThanItsHeader(@TempDir Path dir) throws IOException {
+    var buffer = buffer(2 * Integer.BYTES + 3 * Float.BYTES);
+    buffer.putInt(2).putInt(3);
+    putFloats(buffer, VECTORS[0]);
+    var path = write(dir, "base.fbin", buffer);
+
+    assertThrows(IllegalArgumentException.class, () -> VectorFormats.open(path, null));
+  }
+
+  @Test
+  void loadsIbinNeighbors(@TempDir Path dir) throws IOException {
+    var buffer = buffer(2 * Integer.BYTES + 2 * 2 * Integer.BYTES);
+    buffer.putInt(2).putInt(2).putInt(5).putInt(3).putInt(0).putInt(7);
+
+    var neighbors = VectorFormats.neighbors(write(dir, "gt.ibin", buffer));
+    assertEquals(2, neighbors.size());
+    assertEquals(3, neighbors.id(0, 1));
+    assertEquals(7, neighbors.id(1, 1));
+  }
+
+  @Test
+  void loadsIvecsNeighbors(@TempDir Path dir) throws IOException {
+    var buffer = buffer(2 * 3 * Integer.BYTES);
+    buffer.putInt(2).putInt(5).putInt(3).putInt(2).putInt(0).putInt(7);
+
+    var neighbors = VectorFormats.neighbors(write(dir, "gt.ivecs", buffer));
+    assertEquals(2, neighbors.size());
+    assertEquals(5, neighbors.id(0, 0));
+    assertEquals(0, neighbors.id(1, 0));
+  }
+
+  @Test
+  void rejectsVectorsAsNeighbors(@TempDir Path dir) throws IOException {
+    var buffer = buffer(2 * Integer.BYTES + 3 * Float.BYTES);
+    buffer.putInt(1).putInt(3);
+    putFloats(buffer, VECTORS[0]);
+    var path = write(dir, "gt.fbin", buffer);
+
+    assertThrows(IllegalArgumentException.class, () -> VectorFormats.neighbors(path));
+  }
+
+  @Test
+  void opensFloat32Npy(@TempDir Path dir) throws IOException {
+    var header = npyHeader("<f4", false, VECTORS.length, 3);
+    var buffer = buffer(header.length + VECTORS.length * 3 * Float.BYTES).put(header);
+    for (var vector : VECTORS) {
+      putFloats(buffer, vector);
+    }
+
+    assertVectors(VectorFormats.open(write(dir, "base.npy", buffer), null), Encoding.FLOAT32);
+  }
+
+  @Test
+  void opensUint8Npy(@TempDir Path dir) throws IOException {
+    var header = npyHeader("|u1", false, BYTE_VECTORS.length, 3);
+    var buffer = buffer(header.length + BYTE_VECTORS.length * 3).put(header);
+    for (var vector : BYTE_VECTORS) {
+      putBytes(buffer, vector);
+    }
+
+    assertByteVectors(VectorFormats.open(write(dir, "base.npy", buffer), null), Encoding.UINT8);
+  }
+
+  @Test
+  void rejectsFortranOrderedNpy(@TempDir Path dir) throws IOException {
+    var header = npyHeader("<f4", true, VECTORS.length, 3);
+    var buffer = buffer(header.length + VECTORS.length * 3 * Float.BYTES).put(header);
+    var path = write(dir, "base.npy", buffer);
+
+    assertThrows(IllegalArgumentException.class, () -> VectorFormats.open(path, null));
+  }
+
+  @Test
+  void rejectsUnknownExtension(@TempDir Path dir) throws IOException {
+    var path = write(dir, "base.csv", buffer(16));
+
+    assertThrows(RuntimeException.class, () -> VectorFormats.open(path, null));
+  }
+
+  /** Returns a version 1.0 .npy header, padded so the data starts 64 byte aligned. */
+  private static byte[] npyHeader(String descr, boolean fortran, int rows, int dimensions) {
+    var dictionary =
+        String.format(
+            "{'descr': '%s', 'fortran_order': %s, 'shape': (%s, %s), }",
+            descr, fortran ? "True" : "False", rows, dimensions);
+    var length = dictionary.length() + 1;
+    var padded = (10 + length + 63) / 64 * 64 - 10;
+    var text = dictionary + " ".repeat(padded - length) + "\n";
+
+    var header = buffer(10 + padded);
+    header.put((byte) 0x93).put("NUMPY".getBytes(StandardCharsets.US_ASCII));
+    header.put((byte) 1).put((byte) 0).putShort((short) padded);
+    header.put(text.getBytes(StandardCharsets.US_ASCII));
+    return header.array();
+  }
+
+  private static void assertVectors(MMapRandomAccessVectorValues vectors, Encoding encoding) {
+    assertEquals(encoding, vectors.encoding());
+    assertEquals(VECTORS.length, vectors.size());
+    assertEquals(3, vectors.dimension());
+    for (int i = 0; i < VECTORS.length; i++) {
+      assertArrayEquals(VECTORS[i], vectors.vectorValue(i));
+    }
+  }
+
+  private static void assertByteVectors(MMapRandomAccessVectorValues vectors, Encoding encoding) {
+    assertEquals(encoding, vectors.encoding());
+    assertEquals(BYTE_VECTORS.length, vectors.size());
+    assertEquals(3, vectors.dimension());
+    for (int i = 0; i < BYTE_VECTORS.length; i++) {
+      var expected = new float[3];
+      for (int j = 0; j < 3; j++) {
+        expected[j] = BYTE_VECTORS[i][j];
+      }
+      assertArrayEquals(expected, vectors.vectorValue(i));
+    }
+  }
+
+  private static ByteBuffer buffer(int bytes) {
+    return ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private static void putFloats(ByteBuffer buffer, float[] values) {
+    for (var value : values) {
+      buffer.putFloat(value);
+    }
+  }
+
+  private static void putBytes(ByteBuffer buffer, int[] values) {
+    for (var value : values) {
+      buffer.put((byte) value);
+    }
+  }
+
+  private static Path write(Path dir, String name, ByteBuffer buffer) throws IOException {
+    var path = dir.resolve(name);
+    Files.write(path, buffer.array());
+    return path;
+  }
+}
@@ -0,0 +1,90 @@
+package com.github.kevindrosendahl.javaannbench.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class IntSetTest {
+
+  @Test
+  void addsAndContains() {
+    var set = new IntSet(4);
+    assertTrue(set.add(3));
+    assertTrue(set.add(-7));
+    assertFalse(set.add(3));
+    assertTrue(set.contains(3));
+    assertTrue(set.contains(-7));
+    assertFalse(set.contains(4));
+  }
+
+  @Test
+  void matchesHashSetOnRandomKeys() {
+    var random = new Random(0);
+    var set = new IntSet(100);
+    var expected = new HashSet<Integer>();
+    for (int i = 0; i < 100; i++) {
+      var key = random.nextInt(1000);
+      assertEquals(expected.add(key), set.add(key));
+    }
+    for (int key = 0; key < 1000; key++) {
+      assertEquals(expected.contains(key), set.contains(key));
+    }
+  }
+
+  @Test
+  void clearEmptiesWithoutGrowing() {
+    var set = new IntSet(8);
+    for (int key = 0; key < 8; key++) {
+      set.add(key);
+    }
+    set.clear(8);
+    for (int key = 0; key < 8; key++) {
+      assertFalse(set.contains(key));
+    }
+    assertTrue(set.add(2));
+    assertTrue(set.contains(2));
+  }
+
+  @Test
+  void clearGrowsForLargerCapacity() {
+    var set = new IntSet(4);
+    set.add(1);
+    set.clear(1000);
+    assertFalse(set.contains(1));
+
+    // Would never terminate if the table had not grown, since probing stops at an empty slot.
+    for (int key = 0; key < 1000; key++) {
+      assertTrue(set.add(key));
+    }
+    for (int key = 0; key < 1000; key++) {
+      assertTrue(set.contains(key));
+    }
+    assertFalse(set.contains(1000));
+  }
+
+  @Test
+  void clearAtStampWraparoundForgetsEveryGeneration() {
+    var set = new IntSet(4);
+    // Filled in generation 1, which the generation after the wraparound reuses.
+    set.add(7);
+    set.setStamp(-1);
+    set.add(9);
+
+    set.clear(4);
+    assertFalse(set.contains(7));
+    assertFalse(set.contains(9));
+    assertTrue(set.add(7));
+    assertTrue(set.contains(7));
+  }
+
+  @Test
+  void rejectsNegativeCapacity() {
+    var set = new IntSet(4);
+    assertThrows(IllegalArgumentException.class, () -> set.clear(-1));
+  }
+}
@@ -0,0 +1,164 @@
+package com.github.kevindrosendahl.javaannbench.util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.Test;
+
+class TopKTest {
+
+  @Test
+  void drainsHighestScoresInDescendingOrder() {
+    var topK = new TopK(3);
+    float[] scores = {0.5f, 0.1f, 0.9f, 0.3f, 0.7f};
+    for (int id = 0; id < scores.length; id++) {
+      topK.insert(id, scores[id]);
+    }
+
+    var ids = new int[3];
+    var drained = new float[3];
+    assertEquals(3, topK.drain(ids, drained));
+    assertArrayEquals(new int[] {2, 4, 0}, ids);
+    assertArrayEquals(new float[] {0.9f, 0.7f, 0.5f}, drained);
+    assertEquals(0, topK.size());
+  }
+
+  @Test
+  void matchesSortOnRandomScores() {
+    var random = new Random(0);
+    var k = 10;
+    var scores = new float[1000];
+    for (int i = 0; i < scores.length; i++) {
+      scores[i] = random.nextFloat();
+    }
+
+    var topK = new TopK(k);
+    for (int id = 0; id < scores.length; id++) {
+      topK.insert(id, scores[id]);
+    }
+
+    var expected =
+        IntStream.range(0, scores.length)
+            .boxed()
+            .sorted(Comparator.comparing((Integer id) -> scores[id]).reversed())
+            .limit(k)
+            .mapToInt(Integer::intValue)
+            .toArray();
+    var ids = new int[k];
+    topK.drain(ids, null);
+    assertArrayEquals(expected, ids);
+  }
+
+  @Test
+  void keepsEarlierIdOnTiedMinimum() {
+    var topK = new TopK(2);
+    assertTrue(topK.insert(0, 1f));
+    assertTrue(topK.insert(1, 2f));
+    assertEquals(1f, topK.minCompetitiveScore());
+
+    // A full heap only admits scores strictly above its minimum, so the first id offered wins ties.
+    assertFalse(topK.insert(2, 1f));
+    assertTrue(topK.insert(3, 1.5f));
+
+    var ids = new int[2];
+    topK.drain(ids, null);
+    assertArrayEquals(new int[] {1, 3}, ids);
+  }
+
+  @Test
+  void minCompetitiveScoreIsUnboundedUntilFull() {
+    var topK = new TopK(2);
+    topK.insert(0, 5f);
+    assertFalse(topK.isFull());
+    assertEquals(Float.NEGATIVE_INFINITY, topK.minCompetitiveScore());
+    topK.insert(1, 3f);
+    assertTrue(topK.isFull());
+    assertEquals(3f, topK.minCompetitiveScore());
+  }
+
+  @Test
+  void ranksNaNScoresLowest() {
+    var topK = new TopK(3);
+    float[] scores = {Float.NaN, 0.5f, Float.NaN, 0.1f, 0.9f, Float.NaN, 0.3f};
+    for (int id = 0; id < scores.length; id++) {
+      topK.insert(id, scores[id]);
+    }
+
+    var ids = new int[3];
+    var drained = new float[3];
+    topK.drain(ids, drained);
+    assertArrayEquals(new int[] {4, 1, 6}, ids);
+    assertArrayEquals(new float[] {0.9f, 0.5f, 0.3f}, drained);
+  }
+
+  @Test
+  void keepsNaNScoresAsNegativeInfinityUntilFull() {
+    var topK = new TopK(3);
+    topK.insert(0, Float.NaN);
+    topK.insert(1, 0.2f);
+
+    var ids = new int[3];
+    var drained = new float[3];
+    assertEquals(2, topK.drain(ids, drained));
+    assertArrayEquals(new int[] {1, 0, 0}, ids);
+    assertArrayEquals(new float[] {0.2f, Float.NEGATIVE_INFINITY, 0}, drained);
+  }
+
+  @Test
+  void drainsPartialHeap() {
+    var topK = new TopK(5);
+    topK.insert(7, 0.2f);
+    topK.insert(8, 0.4f);
+
+    var ids = new int[5];
+    Arrays.fill(ids, -1);
+    assertEquals(2, topK.drain(ids, null));
+    assertArrayEquals(new int[] {8, 7, -1, -1, -1}, ids);
+  }
+
+  @Test
+  void addAllMergesWithoutChangingOther() {
+    var first = new TopK(3);
+    var second = new TopK(3);
+    first.insert(0, 0.1f);
+    first.insert(1, 0.8f);
+    second.insert(2, 0.5f);
+    second.insert(3, 0.9f);
+
+    first.addAll(second);
+    assertEquals(2, second.size());
+
+    var ids = new int[3];
+    first.drain(ids, null);
+    assertArrayEquals(new int[] {3, 1, 2}, ids);
+  }
+
+  @Test
+  void clearAllowsReuse() {
+    var topK = new TopK(2);
+    topK.insert(0, 10f);
+    topK.insert(1, 20f);
+    topK.clear();
+    topK.insert(2, 1f);
+
+    var ids = new int[2];
+    assertEquals(1, topK.drain(ids, null));
+    assertEquals(2, ids[0]);
+  }
+
+  @Test
+  void rejectsSmallBuffers() {
+    var topK = new TopK(2);
+    topK.insert(0, 1f);
+    topK.insert(1, 2f);
+    assertThrows(IllegalArgumentException.class, () -> topK.drain(new int[1], null));
+    assertThrows(IllegalArgumentException.class, () -> new TopK(0));
+  }
+}
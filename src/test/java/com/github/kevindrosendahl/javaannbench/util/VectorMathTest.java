@@ -0,0 +1,134 @@
+package com.github.kevindrosendahl.javaannbench.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.github.kevindrosendahl.javaannbench.dataset.SimilarityFunction;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the half precision kernels against the scalar conversions for every 16 bit input. Run with
+ * -XX:MaxVectorSize=16 to cover the scalar fallback and with 32 or 64 to cover wider species.
+ */
+class VectorMathTest {
+
+  private static final ValueLayout.OfShort SHORT =
+      ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+  private static final int HALVES = 1 << 16;
+  // Not a multiple of any lane count, so every score also runs the scalar tail.
+  private static final int REPEATS = 19;
+  // An odd offset, so every load is unaligned.
+  private static final long OFFSET = 3;
+
+  @Test
+  void widenFloat16MatchesFloat16ToFloat() {
+    try (var arena = Arena.ofConfined()) {
+      var halves = allHalves(arena);
+      var widened = new float[HALVES];
+      VectorMath.widenFloat16(halves, OFFSET, widened, HALVES);
+      for (int bits = 0; bits < HALVES; bits++) {
+        assertEquals(Float.float16ToFloat((short) bits), widened[bits], Integer.toHexString(bits));
+      }
+    }
+  }
+
+  @Test
+  void widenBFloat16MatchesUpperHalfOfFloat() {
+    try (var arena = Arena.ofConfined()) {
+      var halves = allHalves(arena);
+      var widened = new float[HALVES];
+      VectorMath.widenBFloat16(halves, OFFSET, widened, HALVES);
+      for (int bits = 0; bits < HALVES; bits++) {
+        assertEquals(Float.intBitsToFloat(bits << 16), widened[bits], Integer.toHexString(bits));
+      }
+    }
+  }
+
+  @Test
+  void widenHandlesShortTails() {
+    try (var arena = Arena.ofConfined()) {
+      var halves = allHalves(arena);
+      for (int length = 0; length < 40; length++) {
+        var widened = new float[length];
+        VectorMath.widenFloat16(halves, OFFSET + 2L * 0x3c00, widened, length);
+        for (int i = 0; i < length; i++) {
+          var bits = 0x3c00 + i;
+          assertEquals(Float.float16ToFloat((short) bits), widened[i], Integer.toHexString(bits));
+        }
+      }
+    }
+  }
+
+  @Test
+  void scoreFloat16MatchesWidenedScore() {
+    try (var arena = Arena.ofConfined()) {
+      var segment = arena.allocate(OFFSET + (long) REPEATS * Short.BYTES);
+      for (int bits = 0; bits < HALVES; bits++) {
+        fill(segment, (short) bits);
+        assertScores(segment, Float.float16ToFloat((short) bits), bits, VectorMath::scoreFloat16);
+      }
+    }
+  }
+
+  @Test
+  void scoreBFloat16MatchesWidenedScore() {
+    try (var arena = Arena.ofConfined()) {
+      var segment = arena.allocate(OFFSET + (long) REPEATS * Short.BYTES);
+      for (int bits = 0; bits < HALVES; bits++) {
+        fill(segment, (short) bits);
+        assertScores(segment, Float.intBitsToFloat(bits << 16), bits, VectorMath::scoreBFloat16);
+      }
+    }
+  }
+
+  private interface HalfScore {
+    float score(SimilarityFunction similarityFunction, float[] a, MemorySegment b, long offset);
+  }
+
+  /**
+   * Scores a vector of ones against {@link #REPEATS} copies of {@code value}. Every partial sum of
+   * the dot product is exact, so it must match bit for bit; the others only up to rounding.
+   */
+  private static void assertScores(MemorySegment b, float value, int bits, HalfScore score) {
+    var ones = new float[REPEATS];
+    Arrays.fill(ones, 1);
+    var expected = new float[REPEATS];
+    Arrays.fill(expected, value);
+
+    var message = Integer.toHexString(bits);
+    // A sum rather than REPEATS * value, so that -0 sums to 0 like the kernels' accumulators.
+    float sum = 0;
+    for (int i = 0; i < REPEATS; i++) {
+      sum += value;
+    }
+    assertEquals(sum, score.score(SimilarityFunction.DOT_PRODUCT, ones, b, OFFSET), message);
+    for (var similarityFunction :
+        new SimilarityFunction[] {SimilarityFunction.EUCLIDEAN, SimilarityFunction.COSINE}) {
+      var want = VectorMath.score(similarityFunction, ones, expected);
+      var got = score.score(similarityFunction, ones, b, OFFSET);
+      if (Float.isNaN(want) || Float.isInfinite(want)) {
+        assertEquals(want, got, message);
+      } else {
+        assertEquals(want, got, Math.abs(want) * 1e-6f, message);
+      }
+    }
+  }
+
+  private static MemorySegment allHalves(Arena arena) {
+    var segment = arena.allocate(OFFSET + (long) HALVES * Short.BYTES);
+    for (int bits = 0; bits < HALVES; bits++) {
+      segment.set(SHORT, OFFSET + (long) bits * Short.BYTES, (short) bits);
+    }
+    return segment;
+  }
+
+  private static void fill(MemorySegment segment, short value) {
+    for (int i = 0; i < REPEATS; i++) {
+      segment.set(SHORT, OFFSET + (long) i * Short.BYTES, value);
+    }
+  }
+}